@@ -47,11 +47,11 @@
 package com.lynntech.cps.android;
 
 import java.io.DataInputStream;
-import java.io.DataOutputStream;
 import java.io.File;
-import java.io.FileNotFoundException;
 import java.io.IOException;
 import java.util.Calendar;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 import boofcv.struct.calib.IntrinsicParameters;
 import com.lynntech.cps.android.R;
 import android.animation.Animator;
@@ -62,7 +62,6 @@ import android.app.Activity;
 import android.app.AlertDialog;
 import android.content.Context;
 import android.content.Intent;
-import android.content.SharedPreferences;
 import android.content.res.Configuration;
 import android.graphics.Rect;
 import android.graphics.RectF;
@@ -84,6 +83,7 @@ import android.widget.SeekBar;
 import android.widget.Spinner;
 import android.widget.TextView;
 import android.widget.Toast;
+import com.lynntech.cps.android.calibration.CalibrationProfileStore;
 import com.lynntech.cps.android.calibration.FocusController;
 
 /**
@@ -91,7 +91,10 @@ import com.lynntech.cps.android.calibration.FocusController;
  */
 @SuppressLint("ClickableViewAccessibility")
 public class InstaCamActivity extends Activity {
+	/// Single calibration file written by older versions, migrated to the profile store.
 	private final static String CALIBRATION_FILE_NAME = "camera_calibr.dat";  
+	/// Calibration profiles, one for each camera, facing and preview size.
+	private final static String PROFILE_FILE_NAME = "calibration_profiles.dat";
 	// Custom camera holder class.
 	private final InstaCamCamera mCamera = new InstaCamCamera();
 	// Common observer for all Buttons.
@@ -106,21 +109,34 @@ public class InstaCamActivity extends Activity {
 	private final SeekBarObserver mObserverSeekBar = new SeekBarObserver();
 	// Common observer for all Spinners.
 	private final SpinnerObserver mObserverSpinner = new SpinnerObserver();
-	// Application shared preferences instance.
-	private SharedPreferences mPreferences;
+	// Application preferences, written behind the UI.
+	private InstaCamPreferences mPreferences;
 	// Preview texture renderer class.
 	private InstaCamRenderer mRenderer;
 	// Shared data instance.
 	private final InstaCamData mSharedData = new InstaCamData();
 	// Camera Calibration parameters
 	private IntrinsicParameters intr;
-	// Tool used to control focus
-	private FocusController focusController;
+	// Undistort the preview before the selected filter, once calibrated
+	private boolean mUndistortFirst;
+	// Calibration profiles of all the cameras, set once opened
+	private volatile CalibrationProfileStore profiles;
+	// Tool used to control focus, created once the camera is open
+	private volatile FocusController focusController;
+	// Background threads of the startup phases and of the camera switch
+	private ExecutorService mExecutor;
+	// Startup phases of the last onResume()
+	private InstaCamStartup mStartup;
 
 	/**
 	 * Request code for the calibration Activity.
 	 */
 	private static final int CALIBRATION_REQUEST = 101;
+	
+	/**
+	 * Number of threads for the startup phases: calibration, shaders and camera.
+	 */
+	private static final int STARTUP_THREADS = 3;
 
 	@Override
 	public void onConfigurationChanged(Configuration newConfig) {
@@ -141,9 +157,10 @@ public class InstaCamActivity extends Activity {
 		// Instantiate device orientation observer.
 		mObserverOrientation = new OrientationObserver(this);
 
-		// Instantiate camera handler.
-		mCamera.setCameraFront(false);
+		// Instantiate camera handler; the camera is opened in onResume().
+		mCamera.selectCamera(false);
 		mCamera.setSharedData(mSharedData);
+		mExecutor = Executors.newFixedThreadPool(STARTUP_THREADS);
 
 		// Set content view.
 		setContentView(R.layout.instacam);
@@ -175,7 +192,7 @@ public class InstaCamActivity extends Activity {
 		findViewById(R.id.btn_calibrate).setOnClickListener(mObserverButton);
 		
 		// Get preferences instance.
-		mPreferences = getPreferences(MODE_PRIVATE);
+		mPreferences = new InstaCamPreferences(getPreferences(MODE_PRIVATE));
 
 		// Set observer for filter Spinner.
 		filterSpinner.setOnItemSelectedListener(mObserverSpinner);
@@ -186,6 +203,27 @@ public class InstaCamActivity extends Activity {
 			mSharedData.mFilter = 0;
 		}
 		filterSpinner.setSelection(mSharedData.mFilter);
+		// Long press on the filter Spinner chains the undistortion in front
+		// of the selected filter.
+		mUndistortFirst = mPreferences.getInt(keyUndistortFirst(), 0) != 0;
+		filterSpinner.setOnLongClickListener(new View.OnLongClickListener() {
+			@Override
+			public boolean onLongClick(View v) {
+				if (intr == null) {
+					Toast.makeText(InstaCamActivity.this,
+							"Undistortion needs a calibration.",
+							Toast.LENGTH_SHORT).show();
+					return true;
+				}
+				mUndistortFirst = !mUndistortFirst;
+				mPreferences.putInt(keyUndistortFirst(), mUndistortFirst ? 1 : 0);
+				updateFilterStages();
+				Toast.makeText(InstaCamActivity.this, mUndistortFirst
+						? "Undistortion before the filter."
+						: "Filter alone.", Toast.LENGTH_SHORT).show();
+				return true;
+			}
+		});
 
 		// SeekBar ids as triples { SeekBar id, key id, default value }.
 		final int SEEKBAR_IDS[][] = {
@@ -218,17 +256,19 @@ public class InstaCamActivity extends Activity {
 	            return v.performClick();
 	        }
 	    });
-		loadSettings();
 	}
 
 	@Override
 	public void onDestroy() {
 		super.onDestroy();
+		mExecutor.shutdown();
 	}
 
 	@Override
 	public void onPause() {
 		super.onPause();
+		mPreferences.flush();
+		mStartup.cancel();
 		mCamera.onPause();
 		mRenderer.onPause();
 		mObserverOrientation.disable();
@@ -239,13 +279,64 @@ public class InstaCamActivity extends Activity {
 		super.onResume();
 		mCamera.onResume();
 		mRenderer.onResume();
-		focusController = new FocusController(mCamera.getDeviceCamera());
+		startup();
 		if (mObserverOrientation.canDetectOrientation()) {
 			mObserverOrientation.enable();
 		}
 	}
 	
 	
+	/**
+	 * Load the calibration profiles, open the camera and read the shader sources in parallel on background threads,
+	 * then apply the calibration profile on the UI thread once all of them are done.
+	 * 
+	 * The preview is bound to the renderer by whichever comes last between the camera and the SurfaceTexture, see 
+	 * {@link InstaCamCamera#setPreviewTexture(SurfaceTexture)}.
+	 */
+	private void startup() {
+		mStartup = new InstaCamStartup(mExecutor);
+		if (profiles == null) {
+			mStartup.add("calibration", new Runnable() {
+				@Override
+				public void run() {
+					loadSettings();
+				}
+			});
+		}
+		mStartup.add("shaders", new Runnable() {
+			@Override
+			public void run() {
+				mRenderer.preloadShaderSources();
+			}
+		});
+		mStartup.add("camera", new Runnable() {
+			@Override
+			public void run() {
+				openCamera();
+			}
+		});
+		mStartup.start(new Runnable() {
+			@Override
+			public void run() {
+				// the preview size is known only once the camera is open
+				applyProfile();
+				mRenderer.requestRender();
+			}
+		});
+	}
+	
+	
+	/**
+	 * Open the selected camera and bind the focus controller to it; both call {@code Camera.getParameters()},
+	 * so this is called on a background thread.
+	 */
+	private void openCamera() {
+		mCamera.open();
+		Camera camera = mCamera.getDeviceCamera();
+		focusController = (camera != null) ? new FocusController(camera) : null;
+	}
+	
+	
 	/**
 	 * Get the result from Activities started with an {@link Intent}.
 	 * 
@@ -279,8 +370,9 @@ public class InstaCamActivity extends Activity {
 	 */
 	protected void focusOnTouch(MotionEvent event) {
 		final float focusAreaSize = 250f;
-	    if (mCamera != null) { // there is a camera ..
-	        Size prevSize = mCamera.getDeviceCamera().getParameters().getPreviewSize();
+		Size prevSize = mCamera.getPreviewSize();
+		FocusController focusController = this.focusController;
+	    if (prevSize != null && focusController != null) { // there is a camera ..
 	        Rect focusRect = calculateTapArea(event.getX(), event.getY(), focusAreaSize, prevSize.width, prevSize.height);
 	        // call the autofocus and register this Activity's onAutoFocus() for the callback:
 	        // focusController.focusOnRect(focusRect, mDraw.getWidth(), mDraw.getHeight(), this);
@@ -330,92 +422,150 @@ public class InstaCamActivity extends Activity {
 		mSharedData.setRadial(intr.getRadial());
 		mSharedData.setCenter(intr.getCx(), intr.getCy());	
 		mSharedData.setSkew((float)intr.getSkew());
+		updateFilterStages();
+	}
+
+	/**
+	 * Preference key of the undistortion chained in front of the filter.
+	 */
+	private String keyUndistortFirst() {
+		return getString(R.string.key_filter) + "_undistort";
+	}
+
+	/**
+	 * Chains the undistortion in front of the selected filter if it has been requested and the camera is
+	 * calibrated, the filter runs alone otherwise.
+	 */
+	private void updateFilterStages() {
+		int filter = mSharedData.mFilter;
+		if (mUndistortFirst && intr != null && filter != 10) {
+			mSharedData.mFilterStages = new int[] { 10, filter };
+		}
+		else {
+			mSharedData.mFilterStages = null;
+		}
+		if (mRenderer != null) {
+			mRenderer.requestRender();
+		}
 	}
 	
 	
 	/**
-	 * Save the calibration parameters into the private storage.
+	 * Save the calibration parameters into the profile of the current camera.
 	 * If the calibration parameters are {@code null} nothing is saved.
 	 * 
-	 * Since the internal storage mechanism does not have a good method
-	 * to store a {@code double} precision number, the floating point
-	 * calibration parameters are converted to {@code long}, which has the same
-	 * number of bytes. The inverse conversion must also be done during retrieval. 
+	 * The profile is keyed by the camera and the image size of the parameters, see {@link CalibrationProfileStore}.
 	 * 
 	 * @param intr 		Calibration parameters to be saved.
 	 */
-	private void saveSettings(IntrinsicParameters intr)
+	private void saveSettings(final IntrinsicParameters intr)
 	{
-		if (intr != null) {
-			try {
-				DataOutputStream bw = new DataOutputStream(
-						openFileOutput(CALIBRATION_FILE_NAME, Context.MODE_PRIVATE));
-				bw.writeInt(intr.getHeight());
-				bw.writeInt(intr.getWidth());
-				bw.writeDouble(intr.getFx());
-				bw.writeDouble(intr.getFy());
-				bw.writeDouble(intr.getSkew());
-				bw.writeDouble(intr.getCx());
-				bw.writeDouble(intr.getCy());
-				double[] radial = intr.getRadial();
-				bw.writeInt(radial.length); // how many coefficients?
-				for (int i = 0; i < radial.length; i++) {
-					bw.writeDouble(radial[i]);
+		if (intr != null && profiles != null) {
+			// the write ends with a sync to the storage, keep it off the UI thread
+			final int cameraId = mCamera.getCameraId();
+			final boolean front = mCamera.isCameraFront();
+			mExecutor.execute(new Runnable() {
+				@Override
+				public void run() {
+					try {
+						profiles.put(cameraId, front, intr);
+					}
+					catch (IOException ex) {
+						ex.printStackTrace();
+						runOnUiThread(new Runnable() {
+							@Override
+							public void run() {
+								infoDialog("Could not write to the calibration file.");
+							}
+						});
+					}
 				}
-				bw.writeBoolean(intr.isFlipY());
-				bw.close();
-			}
-			catch (FileNotFoundException ex) {
-				ex.printStackTrace();
-				infoDialog("Could not open the calibration file.");
-			}
-			catch (IOException ex) {
-				ex.printStackTrace();
-				infoDialog("Could not write to the calibration file.");
-			}
+			});
 		}
 		// else { do nothing }
 	}
 	
 	
 	/**
-	 * Load calibration parameters from private storage.
+	 * Open the calibration profiles in private storage.
 	 * 
-	 * Create a new set of camera calibration parameters for this {@link Activity}
-	 * and load the stored parameters, if present. If no calibration parameters file
-	 * is found, the existing intrinsic parameters {@link #intr} are not altered. 
+	 * The file is only mapped and indexed here; the profile of the camera is applied by {@link #applyProfile()} 
+	 * once the camera is open. If there is no profile file yet, the calibration saved by older versions, if any,
+	 * is migrated as a profile of the back facing camera.
 	 */
 	private void loadSettings()
 	{
-		// Implementation details: note that this could have been implemented also
-		// with serialization, using ObjectOutputStream, ObjectInputStream.
-		// Since I have not tried how well the serialization works with 
-		// the class IntrinsicParameters, which is declared as {@code Serializable}, I have
-		// chosen a more old fashioned approach. [Christian Bruccoleri]
-		File fileCheck = getBaseContext().getFileStreamPath(CALIBRATION_FILE_NAME);
-		if (!fileCheck.exists()) {
-			Log.w("STORAGE", "Storage file not found: " + CALIBRATION_FILE_NAME);
-			// Load default values
-			this.intr = new IntrinsicParameters();		
-			intr.setHeight(1920);
-			intr.setWidth(1280);
-			intr.setFx(25);
-			intr.setFy(25);
-			intr.setSkew(0);
-			intr.setCx(0);
-			intr.setCy(0);
-			double[] radial = new double[2];
-			for (int i = 0; i < 2; i++) {
-				radial[i] = 0.0;
+		CalibrationProfileStore store = new CalibrationProfileStore(getBaseContext().getFileStreamPath(PROFILE_FILE_NAME));
+		try {
+			boolean migrate = !store.getFile().exists();
+			store.open();
+			if (migrate) {
+				IntrinsicParameters legacy = loadLegacySettings();
+				if (legacy != null) {
+					store.put(mCamera.getCameraId(), mCamera.isCameraFront(), legacy);
+					Log.i("STORAGE", "Migrated " + CALIBRATION_FILE_NAME + " to " + PROFILE_FILE_NAME);
+				}
 			}
-			intr.setRadial(radial);
-			intr.setFlipY(false);
-			updateRendererCalibrParams();			
+			profiles = store;
+		}
+		catch (IOException ex) {
+			ex.printStackTrace();
+			runOnUiThread(new Runnable() {
+				@Override
+				public void run() {
+					infoDialog("Could not read the calibration file.");
+				}
+			});
+		}
+	}
+	
+	
+	/**
+	 * Select the calibration profile of the current camera and preview size, or disable the undistortion if the
+	 * camera has not been calibrated at this resolution.
+	 */
+	private void applyProfile() {
+		Size size = mCamera.getPreviewSize();
+		if (size == null || profiles == null) {
+			return;
+		}
+		intr = profiles.find(mCamera.getCameraId(), mCamera.isCameraFront(), size.width, size.height);
+		if (intr != null) {
+			updateRendererCalibrParams();
+			Log.i("CALIBRATION", String.format("Profile of camera %d, %d x %d", mCamera.getCameraId(), 
+					intr.getWidth(), intr.getHeight()));
 			return;
 		}
+		Log.w("CALIBRATION", String.format("No calibration profile for camera %d, %d x %d", 
+				mCamera.getCameraId(), size.width, size.height));
+		// neutral parameters: no distortion
+		mSharedData.imWidth = size.width;
+		mSharedData.imHeight = size.height;
+		mSharedData.setRadial(new double[2]);
+		mSharedData.setCenter(size.width/2.0, size.height/2.0);
+		mSharedData.setSkew(0);
+		updateFilterStages();
+		if (mSharedData.mFilter == 10) {
+			// undistort not available
+			((Spinner) findViewById(R.id.spinner_filter)).setSelection(0);
+		}
+	}
+	
+	
+	/**
+	 * Load calibration parameters from the single file written by older versions.
+	 * @return The parameters, or {@code null} if there is no such file.
+	 * @throws IOException If the file cannot be read.
+	 */
+	private IntrinsicParameters loadLegacySettings() throws IOException
+	{
+		File fileCheck = getBaseContext().getFileStreamPath(CALIBRATION_FILE_NAME);
+		if (!fileCheck.exists()) {
+			return null;
+		}
+		DataInputStream din = new DataInputStream(openFileInput(CALIBRATION_FILE_NAME));
 		try {
-			DataInputStream din = new DataInputStream(openFileInput(CALIBRATION_FILE_NAME));
-			this.intr = new IntrinsicParameters();		
+			IntrinsicParameters intr = new IntrinsicParameters();
 			intr.setHeight(din.readInt());
 			intr.setWidth(din.readInt());
 			intr.setFx(din.readDouble());
@@ -430,23 +580,10 @@ public class InstaCamActivity extends Activity {
 			}
 			intr.setRadial(radial);
 			intr.setFlipY(din.readBoolean());
-			din.close();
-			updateRendererCalibrParams();
-			// debug
-			float[] _radial = mSharedData.getRadial().array();
-			float[] _center = mSharedData.getCenter().array();
-			Log.i("CALIBRATION", String.format("%.1f x %.1f,  %.4f,%.4f",
-					mSharedData.imWidth, mSharedData.imHeight, _radial[0], _radial[1]));
-			Log.i("CALIBRATION", String.format("C: (%.1f,  %.1f)", _center[0], _center[1]));
-			// end debug
+			return intr;
 		}
-		catch (FileNotFoundException ex) {
-			ex.printStackTrace();
-			infoDialog("Could not open the calibration file.");
-		}
-		catch (IOException ex) {
-			ex.printStackTrace();
-			infoDialog("Could not read the calibration file.");
+		finally {
+			din.close();
 		}
 	}
 	
@@ -493,7 +630,20 @@ public class InstaCamActivity extends Activity {
 			@Override
 			public void onAnimationEnd(Animator animation) {
 				findViewById(R.id.button_rotate).setRotation(0);
-				mCamera.setCameraFront(front);
+				// reopen the camera off the UI thread, as in startup()
+				mExecutor.execute(new Runnable() {
+					@Override
+					public void run() {
+						mCamera.selectCamera(front);
+						openCamera();
+						runOnUiThread(new Runnable() {
+							@Override
+							public void run() {
+								applyProfile();
+							}
+						});
+					}
+				});
 			}
 
 			@Override
@@ -581,7 +731,11 @@ public class InstaCamActivity extends Activity {
 				// We do not want to receive orientation changes until picture
 				// is either saved or cancelled.
 				mObserverOrientation.disable();
-				mCamera.takePicture(mObserverCamera);
+				if (!mCamera.takePicture(mObserverCamera)
+						&& mObserverOrientation.canDetectOrientation()) {
+					// The camera is still being opened, or failed to open.
+					mObserverOrientation.enable();
+				}
 				break;
 			// Pressing menu button switches menu visibility.
 			case R.id.button_menu:
@@ -608,8 +762,12 @@ public class InstaCamActivity extends Activity {
 			case R.id.btn_calibrate:
 				// Start the calibration activity
 				final String action = "com.lynntech.cps.android.calibration.CALIBRATE"; 
+				Size size = mCamera.getPreviewSize();
+				if (size == null) {
+					// camera not open yet
+					break;
+				}
 				Intent intent = new Intent();
-				Size size = mCamera.getDeviceCamera().getParameters().getPreviewSize();
 				// try to do calibration for this specific preview size
 				Log.d("SIZE (intent): ", "Size: " + size.width + " x " + size.height);
 				Bundle extras = new Bundle();
@@ -742,9 +900,7 @@ public class InstaCamActivity extends Activity {
 			switch (seekBar.getId()) {
 			// On brightness recalculate shared value and update preferences.
 			case R.id.seekbar_brightness: {
-				mPreferences.edit()
-						.putInt(getString(R.string.key_brightness), progress)
-						.commit();
+				mPreferences.putInt(getString(R.string.key_brightness), progress);
 				mSharedData.mBrightness = (progress - 5) / 10f;
 
 				TextView textView = (TextView) findViewById(R.id.text_brightness);
@@ -754,9 +910,7 @@ public class InstaCamActivity extends Activity {
 			}
 			// On contrast recalculate shared value and update preferences.
 			case R.id.seekbar_contrast: {
-				mPreferences.edit()
-						.putInt(getString(R.string.key_contrast), progress)
-						.commit();
+				mPreferences.putInt(getString(R.string.key_contrast), progress);
 				mSharedData.mContrast = (progress - 5) / 10f;
 				TextView textView = (TextView) findViewById(R.id.text_contrast);
 				textView.setText(getString(R.string.seekbar_contrast,
@@ -765,9 +919,7 @@ public class InstaCamActivity extends Activity {
 			}
 			// On saturation recalculate shared value and update preferences.
 			case R.id.seekbar_saturation: {
-				mPreferences.edit()
-						.putInt(getString(R.string.key_saturation), progress)
-						.commit();
+				mPreferences.putInt(getString(R.string.key_saturation), progress);
 				mSharedData.mSaturation = (progress - 5) / 10f;
 				TextView textView = (TextView) findViewById(R.id.text_saturation);
 				textView.setText(getString(R.string.seekbar_saturation,
@@ -776,10 +928,8 @@ public class InstaCamActivity extends Activity {
 			}
 			// On radius recalculate shared value and update preferences.
 			case R.id.seekbar_corner_radius: {
-				mPreferences
-						.edit()
-						.putInt(getString(R.string.key_corner_radius), progress)
-						.commit();
+				mPreferences.putInt(getString(R.string.key_corner_radius),
+						progress);
 				mSharedData.mCornerRadius = progress / 10f;
 				TextView textView = (TextView) findViewById(R.id.text_corner_radius);
 				textView.setText(getString(R.string.seekbar_corner_radius,
@@ -806,10 +956,9 @@ public class InstaCamActivity extends Activity {
 		@Override
 		public void onItemSelected(AdapterView<?> parent, View view,
 				int position, long id) {
-			mPreferences.edit()
-					.putInt(getString(R.string.key_filter), position).commit();
+			mPreferences.putInt(getString(R.string.key_filter), position);
 			mSharedData.mFilter = position;
-			mRenderer.requestRender();
+			updateFilterStages();
 		}
 
 		@Override
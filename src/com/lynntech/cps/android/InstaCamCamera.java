@@ -55,6 +55,10 @@ import android.opengl.Matrix;
 
 /**
  * Class for encapsulating Camera related functionality.
+ * 
+ * Camera.open() can take hundreds of milliseconds, so {@link #open()} may be called from a background thread; all
+ * the methods that use the Camera instance are synchronized. Camera callbacks are delivered to the main thread when
+ * the opening thread has no event loop.
  */
 public class InstaCamCamera {
 
@@ -68,8 +72,12 @@ public class InstaCamCamera {
 	private InstaCamData mSharedData;
 	// Surface texture instance.
 	private SurfaceTexture mSurfaceTexture;
+	// Preview size of the current Camera, read once it is opened.
+	private Camera.Size mPreviewSize;
+	// False after onPause(), until onResume() is called again.
+	private boolean mResumed;
 	
-	public Camera getDeviceCamera() {
+	public synchronized Camera getDeviceCamera() {
 		return this.mCamera;
 	}
 
@@ -84,28 +92,54 @@ public class InstaCamCamera {
 		}
 	}
 
+	/**
+	 * @return Identifier of the current camera, as in {@code Camera.open(int)}; -1 if there is no camera.
+	 */
+	public int getCameraId() {
+		return mCameraId;
+	}
+
 	public boolean isCameraFront() {
 		return mCameraInfo.facing == CameraInfo.CAMERA_FACING_FRONT;
 	}
 
+	/**
+	 * @return Preview size of the current camera, or {@code null} if there is no open camera.
+	 */
+	public synchronized Camera.Size getPreviewSize() {
+		return mPreviewSize;
+	}
+
 	/**
 	 * Must be called from Activity.onPause(). Stops preview and releases Camera
 	 * instance.
 	 */
-	public void onPause() {
+	public synchronized void onPause() {
+		mResumed = false;
 		mSurfaceTexture = null;
 		if (mCamera != null) {
 			mCamera.stopPreview();
 			mCamera.release();
 			mCamera = null;
 		}
+		mPreviewSize = null;
 	}
 
 	/**
-	 * Should be called from Activity.onResume(). Recreates Camera instance.
+	 * Should be called from Activity.onResume(), before {@link #open()}.
 	 */
-	public void onResume() {
-		openCamera();
+	public synchronized void onResume() {
+		mResumed = true;
+	}
+
+	/**
+	 * Recreates Camera instance, unless onPause() has been called since
+	 * onResume(); it can be called from a background thread.
+	 */
+	public synchronized void open() {
+		if (mResumed) {
+			openCamera();
+		}
 	}
 	
 	/**
@@ -116,6 +150,7 @@ public class InstaCamCamera {
 			mCamera.stopPreview();
 			mCamera.release();
 			mCamera = null;
+			mPreviewSize = null;
 		}
 
 		if (mCameraId >= 0) {
@@ -126,6 +161,7 @@ public class InstaCamCamera {
 			Camera.Parameters params = mCamera.getParameters();
 			params.setRotation(0);
 			mCamera.setParameters(params);
+			mPreviewSize = params.getPreviewSize();
 			try {
 				if (mSurfaceTexture != null) {
 					mCamera.setPreviewTexture(mSurfaceTexture);
@@ -141,7 +177,15 @@ public class InstaCamCamera {
 	/**
 	 * Selects either front-facing or back-facing camera.
 	 */
-	public void setCameraFront(boolean frontFacing) {
+	public synchronized void setCameraFront(boolean frontFacing) {
+		selectCamera(frontFacing);
+		openCamera();
+	}
+
+	/**
+	 * Selects either front-facing or back-facing camera, without opening it.
+	 */
+	public synchronized void selectCamera(boolean frontFacing) {
 		int facing = frontFacing ? CameraInfo.CAMERA_FACING_FRONT
 				: CameraInfo.CAMERA_FACING_BACK;
 
@@ -154,17 +198,18 @@ public class InstaCamCamera {
 				break;
 			}
 		}
-
-		openCamera();
 	}
 
 	/**
-	 * Simply forwards call to Camera.setPreviewTexture.
+	 * Simply forwards call to Camera.setPreviewTexture. If the camera is not
+	 * open yet, the texture is bound once it is.
 	 */
-	public void setPreviewTexture(SurfaceTexture surfaceTexture)
+	public synchronized void setPreviewTexture(SurfaceTexture surfaceTexture)
 			throws IOException {
 		mSurfaceTexture = surfaceTexture;
-		mCamera.setPreviewTexture(surfaceTexture);	
+		if (mCamera != null) {
+			mCamera.setPreviewTexture(surfaceTexture);
+		}
 	}
 
 	
@@ -178,28 +223,37 @@ public class InstaCamCamera {
 	/**
 	 * Simply forwards call to Camera.startPreview.
 	 */
-	public void startPreview() {
-		mCamera.startPreview();
+	public synchronized void startPreview() {
+		if (mCamera != null) {
+			mCamera.startPreview();
+		}
 	}
 
 	/**
 	 * Simply forwards call to Camera.stopPreview.
 	 */
-	public void stopPreview() {
-		mCamera.stopPreview();
+	public synchronized void stopPreview() {
+		if (mCamera != null) {
+			mCamera.stopPreview();
+		}
 	}
 
 	/**
 	 * Handles picture taking callbacks etc etc.
+	 * @return false if the camera is not open, no callback is made then.
 	 */
-	public void takePicture(Observer observer) {
+	public synchronized boolean takePicture(Observer observer) {
+		if (mCamera == null) {
+			return false;
+		}
 		mCamera.autoFocus(new CameraObserver(observer));
+		return true;
 	}
 
 	/**
 	 * Updated rotation matrix, aspect ratio etc.
 	 */
-	public void updateRotation() {
+	public synchronized void updateRotation() {
 		if (mCamera == null || mSharedData == null) {
 			return;
 		}
@@ -207,17 +261,17 @@ public class InstaCamCamera {
 		int orientation = mCameraInfo.orientation;
 		Matrix.setRotateM(mSharedData.mOrientationM, 0, orientation, 0f, 0f, 1f);
 
-		Camera.Size size = mCamera.getParameters().getPreviewSize();
+		int width = mPreviewSize.width;
+		int height = mPreviewSize.height;
 		if (orientation % 90 == 0) {
-			int w = size.width;
-			size.width = size.height;
-			size.height = w;
+			width = mPreviewSize.height;
+			height = mPreviewSize.width;
 		}
 
-		mSharedData.mAspectRatioPreview[0] = (float) Math.min(size.width,
-				size.height) / size.width;
-		mSharedData.mAspectRatioPreview[1] = (float) Math.min(size.width,
-				size.height) / size.height;
+		mSharedData.mAspectRatioPreview[0] = (float) Math.min(width,
+				height) / width;
+		mSharedData.mAspectRatioPreview[1] = (float) Math.min(width,
+				height) / height;
 	}
 
 	/**
@@ -235,7 +289,7 @@ public class InstaCamCamera {
 		@Override
 		public void onAutoFocus(boolean success, Camera camera) {
 			mObserver.onAutoFocus(success);
-			mCamera.takePicture(this, null, this);
+			camera.takePicture(this, null, this);
 		}
 
 		@Override
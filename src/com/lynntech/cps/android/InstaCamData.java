@@ -61,6 +61,9 @@ public class InstaCamData {
 	public float mBrightness, mContrast, mSaturation, mCornerRadius;
 	// Predefined filter.
 	public int mFilter;
+	// Filters applied in order, see InstaCamFilterGraph; null for mFilter
+	// alone.
+	public int[] mFilterStages;
 	// Taken picture data (jpeg).
 	public byte[] mImageData;
 	// Progress dialog while saving picture.
@@ -54,6 +54,8 @@ import android.opengl.GLES20;
  */
 public final class InstaCamFbo {
 
+	// GL implementation.
+	private final InstaCamGl mGl;
 	// FBO handle.
 	private int mFrameBufferHandle = -1;
 	// Generated texture handles.
@@ -61,12 +63,26 @@ public final class InstaCamFbo {
 	// FBO textures and depth buffer size.
 	private int mWidth, mHeight;
 
+	/**
+	 * Creates a FBO on the device.
+	 */
+	public InstaCamFbo() {
+		this(InstaCamGles20.INSTANCE);
+	}
+
+	/**
+	 * Creates a FBO using the given GL implementation.
+	 */
+	public InstaCamFbo(InstaCamGl gl) {
+		mGl = gl;
+	}
+
 	/**
 	 * Binds this FBO into use and adjusts viewport to FBO size.
 	 */
 	public void bind() {
-		GLES20.glBindFramebuffer(GLES20.GL_FRAMEBUFFER, mFrameBufferHandle);
-		GLES20.glViewport(0, 0, mWidth, mHeight);
+		mGl.glBindFramebuffer(GLES20.GL_FRAMEBUFFER, mFrameBufferHandle);
+		mGl.glViewport(0, 0, mWidth, mHeight);
 	}
 
 	/**
@@ -77,7 +93,7 @@ public final class InstaCamFbo {
 	 *            Index of texture to bind.
 	 */
 	public void bindTexture(int index) {
-		GLES20.glFramebufferTexture2D(GLES20.GL_FRAMEBUFFER,
+		mGl.glFramebufferTexture2D(GLES20.GL_FRAMEBUFFER,
 				GLES20.GL_COLOR_ATTACHMENT0, GLES20.GL_TEXTURE_2D,
 				mTextureHandles[index], 0);
 	}
@@ -139,27 +155,27 @@ public final class InstaCamFbo {
 
 		// Genereta FBO.
 		int handle[] = { 0 };
-		GLES20.glGenFramebuffers(1, handle, 0);
+		mGl.glGenFramebuffers(1, handle, 0);
 		mFrameBufferHandle = handle[0];
-		GLES20.glBindFramebuffer(GLES20.GL_FRAMEBUFFER, mFrameBufferHandle);
+		mGl.glBindFramebuffer(GLES20.GL_FRAMEBUFFER, mFrameBufferHandle);
 
 		// Generate textures.
 		mTextureHandles = new int[textureCount];
-		GLES20.glGenTextures(textureCount, mTextureHandles, 0);
+		mGl.glGenTextures(textureCount, mTextureHandles, 0);
 		int target = textureExternalOES ? GLES11Ext.GL_TEXTURE_EXTERNAL_OES
 				: GLES20.GL_TEXTURE_2D;
 		for (int texture : mTextureHandles) {
-			GLES20.glBindTexture(target, texture);
-			GLES20.glTexParameteri(GLES20.GL_TEXTURE_2D,
+			mGl.glBindTexture(target, texture);
+			mGl.glTexParameteri(GLES20.GL_TEXTURE_2D,
 					GLES20.GL_TEXTURE_WRAP_S, GLES20.GL_CLAMP_TO_EDGE);
-			GLES20.glTexParameteri(target, GLES20.GL_TEXTURE_WRAP_T,
+			mGl.glTexParameteri(target, GLES20.GL_TEXTURE_WRAP_T,
 					GLES20.GL_CLAMP_TO_EDGE);
-			GLES20.glTexParameteri(target, GLES20.GL_TEXTURE_MIN_FILTER,
+			mGl.glTexParameteri(target, GLES20.GL_TEXTURE_MIN_FILTER,
 					GLES20.GL_NEAREST);
-			GLES20.glTexParameteri(target, GLES20.GL_TEXTURE_MAG_FILTER,
+			mGl.glTexParameteri(target, GLES20.GL_TEXTURE_MAG_FILTER,
 					GLES20.GL_LINEAR);
 			if (target == GLES20.GL_TEXTURE_2D) {
-				GLES20.glTexImage2D(GLES20.GL_TEXTURE_2D, 0, GLES20.GL_RGBA,
+				mGl.glTexImage2D(GLES20.GL_TEXTURE_2D, 0, GLES20.GL_RGBA,
 						mWidth, mHeight, 0, GLES20.GL_RGBA,
 						GLES20.GL_UNSIGNED_BYTE, null);
 			}
@@ -172,8 +188,8 @@ public final class InstaCamFbo {
 	 */
 	public void reset() {
 		int[] handle = { mFrameBufferHandle };
-		GLES20.glDeleteFramebuffers(1, handle, 0);
-		GLES20.glDeleteTextures(mTextureHandles.length, mTextureHandles, 0);
+		mGl.glDeleteFramebuffers(1, handle, 0);
+		mGl.glDeleteTextures(mTextureHandles.length, mTextureHandles, 0);
 		mFrameBufferHandle = -1;
 		mTextureHandles = new int[0];
 		mWidth = mHeight = 0;
@@ -0,0 +1,231 @@
+/*
+   Copyright 2015 Lynntech Inc. 
+   Contact information:
+   - Victor Palmer, 		victor.palmer[\AT]lynntech.com
+   - Christian Bruccoleri, 	christian.bruccoleri[\AT]lynntech.com
+   
+   Research reported in this publication was supported by the National Eye Institute 
+   of the National Institutes of Health under Award Number R43EY024800.
+   The content is solely the responsibility of the authors and does not necessarily
+   represent the official views of the National Institutes of Health.
+
+   This code includes parts of BoofCV: https://github.com/lessthanoptimal/BoofCV
+   
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+ */
+
+package com.lynntech.cps.android;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.regex.Pattern;
+
+/**
+ * Compiles a chain of filters into a plan of render passes, and generates
+ * the shaders of each pass from the filter_vs and filter_fs templates. It
+ * makes no GL call, so a plan can be checked off-device.
+ * 
+ * Each filter is a function of the color of a pixel, which may also sample
+ * the source texture around the pixel (it calls texture2D). The filters
+ * which only transform the color are fused with the filter before them into
+ * a single pass; a filter sampling the texture needs the result of the
+ * previous filters in a texture, and thus starts a new pass. The first pass
+ * samples the camera texture directly, unless it starts with a filter
+ * sampling the texture: the camera frame is then copied into a texture in
+ * screen coordinates first. Intermediate results are rendered into two
+ * offscreen targets in turn, the copy of the camera frame has a target of
+ * its own so that it can be reused until the next camera frame.
+ * 
+ * The brightness, contrast, saturation and corner adjustments of the
+ * template are applied once, in the last pass, which renders onto the
+ * screen.
+ */
+public final class InstaCamFilterGraph {
+
+	// Source of a pass sampling the camera texture.
+	public static final int CAMERA = -1;
+	// Target of the last pass.
+	public static final int SCREEN = -1;
+	// Offscreen target of the camera frame copy.
+	public static final int COPY_TARGET = 0;
+
+	// Name of the filter function in the filter sources.
+	private static final Pattern FILTER_FUNCTION = Pattern
+			.compile("\\bfilter\\s*\\(");
+
+	/**
+	 * A render pass of a plan.
+	 */
+	public static final class Pass {
+		// True for the copy of the camera frame, which has no filter.
+		public final boolean copy;
+		// Filters applied by this pass, fused in a single shader.
+		public final int[] stages;
+		// CAMERA or index of the offscreen target sampled.
+		public final int source;
+		// SCREEN or index of the offscreen target rendered.
+		public final int target;
+
+		Pass(boolean copy, int[] stages, int source, int target) {
+			this.copy = copy;
+			this.stages = stages;
+			this.source = source;
+			this.target = target;
+		}
+
+		/**
+		 * @return True if the pass samples the camera texture.
+		 */
+		public boolean isExternal() {
+			return source == CAMERA;
+		}
+
+		/**
+		 * @return True for the pass rendering onto the screen.
+		 */
+		public boolean isLast() {
+			return target == SCREEN;
+		}
+
+		/**
+		 * @return Key of the shader of this pass: passes with the same key
+		 *         share the shader.
+		 */
+		public String getKey() {
+			return (isExternal() ? "E" : "T") + (isLast() ? "L" : "I")
+					+ Arrays.toString(stages);
+		}
+
+		@Override
+		public String toString() {
+			return (copy ? "copy" : Arrays.toString(stages)) + " "
+					+ (source == CAMERA ? "camera" : String.valueOf(source))
+					+ "->"
+					+ (target == SCREEN ? "screen" : String.valueOf(target));
+		}
+	}
+
+	// Source of the function of each filter.
+	private final String[] mFunctions;
+	// Whether each filter samples the texture.
+	private final boolean[] mSamplesTexture;
+
+	/**
+	 * @param functions	Source of the function of each filter, see
+	 *            filter_*_fs; a filter is referred to by its index.
+	 */
+	public InstaCamFilterGraph(String[] functions) {
+		mFunctions = functions.clone();
+		mSamplesTexture = new boolean[functions.length];
+		for (int i = 0; i < functions.length; ++i) {
+			mSamplesTexture[i] = functions[i].contains("texture2D");
+		}
+	}
+
+	/**
+	 * @return True if the filter samples the texture around each pixel, and
+	 *         thus must be the first filter of its pass.
+	 */
+	public boolean samplesTexture(int filter) {
+		return mSamplesTexture[filter];
+	}
+
+	/**
+	 * Compiles a chain of filters into render passes.
+	 * 
+	 * @param stages	Index of each filter, in the order of application; an
+	 *            empty chain renders the camera frame with the adjustments
+	 *            only.
+	 * @param direct	If false the first pass never samples the camera
+	 *            texture directly: the camera frame is always copied.
+	 * @return The passes, in the order of execution.
+	 */
+	public List<Pass> compile(int[] stages, boolean direct) {
+		for (int stage : stages) {
+			if (stage < 0 || stage >= mFunctions.length) {
+				throw new IllegalArgumentException("Unknown filter: " + stage);
+			}
+		}
+		List<Pass> passes = new ArrayList<Pass>();
+		int source = CAMERA;
+		if (!direct || (stages.length > 0 && mSamplesTexture[stages[0]])) {
+			passes.add(new Pass(true, new int[0], CAMERA, COPY_TARGET));
+			source = COPY_TARGET;
+		}
+		int next = 1;
+		int i = 0;
+		do {
+			// a filter sampling the texture can only start a pass
+			int j = Math.min(i + 1, stages.length);
+			while (j < stages.length && !mSamplesTexture[stages[j]]) {
+				j++;
+			}
+			int target = (j == stages.length) ? SCREEN : next;
+			passes.add(new Pass(false, Arrays.copyOfRange(stages, i, j),
+					source, target));
+			source = target;
+			next = (next == 1) ? 2 : 1;
+			i = j;
+		} while (i < stages.length);
+		return passes;
+	}
+
+	/**
+	 * Generates the vertex shader of a filter pass.
+	 * 
+	 * @param template	Source of filter_vs.
+	 */
+	public String vertexSource(String template, Pass pass) {
+		return defines(pass) + template;
+	}
+
+	/**
+	 * Generates the fragment shader of a filter pass: the functions of its
+	 * filters, renamed, and a filter function applying them in order.
+	 * 
+	 * @param template	Source of filter_fs.
+	 */
+	public String fragmentSource(String template, Pass pass) {
+		final String sampler = pass.isExternal() ? "samplerExternalOES"
+				: "sampler2D";
+		StringBuilder functions = new StringBuilder();
+		StringBuilder chain = new StringBuilder();
+		chain.append("vec3 filter(vec3 color, ").append(sampler)
+				.append(" texture, vec2 texturePos) {\n");
+		for (int k = 0; k < pass.stages.length; ++k) {
+			String name = "filter_" + k;
+			String function = FILTER_FUNCTION.matcher(
+					mFunctions[pass.stages[k]]).replaceAll(name + "(");
+			if (pass.isExternal()) {
+				// only filters which do not sample the texture get here
+				function = function.replace("sampler2D", sampler);
+			}
+			functions.append(function).append('\n');
+			chain.append("\tcolor = ").append(name)
+					.append("(color, texture, texturePos);\n");
+		}
+		chain.append("\treturn color;\n}\n");
+		functions.append(chain);
+		return defines(pass)
+				+ template.replace("____FUNCTION_FILTER____", functions);
+	}
+
+	/**
+	 * Preprocessor definitions of the templates for a pass.
+	 */
+	private static String defines(Pass pass) {
+		return (pass.isExternal() ? "#define EXTERNAL_OES\n" : "")
+				+ (pass.isLast() ? "" : "#define INTERMEDIATE\n");
+	}
+}
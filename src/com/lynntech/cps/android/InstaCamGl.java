@@ -0,0 +1,113 @@
+/*
+   Copyright 2015 Lynntech Inc. 
+   Contact information:
+   - Victor Palmer, 		victor.palmer[\AT]lynntech.com
+   - Christian Bruccoleri, 	christian.bruccoleri[\AT]lynntech.com
+   
+   Research reported in this publication was supported by the National Eye Institute 
+   of the National Institutes of Health under Award Number R43EY024800.
+   The content is solely the responsibility of the authors and does not necessarily
+   represent the official views of the National Institutes of Health.
+
+   This code includes parts of BoofCV: https://github.com/lessthanoptimal/BoofCV
+   
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+ */
+
+package com.lynntech.cps.android;
+
+import java.nio.Buffer;
+
+/**
+ * The OpenGL ES 2.0 calls used by the rendering classes, with the same names
+ * and arguments as in {@code android.opengl.GLES20}.
+ * 
+ * The rendering classes call GL through this interface rather than
+ * statically, so that their logic can be run off-device, e.g. against
+ * {@link InstaCamGlRecorder}. {@link InstaCamGles20#INSTANCE} forwards the
+ * calls to the device.
+ */
+public interface InstaCamGl {
+
+	void glActiveTexture(int texture);
+
+	void glAttachShader(int program, int shader);
+
+	void glBindFramebuffer(int target, int framebuffer);
+
+	void glBindTexture(int target, int texture);
+
+	void glClear(int mask);
+
+	void glClearColor(float red, float green, float blue, float alpha);
+
+	void glCompileShader(int shader);
+
+	int glCreateProgram();
+
+	int glCreateShader(int type);
+
+	void glDeleteFramebuffers(int n, int[] framebuffers, int offset);
+
+	void glDeleteProgram(int program);
+
+	void glDeleteShader(int shader);
+
+	void glDeleteTextures(int n, int[] textures, int offset);
+
+	void glDrawArrays(int mode, int first, int count);
+
+	void glEnableVertexAttribArray(int index);
+
+	void glFramebufferTexture2D(int target, int attachment, int textarget,
+			int texture, int level);
+
+	void glGenFramebuffers(int n, int[] framebuffers, int offset);
+
+	void glGenTextures(int n, int[] textures, int offset);
+
+	int glGetAttribLocation(int program, String name);
+
+	String glGetProgramInfoLog(int program);
+
+	void glGetProgramiv(int program, int pname, int[] params, int offset);
+
+	String glGetShaderInfoLog(int shader);
+
+	void glGetShaderiv(int shader, int pname, int[] params, int offset);
+
+	int glGetUniformLocation(int program, String name);
+
+	void glLinkProgram(int program);
+
+	void glShaderSource(int shader, String string);
+
+	void glTexImage2D(int target, int level, int internalformat, int width,
+			int height, int border, int format, int type, Buffer pixels);
+
+	void glTexParameteri(int target, int pname, int param);
+
+	void glUniform1f(int location, float x);
+
+	void glUniform2f(int location, float x, float y);
+
+	void glUniformMatrix4fv(int location, int count, boolean transpose,
+			float[] value, int offset);
+
+	void glUseProgram(int program);
+
+	void glVertexAttribPointer(int indx, int size, int type,
+			boolean normalized, int stride, Buffer ptr);
+
+	void glViewport(int x, int y, int width, int height);
+}
@@ -0,0 +1,507 @@
+/*
+   Copyright 2015 Lynntech Inc. 
+   Contact information:
+   - Victor Palmer, 		victor.palmer[\AT]lynntech.com
+   - Christian Bruccoleri, 	christian.bruccoleri[\AT]lynntech.com
+   
+   Research reported in this publication was supported by the National Eye Institute 
+   of the National Institutes of Health under Award Number R43EY024800.
+   The content is solely the responsibility of the authors and does not necessarily
+   represent the official views of the National Institutes of Health.
+
+   This code includes parts of BoofCV: https://github.com/lessthanoptimal/BoofCV
+   
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+ */
+
+package com.lynntech.cps.android;
+
+import java.nio.Buffer;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import android.opengl.GLES11Ext;
+import android.opengl.GLES20;
+
+/**
+ * Headless {@link InstaCamGl} which renders nothing but records the calls.
+ * 
+ * It keeps just enough state to behave like a driver towards the rendering
+ * classes: object names are allocated, shaders always compile and link, and
+ * the locations of the attributes and uniforms are those declared in the
+ * shader sources, -1 for any other name. It also tracks the bound program,
+ * framebuffer, textures, viewport and clear color, to tell the state changes
+ * from the redundant calls.
+ * 
+ * Counters are kept for the current frame, started by {@link #beginFrame()},
+ * and for the whole run.
+ */
+public final class InstaCamGlRecorder implements InstaCamGl {
+
+	/**
+	 * The recorded calls.
+	 */
+	public enum Call {
+		glActiveTexture, glAttachShader, glBindFramebuffer, glBindTexture,
+		glClear, glClearColor, glCompileShader, glCreateProgram,
+		glCreateShader, glDeleteFramebuffers, glDeleteProgram,
+		glDeleteShader, glDeleteTextures, glDrawArrays,
+		glEnableVertexAttribArray, glFramebufferTexture2D, glGenFramebuffers,
+		glGenTextures, glGetAttribLocation, glGetProgramInfoLog,
+		glGetProgramiv, glGetShaderInfoLog, glGetShaderiv,
+		glGetUniformLocation, glLinkProgram, glShaderSource, glTexImage2D,
+		glTexParameteri, glUniform1f, glUniform2f, glUniformMatrix4fv,
+		glUseProgram, glVertexAttribPointer, glViewport
+	}
+
+	/**
+	 * Call counters.
+	 */
+	public static final class Counters {
+		// Number of calls of each kind, indexed by Call ordinal.
+		private final int[] mCalls = new int[Call.values().length];
+		// Number of calls.
+		public long calls;
+		// Number of draw calls.
+		public long draws;
+		// Number of calls which changed the bound objects or other state.
+		public long stateChanges;
+		// Number of calls which set the state to its current value.
+		public long redundantStateChanges;
+		// Number of glUseProgram calls which changed the program.
+		public long programSwitches;
+		// Number of uniform uploads.
+		public long uniformUploads;
+		// Bytes sent to GL: uniforms, texture data, client vertex arrays.
+		public long bytesUploaded;
+		// Bytes of texture storage allocated.
+		public long bytesAllocated;
+
+		/**
+		 * @return Number of calls of the given kind.
+		 */
+		public int getCalls(Call call) {
+			return mCalls[call.ordinal()];
+		}
+
+		/**
+		 * Sets all the counters to zero.
+		 */
+		public void clear() {
+			Arrays.fill(mCalls, 0);
+			calls = draws = stateChanges = redundantStateChanges = 0;
+			programSwitches = uniformUploads = bytesUploaded = bytesAllocated = 0;
+		}
+
+		@Override
+		public String toString() {
+			return String.format("%d calls, %d draws, %d state changes (%d redundant), "
+					+ "%d program switches, %d uniforms, %d bytes uploaded",
+					calls, draws, stateChanges, redundantStateChanges,
+					programSwitches, uniformUploads, bytesUploaded);
+		}
+
+		/**
+		 * @return The number of calls of each kind, for the kinds called at
+		 *         least once.
+		 */
+		public String toCallString() {
+			StringBuilder sb = new StringBuilder();
+			for (Call call : Call.values()) {
+				int n = mCalls[call.ordinal()];
+				if (n > 0) {
+					sb.append(sb.length() > 0 ? ", " : "").append(call).append(' ').append(n);
+				}
+			}
+			return sb.toString();
+		}
+	}
+
+	// Maximum number of texture units and vertex attributes tracked.
+	private static final int MAX_UNITS = 16;
+	// Attribute and uniform declarations in a shader source.
+	private static final Pattern DECLARATION = Pattern.compile(
+			"^\\s*(attribute|uniform)\\s+\\w+\\s+(\\w+)\\s*(?:\\[\\s*\\d+\\s*\\])?\\s*;",
+			Pattern.MULTILINE);
+
+	// Counters of the current frame and of the whole run.
+	private final Counters mFrame = new Counters();
+	private final Counters mTotal = new Counters();
+	// Last object name allocated.
+	private int mLastName;
+	// Source of each shader.
+	private final Map<Integer, String> mShaderSources = new HashMap<Integer, String>();
+	// Sources attached to each program, then locations of each linked program.
+	private final Map<Integer, StringBuilder> mProgramSources = new HashMap<Integer, StringBuilder>();
+	private final Map<Integer, Map<String, Integer>> mAttributes = new HashMap<Integer, Map<String, Integer>>();
+	private final Map<Integer, Map<String, Integer>> mUniforms = new HashMap<Integer, Map<String, Integer>>();
+	// Bound state.
+	private int mProgram, mFramebuffer, mActiveUnit;
+	private final int[] mTexture2D = new int[MAX_UNITS];
+	private final int[] mTextureExternal = new int[MAX_UNITS];
+	private final int[] mViewport = new int[4];
+	private final float[] mClearColor = new float[4];
+	// Vertex attribute arrays: enabled flag, components and bytes per component.
+	private final boolean[] mAttribEnabled = new boolean[MAX_UNITS];
+	private final int[] mAttribBytes = new int[MAX_UNITS];
+
+	/**
+	 * Starts a new frame: the frame counters are set to zero.
+	 */
+	public void beginFrame() {
+		mFrame.clear();
+	}
+
+	/**
+	 * @return Counters since the last call to {@link #beginFrame()}.
+	 */
+	public Counters getFrame() {
+		return mFrame;
+	}
+
+	/**
+	 * @return Counters since the creation of the recorder.
+	 */
+	public Counters getTotal() {
+		return mTotal;
+	}
+
+	private void call(Call call) {
+		mFrame.mCalls[call.ordinal()]++;
+		mFrame.calls++;
+		mTotal.mCalls[call.ordinal()]++;
+		mTotal.calls++;
+	}
+
+	/**
+	 * Counts a state setting call.
+	 * 
+	 * @param changed	True if the call changed the state.
+	 */
+	private void state(boolean changed) {
+		if (changed) {
+			mFrame.stateChanges++;
+			mTotal.stateChanges++;
+		} else {
+			mFrame.redundantStateChanges++;
+			mTotal.redundantStateChanges++;
+		}
+	}
+
+	private void upload(long bytes) {
+		mFrame.bytesUploaded += bytes;
+		mTotal.bytesUploaded += bytes;
+	}
+
+	private void uniform(int location, long bytes) {
+		if (location != -1) {
+			mFrame.uniformUploads++;
+			mTotal.uniformUploads++;
+			upload(bytes);
+		}
+	}
+
+	private int[] boundTextures(int target) {
+		return (target == GLES11Ext.GL_TEXTURE_EXTERNAL_OES) ? mTextureExternal : mTexture2D;
+	}
+
+	private static int bytesPerComponent(int type) {
+		switch (type) {
+		case GLES20.GL_BYTE:
+		case GLES20.GL_UNSIGNED_BYTE:
+			return 1;
+		case GLES20.GL_SHORT:
+		case GLES20.GL_UNSIGNED_SHORT:
+			return 2;
+		default:
+			return 4;
+		}
+	}
+
+	@Override
+	public void glActiveTexture(int texture) {
+		call(Call.glActiveTexture);
+		int unit = texture - GLES20.GL_TEXTURE0;
+		state(unit != mActiveUnit);
+		mActiveUnit = unit;
+	}
+
+	@Override
+	public void glAttachShader(int program, int shader) {
+		call(Call.glAttachShader);
+		StringBuilder sources = mProgramSources.get(program);
+		String source = mShaderSources.get(shader);
+		if (sources != null && source != null) {
+			sources.append(source).append('\n');
+		}
+	}
+
+	@Override
+	public void glBindFramebuffer(int target, int framebuffer) {
+		call(Call.glBindFramebuffer);
+		state(framebuffer != mFramebuffer);
+		mFramebuffer = framebuffer;
+	}
+
+	@Override
+	public void glBindTexture(int target, int texture) {
+		call(Call.glBindTexture);
+		int[] bound = boundTextures(target);
+		state(bound[mActiveUnit] != texture);
+		bound[mActiveUnit] = texture;
+	}
+
+	@Override
+	public void glClear(int mask) {
+		call(Call.glClear);
+	}
+
+	@Override
+	public void glClearColor(float red, float green, float blue, float alpha) {
+		call(Call.glClearColor);
+		boolean changed = mClearColor[0] != red || mClearColor[1] != green
+				|| mClearColor[2] != blue || mClearColor[3] != alpha;
+		state(changed);
+		mClearColor[0] = red;
+		mClearColor[1] = green;
+		mClearColor[2] = blue;
+		mClearColor[3] = alpha;
+	}
+
+	@Override
+	public void glCompileShader(int shader) {
+		call(Call.glCompileShader);
+	}
+
+	@Override
+	public int glCreateProgram() {
+		call(Call.glCreateProgram);
+		int program = ++mLastName;
+		mProgramSources.put(program, new StringBuilder());
+		return program;
+	}
+
+	@Override
+	public int glCreateShader(int type) {
+		call(Call.glCreateShader);
+		return ++mLastName;
+	}
+
+	@Override
+	public void glDeleteFramebuffers(int n, int[] framebuffers, int offset) {
+		call(Call.glDeleteFramebuffers);
+	}
+
+	@Override
+	public void glDeleteProgram(int program) {
+		call(Call.glDeleteProgram);
+		mProgramSources.remove(program);
+		mAttributes.remove(program);
+		mUniforms.remove(program);
+	}
+
+	@Override
+	public void glDeleteShader(int shader) {
+		call(Call.glDeleteShader);
+		mShaderSources.remove(shader);
+	}
+
+	@Override
+	public void glDeleteTextures(int n, int[] textures, int offset) {
+		call(Call.glDeleteTextures);
+	}
+
+	@Override
+	public void glDrawArrays(int mode, int first, int count) {
+		call(Call.glDrawArrays);
+		mFrame.draws++;
+		mTotal.draws++;
+		// client side arrays are sent at each draw
+		for (int i = 0; i < MAX_UNITS; i++) {
+			if (mAttribEnabled[i]) {
+				upload((long) count * mAttribBytes[i]);
+			}
+		}
+	}
+
+	@Override
+	public void glEnableVertexAttribArray(int index) {
+		call(Call.glEnableVertexAttribArray);
+		if (index >= 0 && index < MAX_UNITS) {
+			state(!mAttribEnabled[index]);
+			mAttribEnabled[index] = true;
+		}
+	}
+
+	@Override
+	public void glFramebufferTexture2D(int target, int attachment,
+			int textarget, int texture, int level) {
+		call(Call.glFramebufferTexture2D);
+	}
+
+	@Override
+	public void glGenFramebuffers(int n, int[] framebuffers, int offset) {
+		call(Call.glGenFramebuffers);
+		for (int i = 0; i < n; i++) {
+			framebuffers[offset + i] = ++mLastName;
+		}
+	}
+
+	@Override
+	public void glGenTextures(int n, int[] textures, int offset) {
+		call(Call.glGenTextures);
+		for (int i = 0; i < n; i++) {
+			textures[offset + i] = ++mLastName;
+		}
+	}
+
+	@Override
+	public int glGetAttribLocation(int program, String name) {
+		call(Call.glGetAttribLocation);
+		return location(mAttributes.get(program), name);
+	}
+
+	@Override
+	public String glGetProgramInfoLog(int program) {
+		call(Call.glGetProgramInfoLog);
+		return "";
+	}
+
+	@Override
+	public void glGetProgramiv(int program, int pname, int[] params, int offset) {
+		call(Call.glGetProgramiv);
+		params[offset] = (pname == GLES20.GL_LINK_STATUS) ? GLES20.GL_TRUE : 0;
+	}
+
+	@Override
+	public String glGetShaderInfoLog(int shader) {
+		call(Call.glGetShaderInfoLog);
+		return "";
+	}
+
+	@Override
+	public void glGetShaderiv(int shader, int pname, int[] params, int offset) {
+		call(Call.glGetShaderiv);
+		params[offset] = (pname == GLES20.GL_COMPILE_STATUS) ? GLES20.GL_TRUE : 0;
+	}
+
+	@Override
+	public int glGetUniformLocation(int program, String name) {
+		call(Call.glGetUniformLocation);
+		return location(mUniforms.get(program), name);
+	}
+
+	private static int location(Map<String, Integer> locations, String name) {
+		Integer location = (locations != null) ? locations.get(name) : null;
+		return (location != null) ? location : -1;
+	}
+
+	@Override
+	public void glLinkProgram(int program) {
+		call(Call.glLinkProgram);
+		StringBuilder sources = mProgramSources.get(program);
+		if (sources == null) {
+			return;
+		}
+		Map<String, Integer> attributes = new HashMap<String, Integer>();
+		Map<String, Integer> uniforms = new HashMap<String, Integer>();
+		Matcher m = DECLARATION.matcher(sources);
+		while (m.find()) {
+			Map<String, Integer> locations = m.group(1).equals("attribute") ? attributes : uniforms;
+			if (!locations.containsKey(m.group(2))) {
+				locations.put(m.group(2), locations.size());
+			}
+		}
+		mAttributes.put(program, attributes);
+		mUniforms.put(program, uniforms);
+	}
+
+	@Override
+	public void glShaderSource(int shader, String string) {
+		call(Call.glShaderSource);
+		mShaderSources.put(shader, string);
+	}
+
+	@Override
+	public void glTexImage2D(int target, int level, int internalformat,
+			int width, int height, int border, int format, int type,
+			Buffer pixels) {
+		call(Call.glTexImage2D);
+		long bytes = (long) width * height * 4;
+		mFrame.bytesAllocated += bytes;
+		mTotal.bytesAllocated += bytes;
+		if (pixels != null) {
+			upload(bytes);
+		}
+	}
+
+	@Override
+	public void glTexParameteri(int target, int pname, int param) {
+		call(Call.glTexParameteri);
+	}
+
+	@Override
+	public void glUniform1f(int location, float x) {
+		call(Call.glUniform1f);
+		uniform(location, 4);
+	}
+
+	@Override
+	public void glUniform2f(int location, float x, float y) {
+		call(Call.glUniform2f);
+		uniform(location, 8);
+	}
+
+	@Override
+	public void glUniformMatrix4fv(int location, int count, boolean transpose,
+			float[] value, int offset) {
+		call(Call.glUniformMatrix4fv);
+		uniform(location, 64L * count);
+	}
+
+	@Override
+	public void glUseProgram(int program) {
+		call(Call.glUseProgram);
+		boolean changed = program != mProgram;
+		state(changed);
+		if (changed) {
+			mFrame.programSwitches++;
+			mTotal.programSwitches++;
+		}
+		mProgram = program;
+	}
+
+	@Override
+	public void glVertexAttribPointer(int indx, int size, int type,
+			boolean normalized, int stride, Buffer ptr) {
+		call(Call.glVertexAttribPointer);
+		if (indx >= 0 && indx < MAX_UNITS) {
+			mAttribBytes[indx] = size * bytesPerComponent(type);
+		}
+	}
+
+	@Override
+	public void glViewport(int x, int y, int width, int height) {
+		call(Call.glViewport);
+		boolean changed = mViewport[0] != x || mViewport[1] != y
+				|| mViewport[2] != width || mViewport[3] != height;
+		state(changed);
+		mViewport[0] = x;
+		mViewport[1] = y;
+		mViewport[2] = width;
+		mViewport[3] = height;
+	}
+}
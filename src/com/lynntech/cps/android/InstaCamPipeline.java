@@ -0,0 +1,523 @@
+/*
+   Copyright 2015 Lynntech Inc. 
+   Contact information:
+   - Victor Palmer, 		victor.palmer[\AT]lynntech.com
+   - Christian Bruccoleri, 	christian.bruccoleri[\AT]lynntech.com
+   
+   Research reported in this publication was supported by the National Eye Institute 
+   of the National Institutes of Health under Award Number R43EY024800.
+   The content is solely the responsibility of the authors and does not necessarily
+   represent the official views of the National Institutes of Health.
+
+   This code includes parts of BoofCV: https://github.com/lessthanoptimal/BoofCV
+   
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+ */
+
+package com.lynntech.cps.android;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import android.opengl.GLES11Ext;
+import android.opengl.GLES20;
+
+/**
+ * GL side of {@link InstaCamRenderer}: shaders, FBOs and the rendering of a
+ * frame, independent of GLSurfaceView and SurfaceTexture. Every GL call goes
+ * through an {@link InstaCamGl}, so the same code renders on the device and
+ * runs off-device against {@link InstaCamGlRecorder}.
+ * 
+ * The camera frame is rendered onto the screen through the chain of filters
+ * of {@link InstaCamData#mFilterStages}, or the single filter selected by
+ * {@link InstaCamData#mFilter}. The chain is compiled into render passes by
+ * {@link InstaCamFilterGraph}: filters which only transform the color of each
+ * pixel are fused into a single pass, which samples the external OES texture
+ * of the camera directly when it comes first. Intermediate results go to a
+ * pool of offscreen textures, allocated on first use; the copy of the camera
+ * frame needed by a first filter sampling neighboring texels is made once for
+ * each new frame. The shader of each pass is generated from filter_vs and
+ * filter_fs, and compiled once per GL context.
+ */
+public final class InstaCamPipeline {
+
+	// Filter names, in the order of the filter Spinner: the index is the
+	// value of InstaCamData.mFilter. The function of each filter is in raw
+	// resource filter_<name>_fs.
+	public static final String[] FILTER_NAMES = { "default", "blackandwhite",
+			"ansel", "sepia", "retro", "georgia", "sahara", "polaroid",
+			"cartoon", "edges", "undistort" };
+
+	// Number of offscreen targets: the camera frame copy and two for the
+	// intermediate results, in turn.
+	private static final int TARGET_COUNT = 3;
+
+	// GL implementation.
+	private final InstaCamGl mGl;
+	// View aspect ratio.
+	private final float mAspectRatio[] = new float[2];
+	// External OES texture holder, camera preview that is.
+	private final InstaCamFbo mFboExternal;
+	// Offscreen targets of the passes, indexed as in InstaCamFilterGraph.
+	private final InstaCamFbo[] mTargets = new InstaCamFbo[TARGET_COUNT];
+	// Full view quad vertices.
+	private final ByteBuffer mFullQuadVertices;
+	// Shader for copying preview texture into offscreen one.
+	private final InstaCamShader mShaderCopyOes;
+	private final InstaCamShader.Attribute mCopyPosition;
+	private final InstaCamShader.UniformMatrix4f mCopyOrientationM;
+	private final InstaCamShader.UniformMatrix4f mCopyTransformM;
+	// Filter graph compiler and shader templates, from the shader sources.
+	private InstaCamFilterGraph mGraph;
+	private String mFilterVertex, mFilterFragment;
+	// Filter shaders of the current GL context, by pass key.
+	private final Map<String, FilterShader> mFilterShaders = new HashMap<String, FilterShader>();
+	// Errors of the shaders compiled while rendering, not reported yet.
+	private final List<String> mErrors = new ArrayList<String>();
+	// Current plan: the filter chain it was compiled for, its passes and the
+	// shader of each pass (null for the copy).
+	private int[] mPlanStages;
+	private boolean mPlanDirect;
+	private List<InstaCamFilterGraph.Pass> mPlan;
+	private FilterShader[] mPlanShaders;
+	// Chain of the single filter of InstaCamData.mFilter.
+	private final int[] mSingleStage = new int[1];
+	// If false, the camera frame is copied offscreen for all the filters.
+	private boolean mDirectRender = true;
+	// Transform matrix of the last camera frame, valid once there is one.
+	private final float[] mTransformM = new float[16];
+	private boolean mHasFrame;
+	// True if the copy target holds the last camera frame.
+	private boolean mCopyValid;
+	// Shared data instance.
+	private InstaCamData mSharedData;
+	// View width and height.
+	private int mWidth, mHeight;
+
+	/**
+	 * @param gl	GL implementation.
+	 */
+	public InstaCamPipeline(InstaCamGl gl) {
+		mGl = gl;
+		mFboExternal = new InstaCamFbo(gl);
+		for (int i = 0; i < mTargets.length; ++i) {
+			mTargets[i] = new InstaCamFbo(gl);
+		}
+
+		// Create full scene quad buffer.
+		final byte FULL_QUAD_COORDS[] = { -1, 1, -1, -1, 1, 1, 1, -1 };
+		mFullQuadVertices = ByteBuffer.allocateDirect(4 * 2);
+		mFullQuadVertices.put(FULL_QUAD_COORDS).position(0);
+
+		mShaderCopyOes = new InstaCamShader(gl);
+		mCopyPosition = mShaderCopyOes.attribute("aPosition");
+		mCopyOrientationM = mShaderCopyOes.uniformMatrix4f("uOrientationM");
+		mCopyTransformM = mShaderCopyOes.uniformMatrix4f("uTransformM");
+	}
+
+	/**
+	 * Gathers the shader sources in the order expected by
+	 * {@link #onSurfaceCreated(String[])}: vertex and fragment source of the
+	 * copy shader, the filter templates, then the function of each filter in
+	 * the order of FILTER_NAMES.
+	 * 
+	 * @param copyVertex		Source of copy_oes_vs.
+	 * @param copyFragment		Source of copy_oes_fs.
+	 * @param filterVertex		Source of filter_vs.
+	 * @param filterFragment	Source of filter_fs, the filter template.
+	 * @param filterFunctions	Source of the function of each filter.
+	 */
+	public static String[] shaderSources(String copyVertex,
+			String copyFragment, String filterVertex, String filterFragment,
+			String[] filterFunctions) {
+		String[] sources = new String[4 + filterFunctions.length];
+		sources[0] = copyVertex;
+		sources[1] = copyFragment;
+		sources[2] = filterVertex;
+		sources[3] = filterFragment;
+		System.arraycopy(filterFunctions, 0, sources, 4,
+				filterFunctions.length);
+		return sources;
+	}
+
+	/**
+	 * Compiles the shaders in a new GL context and releases the textures of
+	 * the previous one. The shaders of the single filter chains are compiled
+	 * here, the others on first use.
+	 * 
+	 * @param sources	Sources from {@link #shaderSources}.
+	 * @return Error message of each shader which could not be compiled.
+	 */
+	public List<String> onSurfaceCreated(String[] sources) {
+		List<String> errors = new ArrayList<String>();
+
+		// reset FBO
+		mFboExternal.reset();
+		for (InstaCamFbo target : mTargets) {
+			target.reset();
+		}
+		mCopyValid = false;
+
+		// Programs of the previous context are gone with it.
+		mFilterShaders.clear();
+		mPlan = null;
+
+		// Try to load shaders: Copy OES shader
+		try {
+			mShaderCopyOes.setProgram(sources[0], sources[1]);
+		} catch (Exception ex) {
+			errors.add(ex.getMessage());
+		}
+		// load all filters
+		mFilterVertex = sources[2];
+		mFilterFragment = sources[3];
+		mGraph = new InstaCamFilterGraph(Arrays.copyOfRange(sources, 4,
+				sources.length));
+		for (int i = 0; i < FILTER_NAMES.length; ++i) {
+			mSingleStage[0] = i;
+			for (InstaCamFilterGraph.Pass pass : mGraph.compile(mSingleStage,
+					mDirectRender)) {
+				if (!pass.copy) {
+					filterShader(pass, errors);
+				}
+			}
+		}
+		return errors;
+	}
+
+	/**
+	 * Sizes the textures to the view.
+	 */
+	public void onSurfaceChanged(int width, int height) {
+
+		// Store width and height.
+		mWidth = width;
+		mHeight = height;
+
+		// Calculate view aspect ratio.
+		mAspectRatio[0] = (float) Math.min(mWidth, mHeight) / mWidth;
+		mAspectRatio[1] = (float) Math.min(mWidth, mHeight) / mHeight;
+
+		// Initialize textures; the offscreen ones are allocated only once a
+		// pass needs them.
+		if (mFboExternal.getWidth() != mWidth
+				|| mFboExternal.getHeight() != mHeight) {
+			mFboExternal.init(mWidth, mHeight, 1, true);
+		}
+		for (InstaCamFbo target : mTargets) {
+			if (target.getWidth() != 0
+					&& (target.getWidth() != mWidth
+					|| target.getHeight() != mHeight)) {
+				target.init(mWidth, mHeight, 1, false);
+			}
+		}
+		mCopyValid = false;
+	}
+
+	/**
+	 * @return Name of the external OES texture the camera preview goes to.
+	 */
+	public int getExternalTexture() {
+		return mFboExternal.getTexture(0);
+	}
+
+	/**
+	 * Enables the direct rendering of the camera texture when the first
+	 * filter allows it; if disabled, every frame is copied offscreen first.
+	 */
+	public void setDirectRender(boolean directRender) {
+		mDirectRender = directRender;
+	}
+
+	/**
+	 * @return Number of offscreen textures allocated.
+	 */
+	public int getOffscreenCount() {
+		int count = 0;
+		for (InstaCamFbo target : mTargets) {
+			if (target.getWidth() != 0) {
+				count++;
+			}
+		}
+		return count;
+	}
+
+	/**
+	 * @return Passes of the last frame, empty before the first one.
+	 */
+	public List<InstaCamFilterGraph.Pass> getPlan() {
+		if (mPlan == null) {
+			return new ArrayList<InstaCamFilterGraph.Pass>();
+		}
+		return new ArrayList<InstaCamFilterGraph.Pass>(mPlan);
+	}
+
+	/**
+	 * @return Error message of each shader compiled while rendering since
+	 *         the last call.
+	 */
+	public List<String> takeErrors() {
+		List<String> errors = new ArrayList<String>(mErrors);
+		mErrors.clear();
+		return errors;
+	}
+
+	/**
+	 * Setter for shared data.
+	 */
+	public void setSharedData(InstaCamData sharedData) {
+		mSharedData = sharedData;
+	}
+
+	/**
+	 * Renders a frame onto the screen.
+	 * 
+	 * @param transformM	Transform matrix of a new camera frame in the
+	 *            external texture, or null to render the last frame again.
+	 */
+	public void onDrawFrame(float[] transformM) {
+
+		// Clear view.
+		mGl.glClearColor(.5f, .5f, .5f, 1f);
+		mGl.glClear(GLES20.GL_COLOR_BUFFER_BIT);
+
+		// If we have new preview texture.
+		if (transformM != null) {
+			System.arraycopy(transformM, 0, mTransformM, 0, 16);
+			mHasFrame = true;
+			mCopyValid = false;
+		}
+
+		// No shader sources.
+		if (mGraph == null) {
+			return;
+		}
+
+		int[] stages = mSharedData.mFilterStages;
+		if (stages == null) {
+			int filter = mSharedData.mFilter;
+			mSingleStage[0] = (filter < 0 || filter >= FILTER_NAMES.length) ? 0
+					: filter;
+			stages = mSingleStage;
+		}
+		if (mPlan == null || mPlanDirect != mDirectRender
+				|| !Arrays.equals(mPlanStages, stages)) {
+			compilePlan(stages);
+		}
+
+		for (int i = 0; i < mPlanShaders.length; ++i) {
+			InstaCamFilterGraph.Pass pass = mPlan.get(i);
+			if (pass.copy) {
+				// Copy the camera frame offscreen, unless done already.
+				if (mHasFrame && !mCopyValid) {
+					copyOffscreen(target(pass.target));
+					mCopyValid = true;
+				}
+			} else {
+				renderPass(pass, mPlanShaders[i]);
+			}
+		}
+	}
+
+	/**
+	 * Compiles a filter chain into the current plan, with the shader of each
+	 * pass; the errors are kept for {@link #takeErrors()}.
+	 */
+	private void compilePlan(int[] stages) {
+		mPlan = mGraph.compile(stages, mDirectRender);
+		mPlanStages = stages.clone();
+		mPlanDirect = mDirectRender;
+		mPlanShaders = new FilterShader[mPlan.size()];
+		for (int i = 0; i < mPlanShaders.length; ++i) {
+			InstaCamFilterGraph.Pass pass = mPlan.get(i);
+			if (!pass.copy) {
+				mPlanShaders[i] = filterShader(pass, mErrors);
+			}
+		}
+	}
+
+	/**
+	 * Returns the shader of a filter pass, compiling it if needed; a shader
+	 * which could not be compiled is not linked, and not compiled again.
+	 */
+	private FilterShader filterShader(InstaCamFilterGraph.Pass pass,
+			List<String> errors) {
+		String key = pass.getKey();
+		FilterShader filterShader = mFilterShaders.get(key);
+		if (filterShader == null) {
+			filterShader = new FilterShader(mGl);
+			try {
+				filterShader.shader.setProgram(
+						mGraph.vertexSource(mFilterVertex, pass),
+						mGraph.fragmentSource(mFilterFragment, pass));
+				filterShader.linked = true;
+			} catch (Exception ex) {
+				errors.add(ex.getMessage());
+			}
+			mFilterShaders.put(key, filterShader);
+		}
+		return filterShader;
+	}
+
+	/**
+	 * Returns an offscreen target sized to the view, allocating it if needed.
+	 */
+	private InstaCamFbo target(int index) {
+		InstaCamFbo target = mTargets[index];
+		if (target.getWidth() != mWidth || target.getHeight() != mHeight) {
+			target.init(mWidth, mHeight, 1, false);
+		}
+		return target;
+	}
+
+	/**
+	 * Renders a filter pass into its target.
+	 */
+	private void renderPass(InstaCamFilterGraph.Pass pass,
+			FilterShader filterShader) {
+		if (!filterShader.linked) {
+			return;
+		}
+
+		if (pass.isLast()) {
+			// Bind screen buffer into use.
+			mGl.glBindFramebuffer(GLES20.GL_FRAMEBUFFER, 0);
+			mGl.glViewport(0, 0, mWidth, mHeight);
+		} else {
+			// Bind offscreen texture into use.
+			InstaCamFbo target = target(pass.target);
+			target.bind();
+			target.bindTexture(0);
+		}
+
+		// Take filter shader into use.
+		filterShader.shader.useProgram();
+
+		// Filter specific uniform variables, ignored by filters not using them.
+		filterShader.uPixelSize.set(1.0f / mWidth, 1.0f / mHeight);
+		if (filterShader.uRadial.getLocation() != -1) {
+			filterShader.uRadial.set(mSharedData.getRadial());
+			filterShader.uCenter.set(mSharedData.getCenter());
+			filterShader.uWidth.set(mSharedData.imWidth);
+			filterShader.uHeight.set(mSharedData.imHeight);
+		}
+		if (pass.isExternal()) {
+			filterShader.uOrientationM.set(mSharedData.mOrientationM, 0);
+			filterShader.uTransformM.set(mTransformM, 0);
+		}
+
+		// The adjustments apply to the last pass only; unchanged values are
+		// not uploaded.
+		if (pass.isLast()) {
+			filterShader.uBrightness.set(mSharedData.mBrightness);
+			filterShader.uContrast.set(mSharedData.mContrast);
+			filterShader.uSaturation.set(mSharedData.mSaturation);
+			filterShader.uCornerRadius.set(mSharedData.mCornerRadius);
+
+			filterShader.uAspectRatio.set(mAspectRatio, 0);
+			filterShader.uAspectRatioPreview.set(
+					mSharedData.mAspectRatioPreview, 0);
+		}
+
+		// Use camera or offscreen texture as source.
+		mGl.glActiveTexture(GLES20.GL_TEXTURE0);
+		if (pass.isExternal()) {
+			mGl.glBindTexture(GLES11Ext.GL_TEXTURE_EXTERNAL_OES,
+					mFboExternal.getTexture(0));
+		} else {
+			mGl.glBindTexture(GLES20.GL_TEXTURE_2D,
+					target(pass.source).getTexture(0));
+		}
+
+		// Trigger actual rendering.
+		renderQuad(filterShader.aPosition.getLocation());
+	}
+
+	/**
+	 * Copies the last camera frame into an offscreen target.
+	 */
+	private void copyOffscreen(InstaCamFbo target) {
+		// Bind offscreen texture into use.
+		target.bind();
+		target.bindTexture(0);
+
+		// Take copy shader into use.
+		mShaderCopyOes.useProgram();
+
+		// We're about to transform external texture here already.
+		mCopyOrientationM.set(mSharedData.mOrientationM, 0);
+		mCopyTransformM.set(mTransformM, 0);
+
+		// We're using external OES texture as source.
+		mGl.glActiveTexture(GLES20.GL_TEXTURE0);
+		mGl.glBindTexture(GLES11Ext.GL_TEXTURE_EXTERNAL_OES,
+				mFboExternal.getTexture(0));
+
+		// Trigger actual rendering.
+		renderQuad(mCopyPosition.getLocation());
+	}
+
+	/**
+	 * Renders fill screen quad using given GLES id/name.
+	 */
+	private void renderQuad(int aPosition) {
+		mGl.glVertexAttribPointer(aPosition, 2, GLES20.GL_BYTE, false, 0,
+				mFullQuadVertices);
+		mGl.glEnableVertexAttribArray(aPosition);
+		mGl.glDrawArrays(GLES20.GL_TRIANGLE_STRIP, 0, 4);
+	}
+
+	/**
+	 * Filter shader with the slots of its attributes and uniforms. All the
+	 * filter passes share filter_vs and filter_fs; the slots of the uniforms
+	 * a pass does not use have location -1.
+	 */
+	private static final class FilterShader {
+		// False if the shader could not be compiled.
+		boolean linked;
+		final InstaCamShader shader;
+		final InstaCamShader.Attribute aPosition;
+		final InstaCamShader.Uniform1f uBrightness, uContrast, uSaturation,
+				uCornerRadius;
+		final InstaCamShader.Uniform2f uAspectRatio, uAspectRatioPreview;
+		// Cartoon and edges.
+		final InstaCamShader.Uniform2f uPixelSize;
+		// Undistort.
+		final InstaCamShader.Uniform1f uWidth, uHeight;
+		final InstaCamShader.Uniform2f uRadial, uCenter;
+		// Camera texture transform, passes sampling the camera texture.
+		final InstaCamShader.UniformMatrix4f uOrientationM, uTransformM;
+
+		FilterShader(InstaCamGl gl) {
+			shader = new InstaCamShader(gl);
+			aPosition = shader.attribute("aPosition");
+			uBrightness = shader.uniform1f("uBrightness");
+			uContrast = shader.uniform1f("uContrast");
+			uSaturation = shader.uniform1f("uSaturation");
+			uCornerRadius = shader.uniform1f("uCornerRadius");
+			uAspectRatio = shader.uniform2f("uAspectRatio");
+			uAspectRatioPreview = shader.uniform2f("uAspectRatioPreview");
+			uPixelSize = shader.uniform2f("uPixelSize");
+			uWidth = shader.uniform1f("imWidth");
+			uHeight = shader.uniform1f("imHeight");
+			uRadial = shader.uniform2f("radial");
+			uCenter = shader.uniform2f("center");
+			uOrientationM = shader.uniformMatrix4f("uOrientationM");
+			uTransformM = shader.uniformMatrix4f("uTransformM");
+		}
+	}
+}
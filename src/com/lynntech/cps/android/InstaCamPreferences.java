@@ -0,0 +1,145 @@
+/*
+   Copyright 2015 Lynntech Inc. 
+   Contact information:
+   - Victor Palmer, 		victor.palmer[\AT]lynntech.com
+   - Christian Bruccoleri, 	christian.bruccoleri[\AT]lynntech.com
+   
+   Research reported in this publication was supported by the National Eye Institute 
+   of the National Institutes of Health under Award Number R43EY024800.
+   The content is solely the responsibility of the authors and does not necessarily
+   represent the official views of the National Institutes of Health.
+
+   This code includes parts of BoofCV: https://github.com/lessthanoptimal/BoofCV
+   
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+ */
+
+package com.lynntech.cps.android;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import android.content.SharedPreferences;
+import android.os.Handler;
+import android.os.Looper;
+import android.util.Log;
+
+/**
+ * Write-behind cache of integer preferences.
+ * 
+ * Values are kept in memory and written to the underlying SharedPreferences
+ * only once no value has changed for a quiet period, or when {@link #flush()}
+ * is called, e.g. from Activity.onPause(). Dragging a SeekBar thus produces a
+ * single write instead of one for each progress step. Writes use
+ * {@code SharedPreferences.Editor.apply()}, which updates the preferences in
+ * memory at once and writes the file on a background thread.
+ * 
+ * Must be used from the main thread only.
+ */
+public final class InstaCamPreferences {
+
+	// Default quiet period before pending values are written, in milliseconds.
+	public static final long DEFAULT_DELAY = 500;
+	// Log tag.
+	private static final String TAG = "PREFERENCES";
+	// Underlying preferences.
+	private final SharedPreferences mPreferences;
+	// Values changed since the last write.
+	private final Map<String, Integer> mPending = new HashMap<String, Integer>();
+	// Handler for the delayed write.
+	private final Handler mHandler = new Handler(Looper.getMainLooper());
+	// Quiet period, in milliseconds.
+	private final long mDelay;
+	// Number of values set, and number of values written.
+	private long mUpdateCount, mWrittenCount;
+	// Number of writes of the preferences file.
+	private long mFlushCount;
+	// Delayed write.
+	private final Runnable mFlush = new Runnable() {
+		@Override
+		public void run() {
+			flush();
+		}
+	};
+
+	/**
+	 * @param preferences	Underlying preferences.
+	 * @param delay		Quiet period before pending values are written, in
+	 *            milliseconds.
+	 */
+	public InstaCamPreferences(SharedPreferences preferences, long delay) {
+		mPreferences = preferences;
+		mDelay = delay;
+	}
+
+	/**
+	 * @param preferences	Underlying preferences.
+	 */
+	public InstaCamPreferences(SharedPreferences preferences) {
+		this(preferences, DEFAULT_DELAY);
+	}
+
+	/**
+	 * @return The value set last for the given key, written or not; defValue
+	 *         if there is none.
+	 */
+	public int getInt(String key, int defValue) {
+		Integer value = mPending.get(key);
+		return (value != null) ? value : mPreferences.getInt(key, defValue);
+	}
+
+	/**
+	 * Sets a value, to be written after the quiet period.
+	 */
+	public void putInt(String key, int value) {
+		mPending.put(key, value);
+		mUpdateCount++;
+		mHandler.removeCallbacks(mFlush);
+		mHandler.postDelayed(mFlush, mDelay);
+	}
+
+	/**
+	 * Writes the pending values now, if any.
+	 */
+	public void flush() {
+		mHandler.removeCallbacks(mFlush);
+		if (mPending.isEmpty()) {
+			return;
+		}
+		SharedPreferences.Editor editor = mPreferences.edit();
+		for (Map.Entry<String, Integer> entry : mPending.entrySet()) {
+			editor.putInt(entry.getKey(), entry.getValue());
+		}
+		editor.apply();
+		mWrittenCount += mPending.size();
+		mFlushCount++;
+		mPending.clear();
+		Log.d(TAG, String.format("%d updates, %d writes, %d coalesced",
+				mUpdateCount, mFlushCount, getCoalescedCount()));
+	}
+
+	/**
+	 * @return Number of values set that have been overwritten before being
+	 *         written.
+	 */
+	public long getCoalescedCount() {
+		return mUpdateCount - mWrittenCount - mPending.size();
+	}
+
+	/**
+	 * @return Number of writes of the preferences file.
+	 */
+	public long getFlushCount() {
+		return mFlushCount;
+	}
+}
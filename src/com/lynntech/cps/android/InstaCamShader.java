@@ -46,31 +46,118 @@
 
 package com.lynntech.cps.android;
 
+import java.nio.FloatBuffer;
+import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.List;
 
 import android.opengl.GLES20;
 import android.util.Log;
 
 /**
  * Helper class for handling shaders.
+ * 
+ * Attributes and uniforms used at every frame should be declared once with
+ * {@link #attribute(String)}, {@link #uniform1f(String)} etc. The returned
+ * slots are resolved each time the program is linked, and each uniform slot
+ * keeps the value last uploaded to the program: setting the same value again
+ * makes no GL call. Since uniform values belong to the program, a slot must
+ * be set only while its program is in use.
  */
 public final class InstaCamShader {
 
+	// GL implementation.
+	private final InstaCamGl mGl;
 	// Shader program handles.
 	private int mProgram = 0;
 	private int mShaderFragment = 0;
 	// HashMap for storing uniform/attribute handles.
 	private final HashMap<String, Integer> mShaderHandleMap = new HashMap<String, Integer>();
 	private int mShaderVertex = 0;
+	// Declared attribute and uniform slots.
+	private final List<Slot> mSlots = new ArrayList<Slot>();
+
+	/**
+	 * Creates a shader rendering on the device.
+	 */
+	public InstaCamShader() {
+		this(InstaCamGles20.INSTANCE);
+	}
+
+	/**
+	 * Creates a shader using the given GL implementation.
+	 */
+	public InstaCamShader(InstaCamGl gl) {
+		mGl = gl;
+	}
 
 	/**
 	 * Deletes program and shaders associated with it.
 	 */
 	public void deleteProgram() {
-		GLES20.glDeleteShader(mShaderFragment);
-		GLES20.glDeleteShader(mShaderVertex);
-		GLES20.glDeleteProgram(mProgram);
+		mGl.glDeleteShader(mShaderFragment);
+		mGl.glDeleteShader(mShaderVertex);
+		mGl.glDeleteProgram(mProgram);
 		mProgram = mShaderVertex = mShaderFragment = 0;
+		resolveSlots();
+	}
+
+	/**
+	 * Declares an attribute.
+	 * 
+	 * @param name	Name of the attribute.
+	 * @return The attribute slot, resolved at each link.
+	 */
+	public Attribute attribute(String name) {
+		return addSlot(new Attribute(name));
+	}
+
+	/**
+	 * Declares a float uniform.
+	 * 
+	 * @param name	Name of the uniform.
+	 * @return The uniform slot, resolved at each link.
+	 */
+	public Uniform1f uniform1f(String name) {
+		return addSlot(new Uniform1f(name));
+	}
+
+	/**
+	 * Declares a vec2 uniform.
+	 * 
+	 * @param name	Name of the uniform.
+	 * @return The uniform slot, resolved at each link.
+	 */
+	public Uniform2f uniform2f(String name) {
+		return addSlot(new Uniform2f(name));
+	}
+
+	/**
+	 * Declares a mat4 uniform.
+	 * 
+	 * @param name	Name of the uniform.
+	 * @return The uniform slot, resolved at each link.
+	 */
+	public UniformMatrix4f uniformMatrix4f(String name) {
+		return addSlot(new UniformMatrix4f(name));
+	}
+
+	/**
+	 * Adds a slot, resolving it at once if the program is linked already.
+	 */
+	private <T extends Slot> T addSlot(T slot) {
+		mSlots.add(slot);
+		slot.resolve(mProgram);
+		return slot;
+	}
+
+	/**
+	 * Resolves all the slots against the current program.
+	 */
+	private void resolveSlots() {
+		for (Slot slot : mSlots) {
+			slot.resolve(mProgram);
+		}
 	}
 
 	/**
@@ -84,9 +171,9 @@ public final class InstaCamShader {
 		if (mShaderHandleMap.containsKey(name)) {
 			return mShaderHandleMap.get(name);
 		}
-		int handle = GLES20.glGetAttribLocation(mProgram, name);
+		int handle = mGl.glGetAttribLocation(mProgram, name);
 		if (handle == -1) {
-			handle = GLES20.glGetUniformLocation(mProgram, name);
+			handle = mGl.glGetUniformLocation(mProgram, name);
 		}
 		if (handle == -1) {
 			// One should never leave log messages but am not going to follow
@@ -125,15 +212,15 @@ public final class InstaCamShader {
 	 * @return id for compiled shader
 	 */
 	private int loadShader(int shaderType, String source) throws Exception {
-		int shader = GLES20.glCreateShader(shaderType);
+		int shader = mGl.glCreateShader(shaderType);
 		if (shader != 0) {
-			GLES20.glShaderSource(shader, source);
-			GLES20.glCompileShader(shader);
+			mGl.glShaderSource(shader, source);
+			mGl.glCompileShader(shader);
 			int[] compiled = new int[1];
-			GLES20.glGetShaderiv(shader, GLES20.GL_COMPILE_STATUS, compiled, 0);
+			mGl.glGetShaderiv(shader, GLES20.GL_COMPILE_STATUS, compiled, 0);
 			if (compiled[0] == 0) {
-				String error = GLES20.glGetShaderInfoLog(shader);
-				GLES20.glDeleteShader(shader);
+				String error = mGl.glGetShaderInfoLog(shader);
+				mGl.glDeleteShader(shader);
 				throw new Exception(error);
 			}
 		}
@@ -155,28 +242,215 @@ public final class InstaCamShader {
 			throws Exception {
 		mShaderVertex = loadShader(GLES20.GL_VERTEX_SHADER, vertexSource);
 		mShaderFragment = loadShader(GLES20.GL_FRAGMENT_SHADER, fragmentSource);
-		int program = GLES20.glCreateProgram();
+		int program = mGl.glCreateProgram();
 		if (program != 0) {
-			GLES20.glAttachShader(program, mShaderVertex);
-			GLES20.glAttachShader(program, mShaderFragment);
-			GLES20.glLinkProgram(program);
+			mGl.glAttachShader(program, mShaderVertex);
+			mGl.glAttachShader(program, mShaderFragment);
+			mGl.glLinkProgram(program);
 			int[] linkStatus = new int[1];
-			GLES20.glGetProgramiv(program, GLES20.GL_LINK_STATUS, linkStatus, 0);
+			mGl.glGetProgramiv(program, GLES20.GL_LINK_STATUS, linkStatus, 0);
 			if (linkStatus[0] != GLES20.GL_TRUE) {
-				String error = GLES20.glGetProgramInfoLog(program);
+				String error = mGl.glGetProgramInfoLog(program);
 				deleteProgram();
 				throw new Exception(error);
 			}
 		}
 		mProgram = program;
 		mShaderHandleMap.clear();
+		resolveSlots();
 	}
 
 	/**
 	 * Activates this shader program.
 	 */
 	public void useProgram() {
-		GLES20.glUseProgram(mProgram);
+		mGl.glUseProgram(mProgram);
+	}
+
+	/**
+	 * Attribute or uniform of the program, with its location resolved at
+	 * link time.
+	 */
+	public abstract class Slot {
+
+		// Name in the shader source.
+		private final String mName;
+		// Location in the current program, -1 if not found.
+		protected int mLocation = -1;
+
+		private Slot(String name) {
+			mName = name;
+		}
+
+		/**
+		 * @return Location in the current program, -1 if the program does
+		 *         not use it or is not linked.
+		 */
+		public int getLocation() {
+			return mLocation;
+		}
+
+		/**
+		 * @return Name in the shader source.
+		 */
+		public String getName() {
+			return mName;
+		}
+
+		/**
+		 * Looks up the location in a newly linked program; uniform values are
+		 * reset to their defaults by the link.
+		 */
+		void resolve(int program) {
+			mLocation = (program == 0) ? -1 : lookup(program, mName);
+		}
+
+		abstract int lookup(int program, String name);
+	}
+
+	/**
+	 * Attribute slot.
+	 */
+	public final class Attribute extends Slot {
+
+		private Attribute(String name) {
+			super(name);
+		}
+
+		@Override
+		int lookup(int program, String name) {
+			return mGl.glGetAttribLocation(program, name);
+		}
+	}
+
+	/**
+	 * Uniform slot keeping a copy of the value in the program; see the
+	 * shadow value of each type.
+	 */
+	public abstract class Uniform extends Slot {
+
+		// False until a value has been uploaded to the current program.
+		protected boolean mValid;
+
+		private Uniform(String name) {
+			super(name);
+		}
+
+		@Override
+		void resolve(int program) {
+			super.resolve(program);
+			mValid = false;
+		}
+
+		@Override
+		int lookup(int program, String name) {
+			return mGl.glGetUniformLocation(program, name);
+		}
+	}
+
+	/**
+	 * Float uniform slot.
+	 */
+	public final class Uniform1f extends Uniform {
+
+		// Value last uploaded.
+		private float mValue;
+
+		private Uniform1f(String name) {
+			super(name);
+		}
+
+		/**
+		 * Uploads the value if it differs from the value in the program.
+		 */
+		public void set(float x) {
+			if (mLocation == -1 || (mValid && mValue == x)) {
+				return;
+			}
+			mValue = x;
+			mValid = true;
+			mGl.glUniform1f(mLocation, x);
+		}
+	}
+
+	/**
+	 * Vec2 uniform slot.
+	 */
+	public final class Uniform2f extends Uniform {
+
+		// Value last uploaded.
+		private final float[] mValue = new float[2];
+
+		private Uniform2f(String name) {
+			super(name);
+		}
+
+		/**
+		 * Uploads the value if it differs from the value in the program.
+		 */
+		public void set(float x, float y) {
+			if (mLocation == -1
+					|| (mValid && mValue[0] == x && mValue[1] == y)) {
+				return;
+			}
+			mValue[0] = x;
+			mValue[1] = y;
+			mValid = true;
+			mGl.glUniform2f(mLocation, x, y);
+		}
+
+		/**
+		 * Uploads the two values from the given offset, if they differ from
+		 * the value in the program.
+		 */
+		public void set(float[] v, int offset) {
+			set(v[offset], v[offset + 1]);
+		}
+
+		/**
+		 * Uploads the two values from the position of the buffer, if they
+		 * differ from the value in the program. The buffer position is not
+		 * changed.
+		 */
+		public void set(FloatBuffer v) {
+			int p = v.position();
+			set(v.get(p), v.get(p + 1));
+		}
+	}
+
+	/**
+	 * Mat4 uniform slot.
+	 */
+	public final class UniformMatrix4f extends Uniform {
+
+		// Value last uploaded.
+		private final float[] mValue = new float[16];
+
+		private UniformMatrix4f(String name) {
+			super(name);
+		}
+
+		/**
+		 * Uploads the column-major matrix from the given offset, if it
+		 * differs from the value in the program.
+		 */
+		public void set(float[] m, int offset) {
+			if (mLocation == -1) {
+				return;
+			}
+			if (mValid) {
+				int i = 0;
+				while (i < 16 && mValue[i] == m[offset + i]) {
+					i++;
+				}
+				if (i == 16) {
+					return;
+				}
+			}
+			System.arraycopy(m, offset, mValue, 0, 16);
+			mValid = true;
+			mGl.glUniformMatrix4fv(mLocation, 1, false, m, offset);
+		}
 	}
 
 }
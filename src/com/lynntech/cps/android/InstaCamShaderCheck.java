@@ -0,0 +1,141 @@
+/*
+   Copyright 2015 Lynntech Inc. 
+   Contact information:
+   - Victor Palmer, 		victor.palmer[\AT]lynntech.com
+   - Christian Bruccoleri, 	christian.bruccoleri[\AT]lynntech.com
+   
+   Research reported in this publication was supported by the National Eye Institute 
+   of the National Institutes of Health under Award Number R43EY024800.
+   The content is solely the responsibility of the authors and does not necessarily
+   represent the official views of the National Institutes of Health.
+
+   This code includes parts of BoofCV: https://github.com/lessthanoptimal/BoofCV
+   
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+ */
+
+package com.lynntech.cps.android;
+
+import java.util.Arrays;
+
+/**
+ * Headless check of the uniform slots of {@link InstaCamShader} against {@link InstaCamGlRecorder}: the first
+ * {@code set()} of each slot uploads the value, setting the same value again makes no {@code glUniform*} call, a
+ * new value is uploaded once, a uniform the program does not use is never uploaded, and relinking the program
+ * forgets the values kept by the slots, as the link resets the uniforms.
+ * 
+ * Each check prints a line; the exit status is 1 if any fails.
+ * 
+ * Usage: {@code InstaCamShaderCheck}
+ */
+public class InstaCamShaderCheck {
+
+	private static final String VERTEX_SOURCE = 
+			"uniform mat4 uMatrix;\n" +
+			"uniform vec2 uScale;\n" +
+			"attribute vec2 aPosition;\n" +
+			"void main() {\n" +
+			"  gl_Position = uMatrix * vec4(aPosition * uScale, 0.0, 1.0);\n" +
+			"}\n";
+	
+	private static final String FRAGMENT_SOURCE = 
+			"precision mediump float;\n" +
+			"uniform float uBrightness;\n" +
+			"void main() {\n" +
+			"  gl_FragColor = vec4(uBrightness);\n" +
+			"}\n";
+	
+	private final InstaCamGlRecorder gl = new InstaCamGlRecorder();
+	private final InstaCamShader shader = new InstaCamShader(gl);
+	private final InstaCamShader.Uniform1f brightness = shader.uniform1f("uBrightness");
+	private final InstaCamShader.Uniform2f scale = shader.uniform2f("uScale");
+	private final InstaCamShader.UniformMatrix4f matrix = shader.uniformMatrix4f("uMatrix");
+	/** Declared but not used by the program. */
+	private final InstaCamShader.Uniform1f unused = shader.uniform1f("uUnused");
+	private final float[] identity = { 1, 0, 0, 0, 0, 1, 0, 0, 0, 0, 1, 0, 0, 0, 0, 1 };
+	private final float[] other = { 2, 0, 0, 0, 0, 2, 0, 0, 0, 0, 2, 0, 0, 0, 0, 1 };
+	private boolean valid = true;
+	
+	
+	/**
+	 * Run all the checks.
+	 * @return {@code true} if all of them pass.
+	 */
+	public boolean process() throws Exception {
+		shader.setProgram(VERTEX_SOURCE, FRAGMENT_SOURCE);
+		shader.useProgram();
+		
+		setAll(0.5f, identity);
+		check("first set", 1, 1, 1);
+		
+		for (int i = 0; i < 10; i++) {
+			setAll(0.5f, identity);
+		}
+		check("same values set again", 0, 0, 0);
+		
+		brightness.set(0.25f);
+		scale.set(1, 2);
+		matrix.set(identity, 0);
+		check("brightness changed", 1, 0, 0);
+		
+		setAll(0.25f, other);
+		check("matrix changed", 0, 0, 1);
+		
+		shader.setProgram(VERTEX_SOURCE, FRAGMENT_SOURCE);
+		shader.useProgram();
+		setAll(0.25f, other);
+		check("same values after relink", 1, 1, 1);
+		
+		setAll(0.25f, other);
+		check("same values set again after relink", 0, 0, 0);
+		
+		shader.deleteProgram();
+		setAll(0.75f, identity);
+		check("deleted program", 0, 0, 0);
+		return valid;
+	}
+	
+	
+	private void setAll(float value, float[] m) {
+		brightness.set(value);
+		unused.set(value);
+		scale.set(1, 2);
+		matrix.set(m, 0);
+	}
+	
+	
+	/**
+	 * Compare the uniform uploads since the previous check to the expected ones, and start a new count.
+	 */
+	private void check(String name, int uniform1f, int uniform2f, int uniformMatrix4fv) {
+		InstaCamGlRecorder.Counters frame = gl.getFrame();
+		int[] expected = { uniform1f, uniform2f, uniformMatrix4fv };
+		int[] actual = { frame.getCalls(InstaCamGlRecorder.Call.glUniform1f), 
+				frame.getCalls(InstaCamGlRecorder.Call.glUniform2f), 
+				frame.getCalls(InstaCamGlRecorder.Call.glUniformMatrix4fv) };
+		boolean same = Arrays.equals(expected, actual);
+		System.out.printf("%s: glUniform1f %d, glUniform2f %d, glUniformMatrix4fv %d%s%n", name, 
+				actual[0], actual[1], actual[2], same ? "" : String.format(", expected %d, %d, %d FAILED", 
+				expected[0], expected[1], expected[2]));
+		valid &= same;
+		gl.beginFrame();
+	}
+	
+	
+	public static void main(String[] args) throws Exception {
+		if (!new InstaCamShaderCheck().process()) {
+			System.exit(1);
+		}
+		System.out.println("OK");
+	}
+}
@@ -0,0 +1,160 @@
+/*
+   Copyright 2015 Lynntech Inc. 
+   Contact information:
+   - Victor Palmer, 		victor.palmer[\AT]lynntech.com
+   - Christian Bruccoleri, 	christian.bruccoleri[\AT]lynntech.com
+   
+   Research reported in this publication was supported by the National Eye Institute 
+   of the National Institutes of Health under Award Number R43EY024800.
+   The content is solely the responsibility of the authors and does not necessarily
+   represent the official views of the National Institutes of Health.
+
+   This code includes parts of BoofCV: https://github.com/lessthanoptimal/BoofCV
+   
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+ */
+
+package com.lynntech.cps.android;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import android.os.Handler;
+import android.os.Looper;
+import android.util.Log;
+
+/**
+ * Runs the independent startup phases of the Activity in parallel on
+ * background threads, and posts a callback to the main thread once all of
+ * them are done. The duration of each phase and the time until the callback
+ * are logged.
+ * 
+ * A phase that throws is logged and counted as done, so the callback must
+ * check the state it depends on. Once cancelled, the callback is not run.
+ */
+public final class InstaCamStartup {
+
+	// Log tag of the timings.
+	private static final String TAG = "STARTUP";
+	// Executor of the phases.
+	private final Executor mExecutor;
+	// Handler for posting the callback to the main thread.
+	private final Handler mHandler = new Handler(Looper.getMainLooper());
+	// Names and tasks of the phases.
+	private final List<String> mNames = new ArrayList<String>();
+	private final List<Runnable> mPhases = new ArrayList<Runnable>();
+	// Duration of each phase, in nanoseconds.
+	private long[] mDurations;
+	// Number of phases not done yet.
+	private final AtomicInteger mRemaining = new AtomicInteger();
+	// Time start() was called.
+	private long mStartTime;
+	// Set by cancel(), read from the main thread only.
+	private boolean mCancelled;
+	// Set once the callback has run.
+	private volatile boolean mDone;
+
+	/**
+	 * @param executor	Executor of the phases; it should have a thread for
+	 *            each phase for the phases to run in parallel.
+	 */
+	public InstaCamStartup(Executor executor) {
+		mExecutor = executor;
+	}
+
+	/**
+	 * Adds a phase; must be called before {@link #start(Runnable)}.
+	 * 
+	 * @param name	Name of the phase, for the log.
+	 * @param phase	Task of the phase, run on a background thread.
+	 */
+	public void add(String name, Runnable phase) {
+		mNames.add(name);
+		mPhases.add(phase);
+	}
+
+	/**
+	 * Starts all the phases. Must be called from the main thread.
+	 * 
+	 * @param onReady	Run on the main thread once all the phases are done.
+	 */
+	public void start(final Runnable onReady) {
+		final int count = mPhases.size();
+		mDurations = new long[count];
+		mRemaining.set(count);
+		mStartTime = System.nanoTime();
+		if (count == 0) {
+			finish(onReady);
+			return;
+		}
+		for (int i = 0; i < count; i++) {
+			final int index = i;
+			mExecutor.execute(new Runnable() {
+				@Override
+				public void run() {
+					long t0 = System.nanoTime();
+					try {
+						mPhases.get(index).run();
+					} catch (RuntimeException ex) {
+						Log.e(TAG, "Phase " + mNames.get(index) + " failed", ex);
+					}
+					mDurations[index] = System.nanoTime() - t0;
+					if (mRemaining.decrementAndGet() == 0) {
+						// the countdown orders all the durations before the callback
+						mHandler.post(new Runnable() {
+							@Override
+							public void run() {
+								finish(onReady);
+							}
+						});
+					}
+				}
+			});
+		}
+	}
+
+	/**
+	 * Prevents the callback from running, if it has not run yet. The phases
+	 * already started run to the end. Must be called from the main thread.
+	 */
+	public void cancel() {
+		mCancelled = true;
+	}
+
+	/**
+	 * @return True once all the phases are done and the callback has run.
+	 */
+	public boolean isDone() {
+		return mDone;
+	}
+
+	/**
+	 * Logs the timings and runs the callback, unless cancelled.
+	 */
+	private void finish(Runnable onReady) {
+		if (mCancelled) {
+			return;
+		}
+		long waited = System.nanoTime() - mStartTime;
+		for (int i = 0; i < mDurations.length; i++) {
+			Log.i(TAG, String.format("%s: %.1f ms", mNames.get(i), mDurations[i] * 1e-6));
+		}
+		long t0 = System.nanoTime();
+		onReady.run();
+		mDone = true;
+		long ready = System.nanoTime() - t0;
+		Log.i(TAG, String.format("ready: %.1f ms, total: %.1f ms", ready * 1e-6, (waited + ready) * 1e-6));
+	}
+}
@@ -0,0 +1,398 @@
+/*
+   Copyright 2015 Lynntech Inc. 
+   Contact information:
+   - Victor Palmer, 		victor.palmer[\AT]lynntech.com
+   - Christian Bruccoleri, 	christian.bruccoleri[\AT]lynntech.com
+   
+   Research reported in this publication was supported by the National Eye Institute 
+   of the National Institutes of Health under Award Number R43EY024800.
+   The content is solely the responsibility of the authors and does not necessarily
+   represent the official views of the National Institutes of Health.
+
+   This code includes parts of BoofCV: https://github.com/lessthanoptimal/BoofCV
+   
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+ */
+
+package com.lynntech.cps.android;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Locale;
+
+/**
+ * Headless benchmark of the frame rendering of {@link InstaCamRenderer}. It runs {@link InstaCamPipeline} against
+ * {@link InstaCamGlRecorder} on a desktop JVM, with the shader sources read from the {@code res/raw} directory.
+ * 
+ * For each filter the pipeline renders a series of frames, each with a new camera frame, in two scenarios: with
+ * constant settings ({@code steady}), and with the brightness changing at every frame as while a SeekBar is dragged
+ * ({@code seek}). The report gives the CPU time per frame, including the recorder, and the GL calls, state changes,
+ * program switches and bytes uploaded per frame, as {@code key = value} lines.
+ * 
+ * A frame of the steady scenario must not make more than {@link #GL_CALL_BUDGET} GL calls; the exit status is 1 if
+ * any filter exceeds it. With {@code -c} every frame goes through the offscreen copy, as without direct rendering
+ * (see {@link InstaCamPipeline#setDirectRender(boolean)}).
+ * 
+ * Each {@code -g} option adds a chain of filters, e.g. {@code -g undistort,edges}, measured as the single filters
+ * but outside the budget. The report gives the pass plan compiled by {@link InstaCamFilterGraph} for each filter
+ * and chain, and the number of offscreen textures it allocated. The plans of {@link #EXPECTED_PLANS} are checked,
+ * both as compiled by the graph alone and as used by the pipeline for the measured filters and chains; the exit
+ * status is 1 if one differs.
+ * 
+ * Usage: {@code RendererBenchmark [-c] [-n frames] [-s WIDTHxHEIGHT] [-g filter,filter...] [-o report] rawDirectory}
+ */
+public class RendererBenchmark {
+
+	/** Maximum number of GL calls of a steady frame, for every filter. */
+	public static final int GL_CALL_BUDGET = 20;
+	
+	/**
+	 * Pass plans expected for some chains, as triples { chain, plan with direct rendering, plan without }.
+	 */
+	public static final String[][] EXPECTED_PLANS = {
+		{ "default", "[[0] camera->screen]", "[copy camera->0, [0] 0->screen]" },
+		{ "blackandwhite", "[[1] camera->screen]", "[copy camera->0, [1] 0->screen]" },
+		{ "ansel", "[[2] camera->screen]", "[copy camera->0, [2] 0->screen]" },
+		{ "sepia", "[[3] camera->screen]", "[copy camera->0, [3] 0->screen]" },
+		{ "retro", "[[4] camera->screen]", "[copy camera->0, [4] 0->screen]" },
+		{ "georgia", "[[5] camera->screen]", "[copy camera->0, [5] 0->screen]" },
+		{ "sahara", "[[6] camera->screen]", "[copy camera->0, [6] 0->screen]" },
+		{ "polaroid", "[[7] camera->screen]", "[copy camera->0, [7] 0->screen]" },
+		{ "cartoon", "[copy camera->0, [8] 0->screen]", "[copy camera->0, [8] 0->screen]" },
+		{ "edges", "[copy camera->0, [9] 0->screen]", "[copy camera->0, [9] 0->screen]" },
+		{ "undistort", "[copy camera->0, [10] 0->screen]", "[copy camera->0, [10] 0->screen]" },
+		{ "undistort,edges", "[copy camera->0, [10] 0->1, [9] 1->screen]",
+				"[copy camera->0, [10] 0->1, [9] 1->screen]" },
+		{ "ansel,sepia", "[[2, 3] camera->screen]", "[copy camera->0, [2, 3] 0->screen]" },
+		{ "sepia,undistort,retro,edges,blackandwhite", "[[3] camera->1, [10, 4] 1->2, [9, 1] 2->screen]",
+				"[copy camera->0, [3] 0->1, [10, 4] 1->2, [9, 1] 2->screen]" } };
+	
+	/** Frames rendered before the measurement. */
+	private static final int WARMUP_FRAMES = 2000;
+	
+	/** Number of frames measured for each filter and scenario. */
+	private int frames = 10000;
+	
+	/** If true, the camera frame is rendered directly for the filters which allow it. */
+	private boolean directRender = true;
+	
+	/** View size. */
+	private int width = 1080, height = 1920;
+	
+	/** Shader sources, see {@link InstaCamPipeline#shaderSources}. */
+	private String[] sources;
+	
+	/** Filter chains measured besides the single filters, as {@link InstaCamData#mFilterStages}. */
+	private final List<int[]> chains = new ArrayList<int[]>();
+	
+	
+	/**
+	 * Result of a scenario: the counters of the last frame, the average CPU time and the pass plan.
+	 */
+	public static final class Result {
+		public final InstaCamGlRecorder.Counters frame = new InstaCamGlRecorder.Counters();
+		public double nanosPerFrame;
+		public List<InstaCamFilterGraph.Pass> plan;
+		public int offscreenCount;
+	}
+	
+	
+	/**
+	 * Read the shader sources from the {@code res/raw} directory.
+	 */
+	public void loadSources(File rawDirectory) throws IOException {
+		String[] functions = new String[InstaCamPipeline.FILTER_NAMES.length];
+		for (int i = 0; i < functions.length; i++) {
+			functions[i] = read(new File(rawDirectory, "filter_" + InstaCamPipeline.FILTER_NAMES[i] + "_fs.txt"));
+		}
+		sources = InstaCamPipeline.shaderSources(
+				read(new File(rawDirectory, "copy_oes_vs.txt")),
+				read(new File(rawDirectory, "copy_oes_fs.txt")),
+				read(new File(rawDirectory, "filter_vs.txt")),
+				read(new File(rawDirectory, "filter_fs.txt")), functions);
+	}
+	
+	
+	/**
+	 * Render frames with a chain of filters.
+	 * @param stages	Index of each filter, as {@link InstaCamData#mFilterStages}.
+	 * @param seek		If true the brightness changes at every frame.
+	 * @return CPU time and GL counters of the scenario.
+	 */
+	public Result run(int[] stages, boolean seek) {
+		InstaCamGlRecorder gl = new InstaCamGlRecorder();
+		InstaCamPipeline pipeline = new InstaCamPipeline(gl);
+		InstaCamData data = new InstaCamData();
+		data.mFilterStages = stages;
+		data.mSaturation = 0.3f;
+		data.mCornerRadius = 0.3f;
+		data.mAspectRatioPreview[0] = 1f;
+		data.mAspectRatioPreview[1] = (float) width / height;
+		data.imWidth = width;
+		data.imHeight = height;
+		data.setRadial(new double[2]);
+		data.setCenter(width / 2.0, height / 2.0);
+		float[] transformM = new float[16];
+		for (int i = 0; i < 16; i += 5) {
+			data.mOrientationM[i] = 1f;
+			transformM[i] = 1f;
+		}
+		pipeline.setSharedData(data);
+		pipeline.setDirectRender(directRender);
+		if (!pipeline.onSurfaceCreated(sources).isEmpty()) {
+			throw new IllegalStateException("Shader errors");
+		}
+		pipeline.onSurfaceChanged(width, height);
+		
+		for (int i = 0; i < WARMUP_FRAMES; i++) {
+			data.mBrightness = seek ? (i % 11 - 5) / 10f : 0f;
+			pipeline.onDrawFrame(transformM);
+		}
+		long t0 = System.nanoTime();
+		for (int i = 0; i < frames; i++) {
+			data.mBrightness = seek ? (i % 11 - 5) / 10f : 0f;
+			gl.beginFrame();
+			pipeline.onDrawFrame(transformM);
+		}
+		Result result = new Result();
+		result.nanosPerFrame = (double) (System.nanoTime() - t0) / frames;
+		copy(gl.getFrame(), result.frame);
+		result.plan = pipeline.getPlan();
+		result.offscreenCount = pipeline.getOffscreenCount();
+		if (!pipeline.takeErrors().isEmpty()) {
+			throw new IllegalStateException("Shader errors");
+		}
+		return result;
+	}
+	
+	
+	private static void copy(InstaCamGlRecorder.Counters from, InstaCamGlRecorder.Counters to) {
+		to.calls = from.calls;
+		to.draws = from.draws;
+		to.stateChanges = from.stateChanges;
+		to.redundantStateChanges = from.redundantStateChanges;
+		to.programSwitches = from.programSwitches;
+		to.uniformUploads = from.uniformUploads;
+		to.bytesUploaded = from.bytesUploaded;
+		to.bytesAllocated = from.bytesAllocated;
+	}
+	
+	
+	/**
+	 * Run all the filters and chains in both scenarios and print the report.
+	 * @return {@code true} if all the filters are within the GL call budget and all the plans are the expected ones.
+	 */
+	public boolean process(PrintStream out) {
+		out.println(String.format(Locale.US, "size = %d x %d", width, height));
+		out.println("frames = " + frames);
+		out.println("budget = " + GL_CALL_BUDGET);
+		out.println("directRender = " + directRender);
+		boolean valid = checkPlans(out);
+		for (int filter = 0; filter < InstaCamPipeline.FILTER_NAMES.length; filter++) {
+			valid &= report(out, new int[] { filter }, true);
+		}
+		for (int[] chain : chains) {
+			valid &= report(out, chain, false);
+		}
+		return valid;
+	}
+	
+	
+	/**
+	 * Compile the chains of {@link #EXPECTED_PLANS} with the graph alone and compare them to the expected plans.
+	 * @return {@code false} if a plan differs.
+	 */
+	private boolean checkPlans(PrintStream out) {
+		InstaCamFilterGraph graph = new InstaCamFilterGraph(Arrays.copyOfRange(sources, 4, sources.length));
+		int checked = 0;
+		boolean valid = true;
+		for (String[] expected : EXPECTED_PLANS) {
+			String plan = graph.compile(parseChain(expected[0]), directRender).toString();
+			if (!plan.equals(expectedPlan(expected))) {
+				out.println(expected[0].replace(',', '+') + ".planMismatch = " + plan + ", expected "
+						+ expectedPlan(expected));
+				valid = false;
+			}
+			checked++;
+		}
+		out.println("plansChecked = " + checked);
+		return valid;
+	}
+	
+	
+	/**
+	 * @return The plan of an entry of {@link #EXPECTED_PLANS} for the current rendering mode.
+	 */
+	private String expectedPlan(String[] expected) {
+		return directRender ? expected[1] : expected[2];
+	}
+	
+	
+	/**
+	 * @return The expected plan of a chain for the current rendering mode, or {@code null} if it is not in
+	 * {@link #EXPECTED_PLANS}.
+	 */
+	private String expectedPlan(int[] stages) {
+		for (String[] expected : EXPECTED_PLANS) {
+			if (Arrays.equals(parseChain(expected[0]), stages)) {
+				return expectedPlan(expected);
+			}
+		}
+		return null;
+	}
+	
+	
+	/**
+	 * Run a chain of filters in both scenarios and print its lines of the report.
+	 * @param budget	If true, the steady scenario is checked against the GL call budget.
+	 * @return {@code false} if the chain exceeds the budget or its plan is not the expected one.
+	 */
+	private boolean report(PrintStream out, int[] stages, boolean budget) {
+		StringBuilder name = new StringBuilder();
+		for (int stage : stages) {
+			if (name.length() > 0) {
+				name.append('+');
+			}
+			name.append(InstaCamPipeline.FILTER_NAMES[stage]);
+		}
+		boolean valid = true;
+		for (boolean seek : new boolean[] { false, true }) {
+			Result r = run(stages, seek);
+			String scenario = seek ? "seek" : "steady";
+			if (!seek) {
+				out.println(name + ".plan = " + r.plan);
+				out.println(name + ".offscreen = " + r.offscreenCount);
+				String expected = expectedPlan(stages);
+				if (expected != null && !expected.equals(r.plan.toString())) {
+					out.println(name + ".planMismatch = " + r.plan + ", expected " + expected);
+					valid = false;
+				}
+			}
+			out.println(String.format(Locale.US, "%s.%s = %.2f us/frame, %s", name, scenario, 
+					r.nanosPerFrame * 1e-3, r.frame));
+			if (budget && !seek && r.frame.calls > GL_CALL_BUDGET) {
+				out.println(name + ".overBudget = " + r.frame.calls);
+				valid = false;
+			}
+		}
+		return valid;
+	}
+	
+	
+	/**
+	 * Parse a chain of filter names separated by commas.
+	 * @return Index of each filter, or {@code null} if a name is unknown.
+	 */
+	private static int[] parseChain(String chain) {
+		String[] names = chain.split(",");
+		int[] stages = new int[names.length];
+		for (int i = 0; i < names.length; i++) {
+			stages[i] = Arrays.asList(InstaCamPipeline.FILTER_NAMES).indexOf(names[i].trim());
+			if (stages[i] < 0) {
+				return null;
+			}
+		}
+		return stages;
+	}
+	
+	
+	private static String read(File file) throws IOException {
+		InputStream in = new FileInputStream(file);
+		try {
+			ByteArrayOutputStream buf = new ByteArrayOutputStream();
+			byte[] b = new byte[4096];
+			int n;
+			while ((n = in.read(b)) != -1) {
+				buf.write(b, 0, n);
+			}
+			return buf.toString("UTF-8");
+		}
+		finally {
+			in.close();
+		}
+	}
+	
+	
+	public static void main(String[] args) throws IOException {
+		RendererBenchmark benchmark = new RendererBenchmark();
+		String reportFile = null;
+		String directory = null;
+		for (int i = 0; i < args.length; i++) {
+			if (args[i].equals("-c")) {
+				benchmark.directRender = false;
+			}
+			else if (args[i].equals("-n") && i + 1 < args.length) {
+				benchmark.frames = Integer.parseInt(args[++i]);
+			}
+			else if (args[i].equals("-s") && i + 1 < args.length) {
+				String[] size = args[++i].toLowerCase(Locale.US).split("x");
+				if (size.length != 2) {
+					usage();
+					return;
+				}
+				benchmark.width = Integer.parseInt(size[0]);
+				benchmark.height = Integer.parseInt(size[1]);
+			}
+			else if (args[i].equals("-g") && i + 1 < args.length) {
+				int[] chain = parseChain(args[++i]);
+				if (chain == null) {
+					usage();
+					return;
+				}
+				benchmark.chains.add(chain);
+			}
+			else if (args[i].equals("-o") && i + 1 < args.length) {
+				reportFile = args[++i];
+			}
+			else if (directory == null && !args[i].startsWith("-")) {
+				directory = args[i];
+			}
+			else {
+				usage();
+				return;
+			}
+		}
+		if (directory == null) {
+			usage();
+			return;
+		}
+		
+		benchmark.loadSources(new File(directory));
+		PrintStream out = reportFile != null ? new PrintStream(reportFile, "UTF-8") : System.out;
+		boolean valid;
+		try {
+			valid = benchmark.process(out);
+		}
+		finally {
+			if (out != System.out) {
+				out.close();
+			}
+		}
+		if (!valid) {
+			System.exit(1);
+		}
+	}
+	
+	
+	private static void usage() {
+		System.err.println("Usage: RendererBenchmark [-c] [-n frames] [-s WIDTHxHEIGHT] [-g filter,filter...] [-o report] rawDirectory");
+		System.exit(2);
+	}
+}
@@ -0,0 +1,361 @@
+/*
+   Copyright 2015 Lynntech Inc. 
+   Contact information:
+   - Victor Palmer, 		victor.palmer[\AT]lynntech.com
+   - Christian Bruccoleri, 	christian.bruccoleri[\AT]lynntech.com
+   
+   Research reported in this publication was supported by the National Eye Institute 
+   of the National Institutes of Health under Award Number R43EY024800.
+   The content is solely the responsibility of the authors and does not necessarily
+   represent the official views of the National Institutes of Health.
+
+   This code includes parts of BoofCV: https://github.com/lessthanoptimal/BoofCV
+   
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+ */
+
+package com.lynntech.cps.android.calibration;
+
+import java.io.DataInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Locale;
+
+import boofcv.core.image.ConvertImage;
+import boofcv.io.image.UtilImageIO;
+import boofcv.struct.calib.IntrinsicParameters;
+import boofcv.struct.image.ImageFloat32;
+import boofcv.struct.image.ImageUInt8;
+
+/**
+ * Headless calibration of a set of frames stored on disk, with the same engine used by {@link CalibrationActivity}.
+ * It does not depend on Android, so it can run on a desktop JVM to calibrate large capture sets offline, to 
+ * profile the calibration and to track its performance over time.
+ * 
+ * Supported files, in alphabetical order of the file name:
+ * <ul>
+ * <li>{@code .pgm}: 8-bit binary PGM;</li>
+ * <li>{@code .png}, {@code .jpg}, {@code .jpeg}, {@code .bmp}: loaded with {@code UtilImageIO} (desktop JVM only);</li>
+ * <li>{@code .nv21}, {@code .yuv}: raw NV21 preview dumps, the frame size must be specified.</li>
+ * </ul>
+ * 
+ * The report lists the intrinsic parameters, the time spent in each stage (load, detect, solve) and the 
+ * detection status and the reprojection error of each image, as {@code key = value} lines. With {@code -v} only
+ * the most informative views, at most the given number, are used for calibration (see {@link ViewSelector}), and
+ * the report tells which images were selected.
+ * 
+ * Usage: {@code BatchCalibration [-j threads] [-s WIDTHxHEIGHT] [-v views] [-o report] directory}
+ */
+public class BatchCalibration {
+
+	/** Number of threads used for detection and in the solver. */
+	private int parallelism = Runtime.getRuntime().availableProcessors();
+	
+	/** Size of raw NV21 frames, 0 if not specified. */
+	private int rawWidth, rawHeight;
+	
+	/** Maximum number of views selected for calibration, 0 to use all the views. */
+	private int maxViews;
+	
+	/** Files processed by the last call to {@link #process(File)}, in order. */
+	private final List<File> files = new ArrayList<File>();
+	
+	/** Detection status of each file. */
+	private boolean[] detected = new boolean[0];
+	
+	/** Time spent in each stage, in nanoseconds. */
+	private long loadNanos, detectNanos, solveNanos;
+	
+	/** Reprojection error of each view, including the outliers. */
+	private List<CalibrateMonocularPlanar.ViewError> viewErrors = new ArrayList<CalibrateMonocularPlanar.ViewError>();
+	
+	/** The result, null if the calibration failed. */
+	private IntrinsicParameters intrinsic;
+	
+	/** Reason of the failure, null if successful. */
+	private String failure;
+	
+	
+	/**
+	 * Set the number of threads used for detection and in the solver.
+	 * @param parallelism	Number of threads, at least 1.
+	 */
+	public void setParallelism(int parallelism) {
+		if (parallelism < 1) {
+			throw new IllegalArgumentException("parallelism must be at least 1.");
+		}
+		this.parallelism = parallelism;
+	}
+	
+	
+	/**
+	 * Set the size of raw NV21 frames, which is not stored in the files.
+	 */
+	public void setRawSize(int width, int height) {
+		rawWidth = width;
+		rawHeight = height;
+	}
+	
+	
+	/**
+	 * Use only the most informative views for calibration.
+	 * @param maxViews	Maximum number of views, 0 to use all the views where the target is detected.
+	 */
+	public void setViewSelection(int maxViews) {
+		if (maxViews < 0) {
+			throw new IllegalArgumentException("maxViews cannot be negative.");
+		}
+		this.maxViews = maxViews;
+	}
+	
+	
+	/**
+	 * Calibrate the camera from all the supported files in a directory.
+	 * The images are loaded on the calling thread while the target is detected in the images already loaded.
+	 * 
+	 * @param directory	Directory with the calibration frames.
+	 * @return The intrinsic parameters, or {@code null} if the calibration failed (see {@link #getFailure()}).
+	 * @throws IOException If a file cannot be read.
+	 */
+	public IntrinsicParameters process(File directory) throws IOException {
+		File[] list = directory.listFiles();
+		if (list == null) {
+			throw new FileNotFoundException("Not a directory: " + directory);
+		}
+		Arrays.sort(list);
+		files.clear();
+		for (File f : list) {
+			if (f.isFile() && isSupported(f.getName())) {
+				files.add(f);
+			}
+		}
+		intrinsic = null;
+		failure = null;
+		viewErrors = new ArrayList<CalibrateMonocularPlanar.ViewError>();
+		loadNanos = detectNanos = solveNanos = 0;
+		
+		CalibrateMonocularPlanar calib = new CalibrateMonocularPlanar(parallelism);
+		try {
+			int maxPending = 2*parallelism;
+			if (maxViews > 0) {
+				calib.setViewSelection(true);
+				calib.setMaxImages(maxViews);
+				maxPending = Math.min(maxPending, maxViews - 1);
+			}
+			else {
+				calib.setMaxImages(Math.max(1, files.size()));
+			}
+			long start = System.nanoTime();
+			for (File f : files) {
+				long t0 = System.nanoTime();
+				ImageFloat32 img = load(f);
+				loadNanos += System.nanoTime() - t0;
+				calib.addImage(img);
+				// do not load much faster than the images can be processed
+				calib.awaitDetections(maxPending);
+			}
+			calib.awaitDetections();
+			detectNanos = System.nanoTime() - start - loadNanos;
+			detected = calib.getDetectionResults();
+			
+			long t0 = System.nanoTime();
+			try {
+				calib.process();
+				intrinsic = calib.getIntrinsic();
+				viewErrors = calib.getViewErrors();
+			}
+			catch (RuntimeException e) {
+				failure = e.getMessage();
+			}
+			solveNanos = System.nanoTime() - t0;
+		}
+		catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new IOException("Interrupted.", e);
+		}
+		finally {
+			calib.shutdown();
+		}
+		return intrinsic;
+	}
+	
+	
+	/**
+	 * @return {@code true} if the file name has one of the supported extensions.
+	 */
+	private boolean isSupported(String name) {
+		String n = name.toLowerCase(Locale.US);
+		return n.endsWith(".pgm") || n.endsWith(".png") || n.endsWith(".jpg") || n.endsWith(".jpeg") 
+				|| n.endsWith(".bmp") || n.endsWith(".nv21") || n.endsWith(".yuv");
+	}
+	
+	
+	/**
+	 * Load a frame as a floating point gray image.
+	 */
+	private ImageFloat32 load(File f) throws IOException {
+		String n = f.getName().toLowerCase(Locale.US);
+		if (n.endsWith(".pgm")) {
+			ImageUInt8 gray = UtilImageIO.loadPGM_U8(f.getPath(), (ImageUInt8) null);
+			return ConvertImage.convert(gray, (ImageFloat32) null);
+		}
+		if (n.endsWith(".nv21") || n.endsWith(".yuv")) {
+			if (rawWidth <= 0 || rawHeight <= 0) {
+				throw new IOException("The size of raw NV21 frames must be specified: " + f);
+			}
+			byte[] nv21 = new byte[PreviewBufferPool.nv21BufferSize(rawWidth, rawHeight)];
+			if (f.length() < nv21.length) {
+				throw new IOException("File too small for a " + rawWidth + "x" + rawHeight + " NV21 frame: " + f);
+			}
+			DataInputStream in = new DataInputStream(new FileInputStream(f));
+			try {
+				in.readFully(nv21);
+			}
+			finally {
+				in.close();
+			}
+			return ConvertNV21Fused.nv21ToGray(nv21, rawWidth, rawHeight, 0, 0, 1, false, 
+					new ImageFloat32(rawWidth, rawHeight));
+		}
+		ImageFloat32 img = UtilImageIO.loadImage(f.getPath(), ImageFloat32.class);
+		if (img == null) {
+			throw new IOException("Cannot read image: " + f);
+		}
+		return img;
+	}
+	
+	
+	/**
+	 * Write the report of the last calibration.
+	 * @param out	Output stream.
+	 */
+	public void printReport(PrintStream out) {
+		out.printf(Locale.US, "threads = %d%n", parallelism);
+		out.printf(Locale.US, "images = %d%n", files.size());
+		int count = 0;
+		for (boolean d : detected) {
+			count += d ? 1 : 0;
+		}
+		out.printf(Locale.US, maxViews > 0 ? "selected = %d%n" : "detected = %d%n", count);
+		out.printf(Locale.US, "time.load.ms = %.1f%n", loadNanos/1e6);
+		out.printf(Locale.US, "time.detect.ms = %.1f%n", detectNanos/1e6);
+		out.printf(Locale.US, "time.solve.ms = %.1f%n", solveNanos/1e6);
+		if (intrinsic != null) {
+			out.printf(Locale.US, "width = %d%n", intrinsic.width);
+			out.printf(Locale.US, "height = %d%n", intrinsic.height);
+			out.printf(Locale.US, "fx = %.17g%n", intrinsic.fx);
+			out.printf(Locale.US, "fy = %.17g%n", intrinsic.fy);
+			out.printf(Locale.US, "skew = %.17g%n", intrinsic.skew);
+			out.printf(Locale.US, "cx = %.17g%n", intrinsic.cx);
+			out.printf(Locale.US, "cy = %.17g%n", intrinsic.cy);
+			for (int i = 0; i < intrinsic.radial.length; i++) {
+				out.printf(Locale.US, "radial.%d = %.17g%n", i, intrinsic.radial[i]);
+			}
+			out.printf(Locale.US, "flipY = %b%n", intrinsic.flipY);
+		}
+		else {
+			out.printf(Locale.US, "failure = %s%n", failure);
+		}
+		CalibrateMonocularPlanar.ViewError[] errors = new CalibrateMonocularPlanar.ViewError[files.size()];
+		int outliers = 0;
+		for (CalibrateMonocularPlanar.ViewError e : viewErrors) {
+			errors[e.index] = e;
+			outliers += e.outlier ? 1 : 0;
+		}
+		out.printf(Locale.US, "outliers = %d%n", outliers);
+		for (int i = 0; i < files.size(); i++) {
+			String status = maxViews > 0 ? (detected[i] ? "selected" : "not selected") 
+					: (detected[i] ? "detected" : "not detected");
+			if (errors[i] != null && errors[i].outlier) {
+				status = "outlier";
+			}
+			out.printf(Locale.US, "image.%s = %s%n", files.get(i).getName(), status);
+			if (errors[i] != null) {
+				out.printf(Locale.US, "error.%s = %.4f mean, %.4f max%n", files.get(i).getName(), 
+						errors[i].errors.meanError, errors[i].errors.maxError);
+			}
+		}
+	}
+	
+	
+	/** @return Reason of the failure of the last calibration, or {@code null}. */
+	public String getFailure() {
+		return failure;
+	}
+	
+	
+	/**
+	 * Command line entry point.
+	 */
+	public static void main(String[] args) throws IOException {
+		BatchCalibration batch = new BatchCalibration();
+		String reportFile = null;
+		String directory = null;
+		for (int i = 0; i < args.length; i++) {
+			if (args[i].equals("-j") && i + 1 < args.length) {
+				batch.setParallelism(Integer.parseInt(args[++i]));
+			}
+			else if (args[i].equals("-s") && i + 1 < args.length) {
+				String[] size = args[++i].toLowerCase(Locale.US).split("x");
+				if (size.length != 2) {
+					usage();
+					return;
+				}
+				batch.setRawSize(Integer.parseInt(size[0]), Integer.parseInt(size[1]));
+			}
+			else if (args[i].equals("-v") && i + 1 < args.length) {
+				batch.setViewSelection(Integer.parseInt(args[++i]));
+			}
+			else if (args[i].equals("-o") && i + 1 < args.length) {
+				reportFile = args[++i];
+			}
+			else if (directory == null && !args[i].startsWith("-")) {
+				directory = args[i];
+			}
+			else {
+				usage();
+				return;
+			}
+		}
+		if (directory == null) {
+			usage();
+			return;
+		}
+		
+		IntrinsicParameters result = batch.process(new File(directory));
+		PrintStream out = reportFile != null ? new PrintStream(reportFile, "UTF-8") : System.out;
+		try {
+			batch.printReport(out);
+		}
+		finally {
+			if (out != System.out) {
+				out.close();
+			}
+		}
+		if (result == null) {
+			System.exit(1);
+		}
+	}
+	
+	
+	private static void usage() {
+		System.err.println("Usage: BatchCalibration [-j threads] [-s WIDTHxHEIGHT] [-v views] [-o report] directory");
+		System.exit(2);
+	}
+}
@@ -34,9 +34,30 @@
  * targets are demonstrated by this example. See calibration tutorial for a discussion of different target types
  * and how to collect good calibration images.
  *
- * All the image processing and calibration is taken care of inside of {@link CalibrateMonoPlanar}.  The code below
- * loads calibration images as inputs, calibrates, and saves results to an XML file.  See in code comments for tuning
- * and implementation issues.
+ * The calibration target is detected in the background as each image is added, using the detector and the
+ * target description of {@link CalibrateMonoPlanar}; only the observed calibration points are kept, so the memory
+ * used is a few kilobytes per view. Detection runs on a pool of threads, each with its own detector, so several 
+ * images are processed at the same time. The solver ({@link PlanarCalibrationSolver}) runs when {@link #process()}
+ * is invoked and computes the per-view homographies in parallel. Views are always passed to the solver in the 
+ * order the images were added, so the result does not depend on the number of threads.
+ *
+ * In incremental mode ({@link #setIncremental(boolean)}) the problem is re-solved in the background after each
+ * detected view, starting from the previous solution and with a bounded number of iterations, on a low priority
+ * thread. {@link #process()} then only needs a short final refinement.
+ *
+ * With view selection enabled ({@link #setViewSelection(boolean)}) each detected view is scored by a 
+ * {@link ViewSelector}: redundant views are dropped, and once {@link #getMaxImages()} views are stored a more 
+ * informative view replaces the least informative one, so the solver works on a small, diverse set.
+ *
+ * Frames added as 8-bit images ({@link #addImage(ImageUInt8)}) wait for detection in a {@link FrameStore}, at a 
+ * quarter of the size of a floating point image; they are converted just before detection into a buffer reused by
+ * each detection thread. They can also be kept after detection, cropped around the target, see 
+ * {@link #setRetainFrames(boolean)}.
+ *
+ * After solving, {@link #process()} computes the reprojection error of each view. Views whose mean error is much
+ * larger than the median, e.g. because of a wrong corner ordering or motion blur, are set aside as outliers and the
+ * problem is re-solved from the cached observations, warm-started from the previous solution; no image is detected
+ * again. See {@link #setOutlierRejection(boolean)} and {@link #getViewErrors()}.
  *
  * @see CalibrateMonoPlanar
  *
@@ -47,65 +68,202 @@ package com.lynntech.cps.android.calibration;
 
 import boofcv.abst.calib.CalibrateMonoPlanar;
 import boofcv.abst.calib.ConfigChessboard;
+import boofcv.abst.calib.ImageResults;
 import boofcv.abst.calib.PlanarCalibrationDetector;
 import boofcv.alg.geo.calibration.PlanarCalibrationTarget;
+import boofcv.alg.geo.calibration.Zhang99Parameters;
 import boofcv.factory.calib.FactoryPlanarCalibrationTarget;
 import boofcv.struct.calib.IntrinsicParameters;
 import boofcv.struct.image.ImageFloat32;
+import boofcv.struct.image.ImageUInt8;
+import georegression.struct.point.Point2D_F64;
+
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
 import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
 
 
-public class CalibrateMonocularPlanar implements Runnable {
+public class CalibrateMonocularPlanar {
 	public static final int num_calibr_images = 30;
  
-	// Detects the target and calibration point inside the target
-	private PlanarCalibrationDetector detector;
+	// Detects the target and calibration point inside the target; detectors are not thread safe, so each
+	// detection thread has its own.
+	private final ThreadLocal<PlanarCalibrationDetector> detector = new ThreadLocal<PlanarCalibrationDetector>() {
+		@Override
+		protected PlanarCalibrationDetector initialValue() {
+			return FactoryPlanarCalibrationTarget.detectorChessboard(targetConfig());
+		}
+	};
  
 	// Description of the target's physical dimension
 	private PlanarCalibrationTarget target;
  
-	// List of calibration images
-	private List<ImageFloat32> images;
+	/// Conversion buffer of the frames stored as 8-bit images, one for each detection thread.
+	private final ThreadLocal<ImageFloat32> scratch = new ThreadLocal<ImageFloat32>() {
+		@Override
+		protected ImageFloat32 initialValue() {
+			return new ImageFloat32(1, 1);
+		}
+	};
 	
-	/// Calibrated intrinsic parameters, it is null until the #process method executes successfully.
-	private IntrinsicParameters intrinsic;
+	/// Calibration points observed in each view where the target was detected, in image coordinates, keyed by
+	/// the order in which the images were added. The images themselves are dropped as soon as detection is done.
+	/// Guarded by {@link #viewsLock}.
+	private TreeMap<Integer, List<Point2D_F64>> observations;
+	
+	/// Sequence number of the next image added. Never reset, so that a frame of a previous session cannot be 
+	/// mistaken for a new one.
+	private int nextSequence;
+	
+	/// Sequence number of the first image added since the last {@link #clear()}.
+	private int firstSequence;
+	
+	/// Maximum number of images in the calibration set.
+	private int maxImages = num_calibr_images;
+	
+	/// Number of images added with {@link #addImage(ImageFloat32)} whose detection is not done yet.
+	private int pendingDetections;
 	
-	/// Thread object used for asynchronous calibration.
-	private Thread thread;
+	/// Number of images where the target was not found.
+	private int rejectedCount;
 	
-	/// An object used to notify the caller that the calibration is complete.
-	private CalibrationListener calibrListener;
+	/// Incremented by {@link #clear()}, so that detections started before are discarded.
+	private int generation;
+	
+	/// Size of the calibration images; all images must have the same size. Zero until the first image is added.
+	private int widthImg, heightImg;
+	
+	/// Lock for the observations and the detection counters; notified when a detection completes.
+	private final Object viewsLock = new Object();
+	
+	/// Threads that run the target detector in the background, as the images are added.
+	private final ExecutorService detectionThreads;
+	
+	/// Executes the per-view steps of the solver, one view per band.
+	private final RowBandExecutor solverExecutor;
+	
+	/// Calibrated intrinsic parameters, it is null until the #process method executes successfully.
+	/// A new object is published at the end of each calibration, so no lock is needed to read it.
+	private volatile IntrinsicParameters intrinsic;
+	
+	/// Thread that executes the asynchronous calibration jobs, one at a time.
+	private final ExecutorService jobThread;
  
 	// Many 3D operations assumed a right handed coordinate system with +Z pointing out of the image.
 	// If the image coordinate system is left handed then the y-axis needs to be flipped to meet
 	// that requirement.  Most of the time this is false.
 	boolean flipY;
 	
-	/// Used to obtain a lock on the #intrinsic field.
-	private Object intrinsicLock;
+	/// Optional pool where the calibration images are returned once the target has been detected.
+	private ImagePool imagePool;
+	
+	/// Minimum number of views for an incremental solution.
+	public static final int MIN_INCREMENTAL_VIEWS = 3;
+	
+	/// Default number of iterations of each incremental re-solve.
+	public static final int DEFAULT_INCREMENTAL_ITERATIONS = 20;
+	
+	/// If true the problem is re-solved after each detected view.
+	private volatile boolean incremental;
+	
+	/// Maximum number of iterations of each incremental re-solve.
+	private volatile int incrementalIterations = DEFAULT_INCREMENTAL_ITERATIONS;
+	
+	/// Low priority thread that runs the incremental re-solves.
+	private final ExecutorService incrementalThread;
+	
+	/// True if an incremental re-solve is queued and has not taken its snapshot of the views yet.
+	/// Guarded by {@link #viewsLock}.
+	private boolean incrementalQueued;
+	
+	/// Latest solution, used to warm start the next one, and the sequence numbers of its views.
+	/// Guarded by {@link #viewsLock}.
+	private Zhang99Parameters warm;
+	private int[] warmSequences;
+	
+	/// Intrinsic parameters of the latest incremental solution, null if none.
+	private volatile IntrinsicParameters incrementalIntrinsic;
+	
+	/// Chooses the views passed to the solver, null to keep all the views.
+	private ViewSelector selector;
+	
+	/// Margin around the target kept when cropping retained frames, as a fraction of the size of the target.
+	public static final double FRAME_CROP_MARGIN = 0.1;
+	
+	/// Frames added as 8-bit images, from the snap until detection, or longer if retained.
+	private volatile FrameStore frames = new CompactFrameStore();
+	
+	/// {@code true} to keep the frames where the target was detected, cropped around it.
+	private volatile boolean retainFrames;
+	
+	/// Default ratio between the mean error of an outlier view and the median of the mean errors of all views.
+	public static final double DEFAULT_OUTLIER_FACTOR = 3.0;
+	
+	/// Default mean reprojection error, in pixels, below which a view is never an outlier.
+	public static final double DEFAULT_MIN_OUTLIER_ERROR = 0.5;
+	
+	/// Maximum number of reject and re-solve rounds in {@link #process()}.
+	public static final int MAX_OUTLIER_ROUNDS = 3;
+	
+	/// Minimum number of views left after rejecting outliers.
+	public static final int MIN_INLIER_VIEWS = 3;
+	
+	/// {@code true} to reject the outlier views in {@link #process()}.
+	private volatile boolean outlierRejection = true;
+	
+	/// Thresholds of the outlier rejection.
+	private volatile double outlierFactor = DEFAULT_OUTLIER_FACTOR;
+	private volatile double minOutlierError = DEFAULT_MIN_OUTLIER_ERROR;
+	
+	/// Views set aside as outliers, by sequence number. Guarded by {@link #viewsLock}.
+	private final TreeMap<Integer, List<Point2D_F64>> outliers = new TreeMap<Integer, List<Point2D_F64>>();
+	
+	/// Reprojection errors of the last {@link #process()}, in the order of the views.
+	private volatile List<ViewError> viewErrors = new ArrayList<ViewError>();
 
  
+	/**
+	 * Description of the chessboard target used for calibration.
+	 * @return A new configuration object.
+	 */
+	public static ConfigChessboard targetConfig() {
+		return new ConfigChessboard(10, 7);
+	}
+	
+	
 	/**
 	 * Getter for the calibrated intrinsic parameters
 	 * @return The intrinsic parameters if {@link #process()} executed successfully.
 	 */
 	public IntrinsicParameters getIntrinsic() {
-		IntrinsicParameters intrs = null;
-		if (intrinsic != null) {
-			synchronized (intrinsicLock) {
-				// make a copy
-				intrs = new IntrinsicParameters(intrinsic);
-			}
-		}
-		return intrs;
+		IntrinsicParameters intrs = intrinsic;
+		// make a copy
+		return intrs == null ? null : new IntrinsicParameters(intrs);
 	}
 
 
+	/**
+	 * Create the object, detecting targets and solving with one thread per available core.
+	 */
 	public CalibrateMonocularPlanar() {
-		// Use the wrapper below for chess board targets.
-		detector = FactoryPlanarCalibrationTarget.detectorChessboard(new ConfigChessboard(10, 7));
- 
+		this(Runtime.getRuntime().availableProcessors());
+	}
+	
+	
+	/**
+	 * Create the object.
+	 * @param parallelism	Number of threads used to detect targets and in the solver; 1 gives the sequential
+	 * 						algorithm, with exactly the same results.
+	 */
+	public CalibrateMonocularPlanar(int parallelism) {
 		// physical description
 		target = FactoryPlanarCalibrationTarget.gridChess(10, 7, 31.5); // 10 cols x 7 rows, 31.5 mm target 
  
@@ -115,109 +273,940 @@ public class CalibrateMonocularPlanar implements Runnable {
 		// set intrinsic parameters to null to indicate that calibration has not been performed yet
 		intrinsic = null;
 		
-		// Initialize the list to contain the calibration images
-		images = new ArrayList<ImageFloat32>(num_calibr_images);
+		// Initialize the list to contain the observed calibration points
+		observations = new TreeMap<Integer, List<Point2D_F64>>();
 		
-		intrinsicLock = new Object(); 
+		final AtomicInteger count = new AtomicInteger();
+		detectionThreads = Executors.newFixedThreadPool(parallelism, new ThreadFactory() {
+			@Override
+			public Thread newThread(Runnable r) {
+				Thread t = new Thread(r, "CalibrationDetector-" + count.incrementAndGet());
+				t.setDaemon(true);
+				return t;
+			}
+		});
+		solverExecutor = new RowBandExecutor(parallelism, 1);
+		jobThread = Executors.newSingleThreadExecutor(new ThreadFactory() {
+			@Override
+			public Thread newThread(Runnable r) {
+				Thread t = new Thread(r, "Calibration");
+				t.setDaemon(true);
+				return t;
+			}
+		});
+		incrementalThread = Executors.newSingleThreadExecutor(new ThreadFactory() {
+			@Override
+			public Thread newThread(Runnable r) {
+				Thread t = new Thread(r, "CalibrationIncremental");
+				t.setDaemon(true);
+				// the display must never wait for the solver
+				t.setPriority(Thread.MIN_PRIORITY);
+				return t;
+			}
+		});
 	}
  
+	/**
+	 * Set the pool where the calibration images are released once the target has been detected.
+	 * Images added with {@link #addImage(ImageFloat32)} are then owned by this object.
+	 * @param imagePool The pool, or {@code null} to leave the images to the garbage collector.
+	 */
+	public void setImagePool(ImagePool imagePool) {
+		this.imagePool = imagePool;
+	}
+	
+	
 	/**
 	 * Add an image to the calibration set.
-	 * @param Image
+	 * The calibration target is detected in the background; only the observed calibration points are kept and
+	 * the image is released (see {@link #setImagePool(ImagePool)}) as soon as the detection is done. If the target
+	 * is not found, the image is discarded and counted in {@link #getRejectedCount()}.
+	 * The caller must not modify the image after this call.
+	 * @param img	The image.
+	 */
+	public void addImage(final ImageFloat32 img) {
+		final int gen, sequence;
+		synchronized (viewsLock) {
+			checkCapacity();
+			checkImageSize(img.width, img.height);
+			pendingDetections++;
+			gen = generation;
+			sequence = nextSequence++;
+		}
+		detectionThreads.execute(new Runnable() {
+			@Override
+			public void run() {
+				List<Point2D_F64> points = null;
+				try {
+					PlanarCalibrationDetector d = detector.get();
+					if (d.process(img)) {
+						points = copyPoints(d.getPoints());
+					}
+				}
+				finally {
+					if (imagePool != null) {
+						imagePool.release(img);
+					}
+					detectionDone(gen, sequence, points, null);
+				}
+			}
+		});
+	}
+	
+	
+	/**
+	 * Add an 8-bit image to the calibration set. A copy of the image is kept in the frame store (see 
+	 * {@link #setFrameStore(FrameStore)}) until the target is detected in the background; it is converted to 
+	 * floating point only then, into a buffer reused by the detection thread.
+	 * The caller keeps the ownership of the image and can reuse it right after this call.
+	 * @param img	The image.
+	 * @see #addImage(ImageFloat32)
+	 */
+	public void addImage(ImageUInt8 img) {
+		final int gen, sequence;
+		final FrameStore store;
+		synchronized (viewsLock) {
+			checkCapacity();
+			checkImageSize(img.width, img.height);
+			pendingDetections++;
+			gen = generation;
+			sequence = nextSequence++;
+			store = frames;
+		}
+		// copied without holding the lock, the store may compress the frame; sequence numbers are never reused,
+		// thus a frame stored after a clear() is only an orphan, deleted by detectionDone()
+		store.put(sequence, img);
+		detectionThreads.execute(new Runnable() {
+			@Override
+			public void run() {
+				List<Point2D_F64> points = null;
+				try {
+					ImageFloat32 gray = scratch.get();
+					// the frame is missing if the views were cleared in the meantime
+					if (store.convert(sequence, gray)) {
+						PlanarCalibrationDetector d = detector.get();
+						if (d.process(gray)) {
+							points = copyPoints(d.getPoints());
+						}
+					}
+				}
+				finally {
+					detectionDone(gen, sequence, points, store);
+				}
+			}
+		});
+	}
+	
+	
+	/**
+	 * Record the result of a detection and wake up the threads waiting for it.
+	 * @param gen		Generation of the views when the image was added.
+	 * @param sequence	Sequence number of the image.
+	 * @param points	The observed points, or {@code null} if the target was not detected.
+	 * @param store		Frame store holding the image, null if the image was not stored.
+	 */
+	private void detectionDone(int gen, int sequence, List<Point2D_F64> points, FrameStore store) {
+		synchronized (viewsLock) {
+			pendingDetections--;
+			if (gen == generation) {
+				if (points != null) {
+					storeView(sequence, points);
+				}
+				else {
+					rejectedCount++;
+					System.err.println("Failed to detect target in image " + (sequence - firstSequence + 1));
+				}
+				if (store != null) {
+					if (points != null && retainFrames && observations.containsKey(sequence)) {
+						cropFrame(store, sequence, points);
+					}
+					else {
+						store.remove(sequence);
+					}
+				}
+			}
+			else if (store != null) {
+				store.remove(sequence);
+			}
+			viewsLock.notifyAll();
+		}
+	}
+	
+	
+	/**
+	 * Crop a stored frame to the bounding box of the observed points, plus a margin.
+	 */
+	private static void cropFrame(FrameStore store, int sequence, List<Point2D_F64> points) {
+		double x0 = Double.MAX_VALUE, y0 = Double.MAX_VALUE, x1 = -Double.MAX_VALUE, y1 = -Double.MAX_VALUE;
+		for (Point2D_F64 p : points) {
+			x0 = Math.min(x0, p.x);
+			y0 = Math.min(y0, p.y);
+			x1 = Math.max(x1, p.x);
+			y1 = Math.max(y1, p.y);
+		}
+		double margin = FRAME_CROP_MARGIN*Math.max(x1 - x0, y1 - y0);
+		store.crop(sequence, (int)Math.floor(x0 - margin), (int)Math.floor(y0 - margin), 
+				(int)Math.ceil(x1 + margin) + 1, (int)Math.ceil(y1 + margin) + 1);
+	}
+	
+	
+	/**
+	 * Set the store where the 8-bit images wait for detection, a {@link CompactFrameStore} by default. The frames 
+	 * in the previous store are not moved, thus this should be called before adding images.
+	 * @param store	The frame store.
 	 */
-	public void addImage(ImageFloat32 img) {
-		if (images.size() < num_calibr_images) {
-			images.add(img);
+	public void setFrameStore(FrameStore store) {
+		if (store == null) {
+			throw new IllegalArgumentException("The frame store cannot be null.");
 		}
-		else {
+		frames = store;
+	}
+	
+	
+	/** @return The store where the 8-bit images wait for detection. */
+	public FrameStore getFrameStore() {
+		return frames;
+	}
+	
+	
+	/**
+	 * Keep the 8-bit images where the target was detected, cropped around the target, instead of deleting them 
+	 * after detection. Views discarded by the view selection are deleted anyway.
+	 * @param retain	{@code true} to keep the images.
+	 */
+	public void setRetainFrames(boolean retain) {
+		this.retainFrames = retain;
+	}
+	
+	
+	/**
+	 * A retained image, see {@link #setRetainFrames(boolean)}.
+	 * @param sequence	Index of the image, in the order the images were added since the last {@link #clear()}.
+	 * @return A copy of the image, or {@code null} if it is not available.
+	 */
+	public FrameStore.Frame getFrame(int sequence) {
+		int first;
+		synchronized (viewsLock) {
+			first = firstSequence;
+		}
+		return frames.get(first + sequence);
+	}
+	
+	
+	/**
+	 * Add a batch of images to the calibration set. The target is detected in all the images in parallel;
+	 * the views keep the order of the list. Call {@link #awaitDetections()} or {@link #process()} to wait for 
+	 * the detections to complete.
+	 * @param imgs	The images.
+	 * @see #addImage(ImageFloat32)
+	 */
+	public void addImages(List<ImageFloat32> imgs) {
+		for (ImageFloat32 img : imgs) {
+			addImage(img);
+		}
+	}
+	
+	
+	/**
+	 * Add the calibration points observed in an image by an external detector.
+	 * @param points	Calibration points, in the order of the target description, in image coordinates.
+	 * @param width		Width of the image.
+	 * @param height	Height of the image.
+	 */
+	public void addObservation(List<Point2D_F64> points, int width, int height) {
+		if (points.size() != target.points.size()) {
+			throw new IllegalArgumentException("Expected " + target.points.size() + " points, found " + points.size());
+		}
+		synchronized (viewsLock) {
+			checkCapacity();
+			checkImageSize(width, height);
+			storeView(nextSequence++, copyPoints(points));
+		}
+	}
+	
+	
+	/**
+	 * Verify that there is room for another image. With view selection only the images waiting for detection
+	 * count, since the selector keeps the number of views within the limit.
+	 * Must be called holding {@link #viewsLock}.
+	 */
+	private void checkCapacity() {
+		int stored = selector == null ? observations.size() + pendingDetections : pendingDetections;
+		if (stored >= maxImages) {
 			throw new RuntimeException("Max calibration images exceeded.");
 		}
 	}
+	
+	
+	/**
+	 * Store the points observed in a view, unless the view selection discards them, and queue an incremental
+	 * re-solve. Must be called holding {@link #viewsLock}.
+	 */
+	private void storeView(int sequence, List<Point2D_F64> points) {
+		if (selector != null) {
+			int dropped = selector.offer(sequence, points, widthImg, heightImg);
+			if (dropped == sequence) {
+				return;
+			}
+			if (dropped != ViewSelector.NONE) {
+				observations.remove(dropped);
+				frames.remove(dropped);
+			}
+		}
+		observations.put(sequence, points);
+		scheduleIncremental();
+	}
+	
+	
+	/**
+	 * Enable or disable the selection of the most informative views, see {@link ViewSelector}. When enabled,
+	 * the views already stored are offered to the selector in the order they were added.
+	 * @param enable	{@code true} to enable the view selection.
+	 */
+	public void setViewSelection(boolean enable) {
+		synchronized (viewsLock) {
+			if (!enable) {
+				selector = null;
+				return;
+			}
+			if (selector != null) {
+				return;
+			}
+			selector = new ViewSelector(target.points);
+			selector.setCapacity(maxImages);
+			Map<Integer, List<Point2D_F64>> views = new TreeMap<Integer, List<Point2D_F64>>(observations);
+			observations.clear();
+			for (Map.Entry<Integer, List<Point2D_F64>> e : views.entrySet()) {
+				storeView(e.getKey(), e.getValue());
+			}
+		}
+	}
+	
+	
+	/**
+	 * The view selector, used to display the coverage map.
+	 * @return The selector, or {@code null} if the view selection is disabled.
+	 */
+	public ViewSelector getViewSelector() {
+		synchronized (viewsLock) {
+			return selector;
+		}
+	}
+	
+	
+	/**
+	 * Record the size of the first image, and verify that the following images have the same size.
+	 * Must be called holding {@link #viewsLock}.
+	 */
+	private void checkImageSize(int width, int height) {
+		if (widthImg == 0) {
+			widthImg = width;
+			heightImg = height;
+		}
+		else if (widthImg != width || heightImg != height) {
+			throw new IllegalArgumentException("All images must have the same shape");
+		}
+	}
+	
+	
+	/**
+	 * Deep copy of a list of points, since detectors may recycle their output.
+	 */
+	private static List<Point2D_F64> copyPoints(List<Point2D_F64> points) {
+		List<Point2D_F64> copy = new ArrayList<Point2D_F64>(points.size());
+		for (Point2D_F64 p : points) {
+			copy.add(p.copy());
+		}
+		return copy;
+	}
  
 	
 	/**
-	 * Number of images currently stored for calibration.
+	 * Number of images currently stored for calibration, including the images still waiting for detection.
 	 * @return The number of images stored for calibration.
 	 */
 	public int getStoredImagesCount() {
-		return images.size();
+		synchronized (viewsLock) {
+			return observations.size() + pendingDetections;
+		}
+	}
+	
+	
+	/**
+	 * @return Number of images where the target was detected.
+	 */
+	public int getDetectedCount() {
+		synchronized (viewsLock) {
+			return observations.size();
+		}
+	}
+	
+	
+	/**
+	 * @return Number of images discarded because the target was not detected.
+	 */
+	public int getRejectedCount() {
+		synchronized (viewsLock) {
+			return rejectedCount;
+		}
+	}
+	
+	
+	/**
+	 * Block until the detection of all the images added so far is complete.
+	 * @throws InterruptedException If the thread is interrupted while waiting.
+	 */
+	public void awaitDetections() throws InterruptedException {
+		awaitDetections(0);
+	}
+	
+	
+	/**
+	 * Block until at most {@code maxPending} images are waiting for detection; used to limit the memory
+	 * held by images queued faster than they can be processed.
+	 * @param maxPending	Maximum number of pending detections.
+	 * @throws InterruptedException If the thread is interrupted while waiting.
+	 */
+	public void awaitDetections(int maxPending) throws InterruptedException {
+		synchronized (viewsLock) {
+			while (pendingDetections > maxPending) {
+				viewsLock.wait();
+			}
+		}
+	}
+	
+	
+	/**
+	 * Block until the detection of all the images is complete, reporting the progress to a job.
+	 */
+	private void awaitDetections(CalibrationJob job) throws InterruptedException {
+		while (true) {
+			int done, total;
+			synchronized (viewsLock) {
+				done = nextSequence - firstSequence - pendingDetections;
+				total = nextSequence - firstSequence;
+			}
+			job.progress(CalibrationProgress.Stage.DETECTION, done, total, Double.NaN);
+			synchronized (viewsLock) {
+				if (pendingDetections == 0) {
+					return;
+				}
+				viewsLock.wait();
+			}
+		}
+	}
+	
+	
+	/**
+	 * Enable or disable the incremental mode: the problem is re-solved in the background after each detected
+	 * view, warm-started from the previous solution.
+	 * @param incremental	{@code true} to enable the incremental mode.
+	 */
+	public void setIncremental(boolean incremental) {
+		this.incremental = incremental;
+		if (incremental) {
+			synchronized (viewsLock) {
+				scheduleIncremental();
+			}
+		}
+	}
+	
+	
+	/** @return {@code true} if the incremental mode is enabled. */
+	public boolean isIncremental() {
+		return incremental;
+	}
+	
+	
+	/**
+	 * Set the maximum number of iterations of each incremental re-solve.
+	 * @param iterations	Number of iterations, at least 1.
+	 */
+	public void setIncrementalIterations(int iterations) {
+		if (iterations < 1) {
+			throw new IllegalArgumentException("iterations must be at least 1.");
+		}
+		this.incrementalIterations = iterations;
+	}
+	
+	
+	/**
+	 * Intrinsic parameters of the latest incremental solution. They are updated in the background as views are
+	 * added, so they are an approximation of the result of {@link #process()}.
+	 * @return A copy of the parameters, or {@code null} if no incremental solution is available.
+	 */
+	public IntrinsicParameters getIncrementalIntrinsic() {
+		IntrinsicParameters res = incrementalIntrinsic;
+		return res == null ? null : new IntrinsicParameters(res);
+	}
+	
+	
+	/**
+	 * Queue an incremental re-solve, unless one is already queued: views detected while a re-solve is queued
+	 * are picked up by it. Must be called holding {@link #viewsLock}.
+	 */
+	private void scheduleIncremental() {
+		if (!incremental || incrementalQueued || observations.size() < MIN_INCREMENTAL_VIEWS) {
+			return;
+		}
+		incrementalQueued = true;
+		incrementalThread.execute(new Runnable() {
+			@Override
+			public void run() {
+				try {
+					solve(incrementalIterations, true, true, null);
+				}
+				catch (RuntimeException e) {
+					System.err.println("Incremental calibration failed: " + e.getMessage());
+				}
+			}
+		});
+	}
+	
+	
+	/**
+	 * Solve the problem with the views detected so far.
+	 * @param maxIterations	Maximum number of iterations of the non-linear refinement.
+	 * @param isIncremental	{@code true} if called for an incremental re-solve.
+	 * @param warmStart		{@code true} to start from the previous solution, if available.
+	 * @return The solution and the views it was computed from, or {@code null} if there are not enough views
+	 * (incremental re-solve only).
+	 */
+	private Solution solve(int maxIterations, boolean isIncremental, boolean warmStart, final CalibrationJob job) {
+		Solution sol = new Solution();
+		Zhang99Parameters previous;
+		int[] previousSequences;
+		int gen;
+		synchronized (viewsLock) {
+			if (isIncremental) {
+				incrementalQueued = false;
+				if (observations.size() < MIN_INCREMENTAL_VIEWS) {
+					return null;
+				}
+			}
+			sol.sequences = new int[observations.size()];
+			sol.views = new ArrayList<List<Point2D_F64>>(observations.size());
+			int i = 0;
+			for (Map.Entry<Integer, List<Point2D_F64>> e : observations.entrySet()) {
+				sol.sequences[i++] = e.getKey();
+				sol.views.add(e.getValue());
+			}
+			sol.width = widthImg;
+			sol.height = heightImg;
+			previous = warm;
+			previousSequences = warmSequences;
+			gen = generation;
+		}
+		
+		sol.views = adjust(sol.views, sol.height);
+		
+		// tell the solver the type of target and which parameters to estimate
+		PlanarCalibrationSolver zhang99 = new PlanarCalibrationSolver(target, true, 2, solverExecutor);
+		if (job != null) {
+			job.progress(CalibrationProgress.Stage.INITIAL_ESTIMATE, 0, 1, Double.NaN);
+			zhang99.setIterationListener(new PlanarCalibrationSolver.IterationListener() {
+				@Override
+				public void onIteration(int iteration, int maxIterations, double residual) {
+					job.progress(CalibrationProgress.Stage.REFINEMENT, iteration, maxIterations, residual);
+				}
+			});
+		}
+		Zhang99Parameters initial = null;
+		if (warmStart && previous != null) {
+			// both arrays of sequence numbers are sorted
+			int[] previousIndex = new int[sol.sequences.length];
+			int j = 0;
+			for (int i = 0; i < sol.sequences.length; i++) {
+				while (j < previousSequences.length && previousSequences[j] < sol.sequences[i]) {
+					j++;
+				}
+				previousIndex[i] = j < previousSequences.length && previousSequences[j] == sol.sequences[i] ? j : -1;
+			}
+			initial = zhang99.warmStart(sol.views, previous, previousIndex);
+		}
+		if (initial == null) {
+			initial = zhang99.initialParam(sol.views);
+		}
+		if (initial == null) {
+			throw new RuntimeException("Zhang99 algorithm failed!");
+		}
+		zhang99.refine(sol.views, initial, maxIterations);
+		sol.found = zhang99.getOptimized();
+		
+		IntrinsicParameters result = sol.found.convertToIntrinsic();
+		result.flipY = flipY;
+		result.width = sol.width;
+		result.height = sol.height;
+		sol.intrinsic = result;
+		
+		synchronized (viewsLock) {
+			// discard the solution if the views were cleared in the meantime
+			if (gen == generation) {
+				warm = sol.found;
+				warmSequences = sol.sequences;
+				if (incremental) {
+					incrementalIntrinsic = result;
+				}
+			}
+		}
+		return sol;
+	}
+	
+	
+	/**
+	 * Make it so +y is pointed up not down, and becomes a right handed coordinate system, if {@link #flipY} is set.
+	 * @return The adjusted views, or the same list if no adjustment is needed.
+	 */
+	private List<List<Point2D_F64>> adjust(List<List<Point2D_F64>> views, int height) {
+		if (!flipY) {
+			return views;
+		}
+		List<List<Point2D_F64>> adjusted = new ArrayList<List<Point2D_F64>>(views.size());
+		for (List<Point2D_F64> points : views) {
+			List<Point2D_F64> a = new ArrayList<Point2D_F64>(points.size());
+			for (Point2D_F64 p : points) {
+				a.add(new Point2D_F64(p.x, height - p.y - 1));
+			}
+			adjusted.add(a);
+		}
+		return adjusted;
+	}
+	
+	
+	/**
+	 * A solution and the views it was computed from.
+	 */
+	private static class Solution {
+		int[] sequences;
+		List<List<Point2D_F64>> views;
+		int width, height;
+		Zhang99Parameters found;
+		IntrinsicParameters intrinsic;
+	}
+	
+	
+	/**
+	 * Detection result of each image added since the last {@link #clear()}, in the order the images were added.
+	 * @return For each image, {@code true} if the target was detected and the view is used for calibration; 
+	 * images still being processed and views dropped by the view selection are reported as {@code false}.
+	 */
+	public boolean[] getDetectionResults() {
+		synchronized (viewsLock) {
+			boolean[] res = new boolean[nextSequence - firstSequence];
+			for (Integer sequence : observations.keySet()) {
+				res[sequence - firstSequence] = true;
+			}
+			return res;
+		}
+	}
+	
+	
+	/**
+	 * Set the maximum number of images in the calibration set, {@link #num_calibr_images} by default.
+	 * @param maxImages	The maximum number of images, at least 1.
+	 */
+	public void setMaxImages(int maxImages) {
+		if (maxImages < 1) {
+			throw new IllegalArgumentException("maxImages must be at least 1.");
+		}
+		synchronized (viewsLock) {
+			this.maxImages = maxImages;
+			if (selector != null) {
+				selector.setCapacity(maxImages);
+			}
+		}
+	}
+	
+	
+	/** @return The maximum number of images in the calibration set. */
+	public int getMaxImages() {
+		synchronized (viewsLock) {
+			return maxImages;
+		}
 	}
 	
 	
 	/**
-	 * Deletes all images currently stored for calibration.
+	 * Deletes all the calibration data stored so far. Detections still in progress are discarded.
 	 */
 	public void clear() {
-		images.clear();
+		synchronized (viewsLock) {
+			observations.clear();
+			firstSequence = nextSequence;
+			rejectedCount = 0;
+			generation++;
+			widthImg = heightImg = 0;
+			warm = null;
+			warmSequences = null;
+			incrementalIntrinsic = null;
+			if (selector != null) {
+				selector.clear();
+			}
+			frames.clear();
+			outliers.clear();
+			viewErrors = new ArrayList<ViewError>();
+		}
+	}
+	
+	
+	/**
+	 * Stop the detection and solver threads; the object cannot accept new images afterwards.
+	 */
+	public void shutdown() {
+		detectionThreads.shutdown();
+		jobThread.shutdownNow();
+		incrementalThread.shutdown();
+		solverExecutor.shutdown();
 	}
 	
 	
 	/**
-	 * Perform the calibration using the images previously stored in the object.
+	 * Perform the calibration using the points observed in the images previously added.
+	 * Waits for the detections still in progress, then runs only the solver. In incremental mode the non-linear 
+	 * refinement starts from the latest incremental solution, thus it usually takes only a few iterations.
 	 * This function may be slow, therefore asynchronous invocation is recommended.
 	 * @see #processAsync(CalibrationListener)
 	 */
 	public void process() {
+		process(null);
+	}
+	
+	
+	/**
+	 * Perform the calibration, reporting the progress to a job.
+	 * @param job	The job, or null.
+	 * @return The intrinsic parameters.
+	 * @throws java.util.concurrent.CancellationException If the job is cancelled.
+	 */
+	IntrinsicParameters process(CalibrationJob job) {
+		try {
+			if (job != null) {
+				awaitDetections(job);
+				job.detectionDone();
+			}
+			else {
+				awaitDetections();
+			}
+		}
+		catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			if (job != null) {
+				job.checkCancelled();
+			}
+			throw new RuntimeException("Interrupted while waiting for target detection.", e);
+		}
+		// warm-started from the latest incremental solution, if any; converges in a few iterations
+		Solution sol = solve(PlanarCalibrationSolver.DEFAULT_MAX_ITERATIONS, false, incremental, job);
+		List<ImageResults> errors = CalibrateMonoPlanar.computeErrors(sol.views, sol.found, target.points);
+		
+		// set aside the views that do not fit the model and re-solve from the previous solution
+		for (int round = 0; outlierRejection && round < MAX_OUTLIER_ROUNDS; round++) {
+			List<Integer> rejected = findOutliers(sol.sequences, errors);
+			if (rejected.isEmpty()) {
+				break;
+			}
+			rejectViews(rejected);
+			sol = solve(PlanarCalibrationSolver.DEFAULT_MAX_ITERATIONS, false, true, job);
+			errors = CalibrateMonoPlanar.computeErrors(sol.views, sol.found, target.points);
+		}
+		if (job != null) {
+			job.solveDone();
+		}
+		// publish the result
+		viewErrors = collectErrors(sol, errors);
+		intrinsic = sol.intrinsic;
  
-		// Declare and setup the calibration algorithm
-		CalibrateMonoPlanar calibrationAlg = new CalibrateMonoPlanar(detector, flipY);
- 
-		// tell it type type of target and which parameters to estimate
-		calibrationAlg.configure(target, true, 2);
- 
-		int count = 0;
-		for( ImageFloat32 img : images ) {
-			//BufferedImage input = UtilImageIO.loadImage(n);
-			if( img != null ) {
-				count ++;
-				//ImageFloat32 image = ConvertBufferedImage.convertFrom(input,(ImageFloat32)null);
-				if( !calibrationAlg.addImage(img) )
-					System.err.println("Failed to detect target in " + count);
-			}
-		}
-		// process and compute intrinsic parameters
-		intrinsic = calibrationAlg.process();
- 
-		// save results to a file and print out
-		//UtilIO.saveXML(intrinsic, "intrinsic.xml");
- 
-		calibrationAlg.printStatistics();
+		// print out the results
+		CalibrateMonoPlanar.printErrors(errors);
 		System.out.println();
 		System.out.println("--- Intrinsic Parameters ---");
 		System.out.println();
-		intrinsic.print();
+		sol.intrinsic.print();
+		return sol.intrinsic;
 	}
 
 	/**
-	 * Start the calibration process asynchronously in a new thread.
-	 * When the calibration is complete, the function onCalibrationCompleted is invoked
-	 * by the calibration thread.
-	 * If this method is invoked while the calibration thread is already running, 
-	 * a RuntimException is thrown. 
-	 * 
-	 * @param calibrListener
-	 * @see #process()
+	 * Select the outlier views of a solution: those whose mean reprojection error exceeds both the minimum error 
+	 * and the outlier factor times the median error, the worst first, leaving at least {@link #MIN_INLIER_VIEWS}.
+	 * @return The sequence numbers of the outliers.
 	 */
-	public void processAsync(CalibrationListener calibrListener) {
-		if (thread == null) {
-			this.calibrListener = calibrListener;
-			thread = new Thread(this);
-			thread.start();
+	private List<Integer> findOutliers(int[] sequences, List<ImageResults> errors) {
+		final double[] mean = new double[errors.size()];
+		for (int i = 0; i < mean.length; i++) {
+			mean[i] = errors.get(i).meanError;
 		}
-		else {
-			throw new RuntimeException("The calibration process is already running.");
+		double[] sorted = mean.clone();
+		Arrays.sort(sorted);
+		double median = sorted.length % 2 == 1 ? sorted[sorted.length/2] 
+				: 0.5*(sorted[sorted.length/2 - 1] + sorted[sorted.length/2]);
+		double threshold = Math.max(minOutlierError, outlierFactor*median);
+		
+		List<Integer> candidates = new ArrayList<Integer>();
+		for (int i = 0; i < mean.length; i++) {
+			if (mean[i] > threshold) {
+				candidates.add(i);
+			}
+		}
+		Collections.sort(candidates, new Comparator<Integer>() {
+			@Override
+			public int compare(Integer a, Integer b) {
+				return Double.compare(mean[b], mean[a]);
+			}
+		});
+		List<Integer> rejected = new ArrayList<Integer>();
+		for (int i = 0; i < candidates.size() && mean.length - rejected.size() > MIN_INLIER_VIEWS; i++) {
+			int v = candidates.get(i);
+			System.err.println(String.format("Rejecting view %d: mean error %.3f, median %.3f", 
+					sequences[v] - firstSequence + 1, mean[v], median));
+			rejected.add(sequences[v]);
 		}
+		return rejected;
 	}
-
-	@Override
-	public void run() {
-		synchronized (intrinsicLock) {
-			process();
+	
+	
+	/**
+	 * Move views from the observations to the outliers.
+	 */
+	private void rejectViews(List<Integer> sequences) {
+		synchronized (viewsLock) {
+			for (int sequence : sequences) {
+				List<Point2D_F64> points = observations.remove(sequence);
+				if (points != null) {
+					outliers.put(sequence, points);
+					if (selector != null) {
+						selector.remove(sequence);
+					}
+				}
+			}
 		}
-		// callback if needed
-		if (calibrListener != null) {
-			calibrListener.onCalibrationCompleted(intrinsic);
+	}
+	
+	
+	/**
+	 * Reprojection errors of the views of a solution and of the outliers, in the order of the views.
+	 */
+	private List<ViewError> collectErrors(Solution sol, List<ImageResults> errors) {
+		List<Integer> outlierSequences;
+		List<List<Point2D_F64>> outlierViews;
+		int first;
+		synchronized (viewsLock) {
+			outlierSequences = new ArrayList<Integer>(outliers.keySet());
+			outlierViews = new ArrayList<List<Point2D_F64>>(outliers.values());
+			first = firstSequence;
 		}
-		thread = null;
-	}	
+		List<ViewError> res = new ArrayList<ViewError>(sol.sequences.length + outlierSequences.size());
+		for (int i = 0; i < sol.sequences.length; i++) {
+			res.add(new ViewError(sol.sequences[i] - first, errors.get(i), false));
+		}
+		if (!outlierViews.isEmpty()) {
+			// the solution has no pose for the outliers: estimate it from the homography and the final intrinsics
+			List<List<Point2D_F64>> adjusted = adjust(outlierViews, sol.height);
+			int[] none = new int[adjusted.size()];
+			Arrays.fill(none, -1);
+			Zhang99Parameters poses = new PlanarCalibrationSolver(target, true, 2, solverExecutor)
+					.warmStart(adjusted, sol.found, none);
+			if (poses != null) {
+				List<ImageResults> outlierErrors = CalibrateMonoPlanar.computeErrors(adjusted, poses, target.points);
+				for (int i = 0; i < outlierSequences.size(); i++) {
+					if (outlierSequences.get(i) >= first) {
+						res.add(new ViewError(outlierSequences.get(i) - first, outlierErrors.get(i), true));
+					}
+				}
+			}
+		}
+		Collections.sort(res, new Comparator<ViewError>() {
+			@Override
+			public int compare(ViewError a, ViewError b) {
+				return a.index < b.index ? -1 : (a.index == b.index ? 0 : 1);
+			}
+		});
+		return res;
+	}
+	
+	
+	/**
+	 * Enable or disable the rejection of the outlier views in {@link #process()}, enabled by default.
+	 * @param enable	{@code true} to reject the outliers.
+	 */
+	public void setOutlierRejection(boolean enable) {
+		this.outlierRejection = enable;
+	}
+	
+	
+	/** @return {@code true} if the outlier views are rejected. */
+	public boolean isOutlierRejection() {
+		return outlierRejection;
+	}
+	
+	
+	/**
+	 * Set the thresholds of the outlier rejection. A view is an outlier if its mean reprojection error is larger
+	 * than both {@code factor} times the median of the mean errors of all views and {@code minError}.
+	 * @param factor	Ratio to the median error, {@link #DEFAULT_OUTLIER_FACTOR} by default.
+	 * @param minError	Minimum error in pixels, {@link #DEFAULT_MIN_OUTLIER_ERROR} by default.
+	 */
+	public void setOutlierThresholds(double factor, double minError) {
+		if (factor <= 1 || minError < 0) {
+			throw new IllegalArgumentException("factor must be larger than 1 and minError cannot be negative.");
+		}
+		this.outlierFactor = factor;
+		this.minOutlierError = minError;
+	}
+	
+	
+	/**
+	 * Reprojection errors of each view with respect to the result of the last {@link #process()}, including the
+	 * views rejected as outliers. The pose of an outlier is not refined, it is estimated from the final intrinsic 
+	 * parameters and the homography of the view.
+	 * @return The errors, in the order the images were added; empty if not calibrated since the last 
+	 * {@link #clear()}.
+	 */
+	public List<ViewError> getViewErrors() {
+		return Collections.unmodifiableList(viewErrors);
+	}
+	
+	
+	/**
+	 * @return Number of views rejected as outliers since the last {@link #clear()}.
+	 */
+	public int getOutlierCount() {
+		synchronized (viewsLock) {
+			return outliers.size();
+		}
+	}
+	
+	
+	/**
+	 * Reprojection error of a view.
+	 */
+	public static class ViewError {
+		/** Index of the image, in the order the images were added since the last {@link #clear()}. */
+		public final int index;
+		/** Error statistics of the calibration points; see {@link CalibrateMonoPlanar#computeErrors}. */
+		public final ImageResults errors;
+		/** {@code true} if the view was rejected as an outlier. */
+		public final boolean outlier;
+		
+		ViewError(int index, ImageResults errors, boolean outlier) {
+			this.index = index;
+			this.errors = errors;
+			this.outlier = outlier;
+		}
+	}
+	
+	
+	/**
+	 * Start the calibration process asynchronously.
+	 * Jobs are executed one at a time by a dedicated thread, in the order they are submitted. The listener is
+	 * notified of the progress and of the result, see {@link CalibrationJob}.
+	 * 
+	 * @param calibrListener	Receives the notifications, may be null.
+	 * @return The handle of the job, used to wait for the result or to cancel it.
+	 * @see #process()
+	 */
+	public CalibrationJob processAsync(CalibrationListener calibrListener) {
+		CalibrationJob job = new CalibrationJob(this, calibrListener);
+		jobThread.execute(job.getTask());
+		return job;
+	}
 }
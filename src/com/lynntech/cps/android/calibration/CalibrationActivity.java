@@ -72,19 +72,16 @@ import android.widget.ImageButton;
 import android.widget.TextView;
 import android.widget.Toast;
 import android.graphics.Rect;
-import boofcv.alg.distort.ImageDistort;
-import boofcv.alg.distort.LensDistortionOps;
-import boofcv.alg.misc.GImageMiscOps;
 import boofcv.android.ConvertBitmap;
-import boofcv.android.ConvertNV21;
-import boofcv.android.VisualizeImageData;
 import boofcv.struct.calib.IntrinsicParameters;
 import boofcv.struct.image.ImageFloat32;
-import boofcv.struct.image.ImageType;
 import boofcv.struct.image.ImageUInt8;
-import boofcv.core.image.ConvertImage;
-import boofcv.core.image.border.BorderType;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
 import java.util.List;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.TimeUnit;
 
 import com.lynntech.cps.android.R;
 
@@ -115,12 +112,40 @@ public class CalibrationActivity extends Activity
 	/// View used to show images (i.e. camera preview indeed).
 	private CameraPreview mPreview;
 
-	// Two images are needed to store the converted preview image to prevent a thread conflict from occurring
-	private ImageUInt8 gray1, gray2;
+	/// Lock-free triple buffer that hands the converted preview images from the camera thread to the worker thread.
+	private FrameExchanger<ImageUInt8> grayExchanger;
+
+	/// The most recent preview image, owned by the worker thread.
+	private ImageUInt8 gray2;
+	
+	/// Number of NV21 buffers recycled between the camera and {@link #onPreviewFrame(byte[], Camera)}.
+	private static final int NUM_PREVIEW_BUFFERS = 3;
+	
+	/// Pool of NV21 buffers used to receive the preview frames without allocating memory for each frame.
+	private PreviewBufferPool previewBuffers;
 
 	/// Object used to store the image after distortion has been removed. 
 	private ImageFloat32 grayf32_undist;
 	
+	/// Pool of the images used by the worker thread: display, snapped calibration images and undistortion output.
+	/// Snapped images are released as soon as the target has been detected, so only a few are ever leased.
+	private final ImagePool imagePool = new ImagePool();
+	
+	/// Threads used to split the per-frame image operations into row bands, one per core.
+	private final RowBandExecutor bandExecutor = new RowBandExecutor();
+	
+	/// Per-frame image operations, executed in parallel by {@link #bandExecutor}.
+	private final ParallelImageOps parallelOps = new ParallelImageOps(bandExecutor);
+	
+	/// Maximum width of the frames used for live detection of the calibration target.
+	private static final int LIVE_DETECTION_MAX_WIDTH = 640;
+	
+	/// Detects the calibration target at a reduced rate and resolution, to show it while aiming the camera.
+	private LiveTargetDetector liveDetector;
+	
+	/// Latest corners found by {@link #liveDetector}, only used by the UI thread while drawing.
+	private LiveTargetDetector.Corners liveCorners;
+	
 	/// Android image data used for displaying the results
 	private Bitmap output;
 	
@@ -130,9 +155,6 @@ public class CalibrationActivity extends Activity
 	// Thread where image data is processed
 	private ThreadProcess thread;
 
-	// Object used for synchronizing gray images
-	private final Object lockGray = new Object();
-	
 	// Object used for synchronizing output image
 	private final Object lockOutput = new Object();
 	
@@ -152,6 +174,9 @@ public class CalibrationActivity extends Activity
 	/// Calibration object instance.
 	private CalibrateMonocularPlanar calib;
 	
+	/// Scratch file where the snapped frames wait for detection, null if the frames are kept on the heap.
+	private MappedFrameStore mappedFrames;
+	
 	/// Reference to button Calibrate
 	private ImageButton btnCalibrate;
 	
@@ -162,7 +187,14 @@ public class CalibrationActivity extends Activity
 	private IntrinsicParameters intrinsic;
 	
 	/// Object used to apply un-distortion to images
-	private ImageDistort<ImageFloat32, ImageFloat32> undistAllInside;
+	private UndistortionTable undistAllInside;
+	
+	/// Remap tables shared by all the instances of the activity, so that re-opening the activity with the same
+	/// calibration, or switching between two resolutions, does not rebuild the table.
+	private static final UndistortionCache undistCache = new UndistortionCache(2);
+	
+	/// Directory of the persisted remap tables, in the private storage next to the calibration profiles.
+	private static final String UNDISTORTION_DIR = "undistortion";
 
 	/// Object to hold a reference to the UI text view that reports the number of pictures captured.
 	private TextView txtSnapCount;
@@ -170,6 +202,9 @@ public class CalibrationActivity extends Activity
 	/// A progress dialog to show calibration progress.
 	private ProgressDialog progDialog;
 	
+	/// The calibration being computed, null if none.
+	private volatile CalibrationJob calibJob;
+	
 	/// This object is used to provide haptic feedback to the user.
 	private Vibrator vibrator;
 	
@@ -182,6 +217,48 @@ public class CalibrationActivity extends Activity
 	/// Object used to control autofocus.
 	private FocusController focusController;
 	
+	/// Sharpness (variance of the Laplacian) a frame must reach to be snapped, see {@link SharpnessMetric}.
+	private volatile double sharpnessThreshold = 100;
+	
+	/// Maximum time a snap waits for a sharp frame before taking the next one anyway, in milliseconds.
+	private volatile long snapTimeoutMs = 2000;
+	
+	/// Sharpness of the latest frame, computed by the worker thread.
+	private volatile double sharpness;
+	
+	/// Distance between the pixels sampled to measure the sharpness.
+	private static final int SHARPNESS_STEP = 2;
+	
+	/// Get the sharpness of the latest frame (variance of the Laplacian).
+	public double getSharpness() {
+		return sharpness;
+	}
+	
+	
+	/// Get the sharpness a frame must reach to be snapped.
+	public double getSharpnessThreshold() {
+		return sharpnessThreshold;
+	}
+	
+	
+	/// Set the sharpness a frame must reach to be snapped; 0 snaps the next frame.
+	public void setSharpnessThreshold(double sharpnessThreshold) {
+		this.sharpnessThreshold = sharpnessThreshold;
+	}
+	
+	
+	/// Get the maximum time a snap waits for a sharp frame, in milliseconds.
+	public long getSnapTimeoutMs() {
+		return snapTimeoutMs;
+	}
+	
+	
+	/// Set the maximum time a snap waits for a sharp frame, in milliseconds.
+	public void setSnapTimeoutMs(long snapTimeoutMs) {
+		this.snapTimeoutMs = snapTimeoutMs;
+	}
+	
+	
 	/// Get the size of the Autofocus area (square side)
 	public float getFocusAreaSize() {
 		return focusAreaSize;
@@ -202,7 +279,24 @@ public class CalibrationActivity extends Activity
 		setContentView(R.layout.video);
 		
 		// Create the object to perform the calibration
+		// remap tables survive restarts: a calibration already seen is loaded instead of rebuilt
+		undistCache.setStore(new UndistortionTableStore(new File(getFilesDir(), UNDISTORTION_DIR)));
+		
 		calib = new CalibrateMonocularPlanar();
+		// snapped frames wait for detection in a memory-mapped scratch file, so that the heap does not grow with
+		// the number of snaps at full resolution; fall back to 8-bit images leased from the pool
+		try {
+			mappedFrames = new MappedFrameStore(getCacheDir());
+			calib.setFrameStore(mappedFrames);
+		}
+		catch (IOException e) {
+			Log.w("CALIBRATION", "Cannot create the frame store file, frames are kept on the heap.", e);
+			calib.setFrameStore(new CompactFrameStore(imagePool));
+		}
+		// solve in the background after each snap, so the result is ready soon after Calibrate is pressed
+		calib.setIncremental(true);
+		// keep only the most informative views, the coverage map is shown while aiming
+		calib.setViewSelection(true);
 
 		// Used to visualize the results
 		mDraw = new Visualization(this);
@@ -225,6 +319,17 @@ public class CalibrationActivity extends Activity
 		progDialog.setMessage("Calibrating..");
 		progDialog.setProgressStyle(ProgressDialog.STYLE_SPINNER);
 	    progDialog.setIndeterminate(true);		
+	    // going back while calibrating cancels the calibration
+	    progDialog.setCancelable(true);
+	    progDialog.setOnCancelListener(new DialogInterface.OnCancelListener() {
+			@Override
+			public void onCancel(DialogInterface dialog) {
+				CalibrationJob job = calibJob;
+				if (job != null) {
+					job.cancel();
+				}
+			}
+		});
 		
 	    // reset the number of pictures acquired
 		snapCount = 0;
@@ -294,10 +399,38 @@ public class CalibrationActivity extends Activity
 			mCamera = null;
 			thread.stopThread();
 			thread = null;
+			liveDetector.stop();
+			Log.i("PREVIEW", String.format("Frames: %d published, %d dropped; buffer pool exhausted %d times", 
+					grayExchanger.getPublishedCount(), grayExchanger.getDroppedCount(), 
+					previewBuffers.getExhaustedCount()));
+			for (ImagePool.Statistics stat : imagePool.getStatistics()) {
+				Log.i("IMAGEPOOL", stat.toString());
+			}
 		}
 	}
 	
 	
+	/**
+	 * The Destroy state is part of the Android Activity life cycle.
+	 */
+	@Override
+	protected void onDestroy() {
+		super.onDestroy();
+		calib.clear();
+		calib.shutdown();
+		if (mappedFrames != null) {
+			try {
+				mappedFrames.close();
+			}
+			catch (IOException e) {
+				Log.w("CALIBRATION", "Cannot delete the frame store file.", e);
+			}
+		}
+		imagePool.clear();
+		bandExecutor.shutdown();
+	}
+	
+	
 	/** 
 	 * Vibrate the device for one-half seconds (500ms).
 	 */
@@ -383,6 +516,8 @@ public class CalibrationActivity extends Activity
 		}
 		Camera.Size s = sizes.get(closest(sizes, desiredWidth, desiredHeight));
 		param.setPreviewSize(s.width,s.height);
+		// apply the preview size now: the preview buffers are sized on it
+		mCamera.setParameters(param);
 		// Setup Autofocus parameters
 		int numFocusAreas = param.getMaxNumFocusAreas();
 		Log.i("FOCUS", String.format("Max focus areas: %1d", numFocusAreas));
@@ -427,13 +562,32 @@ public class CalibrationActivity extends Activity
 		focusController = new FocusController(mCamera, vibrator);
 
 		// declare image data
-		gray1 = new ImageUInt8(s.width,s.height);
-		gray2 = new ImageUInt8(s.width,s.height);
+		grayExchanger = new FrameExchanger<ImageUInt8>(new ImageUInt8(s.width,s.height), 
+				new ImageUInt8(s.width,s.height), new ImageUInt8(s.width,s.height));
+		gray2 = null;
+		if (previewBuffers == null || previewBuffers.getBufferSize() != PreviewBufferPool.nv21BufferSize(s.width, s.height)) {
+			previewBuffers = new PreviewBufferPool(NUM_PREVIEW_BUFFERS, PreviewBufferPool.nv21BufferSize(s.width, s.height));
+		}
+		mPreview.setBufferPool(previewBuffers);
 		//derivX = new ImageSInt16(s.width,s.height);
 		//derivY = new ImageSInt16(s.width,s.height);
 		output = Bitmap.createBitmap(s.width,s.height,Bitmap.Config.ARGB_8888 );
 		storage = ConvertBitmap.declareStorage(output, storage);
 
+		// live detection of the calibration target, shown as an overlay
+		if (liveDetector == null || liveDetector.getFrameWidth() != s.width || liveDetector.getFrameHeight() != s.height) {
+			liveDetector = new LiveTargetDetector(CalibrateMonocularPlanar.targetConfig(), s.width, s.height, 
+					LIVE_DETECTION_MAX_WIDTH, LiveTargetDetector.DEFAULT_RATE);
+			liveDetector.setListener(new Runnable() {
+				@Override
+				public void run() {
+					mDraw.postInvalidate();
+				}
+			});
+			liveCorners = liveDetector.createCorners();
+		}
+		liveDetector.start();
+
 		// start image processing thread
 		thread = new ThreadProcess();
 		thread.start();
@@ -528,7 +682,10 @@ public class CalibrationActivity extends Activity
 	 * pushed onto a {@link #thread}.
 	 * 
 	 * The only processing consists in converting the image data from the Android native format NV21 
-	 * to a grayscale image that the rest of the app can handle.
+	 * to a grayscale image that the rest of the app can handle. Images from a front facing camera are mirrored
+	 * in the same pass, see {@link ConvertNV21Fused}. The conversion writes into the back buffer
+	 * of {@link #grayExchanger}, which is then published without taking any lock: if the worker thread
+	 * is still busy with an older frame, the camera thread never waits for it.
 	 * 
 	 * @param bytes		The array containing the image data.
 	 * @param camera	The camera object providing the data.
@@ -537,11 +694,23 @@ public class CalibrationActivity extends Activity
 	public void onPreviewFrame(byte[] bytes, Camera camera) {
 
 		// convert from NV21 format into gray scale
-		synchronized (lockGray) {
-			ConvertNV21.nv21ToGray(bytes,gray1.width,gray1.height,gray1);
-		}
-		// wake-up the worker thread
-		thread.interrupt();
+		ImageUInt8 gray = grayExchanger.getBackBuffer();
+		parallelOps.nv21ToGray(bytes, gray.width, gray.height, 0, 0, 1, flipHorizontal, gray);
+		// publish the frame and wake-up the worker thread
+		grayExchanger.publish();
+		// the NV21 data is no longer needed: give the buffer back to the camera
+		mPreview.releaseBuffer(bytes);
+	}
+	
+	
+	/**
+	 * Number of preview frames that were converted but never processed because a newer frame
+	 * replaced them before the worker thread was ready.
+	 * @return The number of dropped preview frames since the camera was set up.
+	 */
+	public long getDroppedFrameCount() {
+		FrameExchanger<ImageUInt8> exchanger = grayExchanger;
+		return exchanger == null ? 0 : exchanger.getDroppedCount();
 	}
 	
 	
@@ -566,8 +735,9 @@ public class CalibrationActivity extends Activity
 	public void btnCalibrateOnClick(View view) {
 		setEnableButtons(false);
 		textToast("Calibrating, please wait...", Toast.LENGTH_LONG);
+		progDialog.setMessage("Calibrating..");
 		progDialog.show();
-		calib.processAsync(this);
+		calibJob = calib.processAsync(this);
 	}
 	
 	
@@ -713,6 +883,26 @@ public class CalibrationActivity extends Activity
 		 */
 		Paint focusPaint;
 
+		/**
+		 * Paint object used to show the corners of the calibration target
+		 */
+		Paint cornerPaint;
+		
+		/**
+		 * Paint object used to show the sharpness of the image
+		 */
+		Paint textPaint;
+		
+		/**
+		 * Paint object used to fill the cells of the coverage map
+		 */
+		Paint coveragePaint;
+		
+		/**
+		 * Number of selected views with corners in each cell of the coverage map, reused at each draw
+		 */
+		int[] coverage;
+
 		/**
 		 * Constructor
 		 * @param context	The parent activity.
@@ -729,6 +919,17 @@ public class CalibrationActivity extends Activity
 			focusPaint = new Paint();
 			focusPaint.setColor(Color.RED);
 			focusPaint.setStyle(Paint.Style.STROKE);
+			
+			cornerPaint = new Paint();
+			cornerPaint.setStyle(Paint.Style.STROKE);
+			cornerPaint.setStrokeWidth(2);
+			
+			textPaint = new Paint();
+			textPaint.setTextSize(32);
+			textPaint.setAntiAlias(true);
+			
+			coveragePaint = new Paint();
+			coveragePaint.setStyle(Paint.Style.FILL);
 		}
 
 		/**
@@ -756,9 +957,44 @@ public class CalibrationActivity extends Activity
 				canvas.scale((float)scale,(float)scale);
 				// draw the image
 				canvas.drawBitmap(output,0,0,null);
+				// draw the coverage map of the views selected so far: red cells have no corners yet
+				ViewSelector selector = calib.getViewSelector();
+				if (intrinsic == null && selector != null) {
+					coverage = selector.getCoverage(coverage);
+					int cols = selector.getGridColumns();
+					int rows = selector.getGridRows();
+					float cellW = output.getWidth()/(float)cols;
+					float cellH = output.getHeight()/(float)rows;
+					for (int i = 0; i < coverage.length; i++) {
+						int color = coverage[i] == 0 ? Color.RED : (coverage[i] == 1 ? Color.YELLOW : Color.GREEN);
+						coveragePaint.setColor(color);
+						coveragePaint.setAlpha(48);
+						float x0 = (i % cols)*cellW;
+						float y0 = (i / cols)*cellH;
+						canvas.drawRect(x0, y0, x0 + cellW, y0 + cellH, coveragePaint);
+					}
+				}
+				// draw the corners of the calibration target found by the live detector
+				if (intrinsic == null && liveCorners != null) {
+					liveDetector.getLatest(liveCorners);
+					cornerPaint.setColor(liveCorners.found ? Color.GREEN : Color.YELLOW);
+					float radius = Math.max(2f, output.getWidth()/200f);
+					for (int i = 0; i < liveCorners.count; i++) {
+						canvas.drawCircle(liveCorners.x[i], liveCorners.y[i], radius, cornerPaint);
+					}
+				}
 				// restore the transformation matrix
 				canvas.restore();
 			}
+			// show the sharpness of the current frame, green when good enough to snap
+			textPaint.setColor(sharpness >= sharpnessThreshold ? Color.GREEN : Color.RED);
+			canvas.drawText(String.format("Sharpness: %.0f", sharpness), 10, textPaint.getTextSize() + 10, textPaint);
+			ViewSelector selector = calib.getViewSelector();
+			if (intrinsic == null && selector != null) {
+				textPaint.setColor(Color.WHITE);
+				canvas.drawText(String.format("Views: %d, coverage: %.0f%%", selector.getSelectedCount(), 
+						100*selector.getCoverageFraction()), 10, 2*textPaint.getTextSize() + 20, textPaint);
+			}
 			if (focusRect != null) { // show the area being focused
 				canvas.drawRect(focusRect, focusPaint);
 				canvas.drawCircle(x,  y, 20, focusPaint);
@@ -789,6 +1025,19 @@ public class CalibrationActivity extends Activity
 	 */
 	public void onCalibrationCompleted(IntrinsicParameters intr)
 	{
+		CalibrationJob job = calibJob;
+		calibJob = null;
+		if (job != null && intr != null) {
+			Log.i("CALIBRATION", String.format("Detection %d ms, solver %d ms (%d iterations), total %d ms", 
+					job.getDetectionMs(), job.getSolveMs(), job.getIterations(), job.getTotalMs()));
+		}
+		if (intr != null) {
+			// per-view reprojection errors; outliers were set aside and the problem re-solved without them
+			for (CalibrateMonocularPlanar.ViewError e : calib.getViewErrors()) {
+				Log.i("CALIBRATION", String.format("View %d: mean error %.3f px, max %.3f px%s", e.index + 1, 
+						e.errors.meanError, e.errors.maxError, e.outlier ? " (outlier, rejected)" : ""));
+			}
+		}
 		Intent intent = getIntent(); // retrieve the Activity's intent
 		Log.i("INTENT", intent.getAction());
 		// check if calibration failed
@@ -796,10 +1045,12 @@ public class CalibrationActivity extends Activity
 			if (intent.getAction().equals("com.lynntech.cps.android.calibration.CALIBRATE")) {
 				setResult(RESULT_CANCELED, getIntent());
 				finish(); // NOTE: this will EXIT the Activity		
+				return;
 			}
 			else { // nothing special to do: notify user and continue.
 				this.runOnUiThread( new Runnable() {
 					public void run() {
+						progDialog.dismiss();
 						Toast.makeText(CalibrationActivity.this, 
 								"Calibration failed; try again.", Toast.LENGTH_LONG).show();
 						resetUI();
@@ -807,13 +1058,15 @@ public class CalibrationActivity extends Activity
 				return;
 			}
 		}
-		// Also generate a new image to hold the undistorted parameters, if needed
-		if (grayf32_undist == null) {
-			grayf32_undist = new ImageFloat32(gray2.width, gray2.height);
-		}
 		// create a new object to remove distortion from images using the new intrinsic parameters
-		undistAllInside = LensDistortionOps.removeDistortion(true, BorderType.VALUE, intr, null, ImageType.single(ImageFloat32.class));
+		UndistortionTable table = undistCache.get(intr, gray2.width, gray2.height);
 		synchronized (lockOutput) {
+			undistAllInside = table;
+			// Also lease a new image to hold the undistorted image, if needed
+			if (grayf32_undist == null || grayf32_undist.width != gray2.width || grayf32_undist.height != gray2.height) {
+				imagePool.release(grayf32_undist);
+				grayf32_undist = imagePool.acquire(ImageFloat32.class, gray2.width, gray2.height);
+			}
 			// save the parameters for later use
 			this.intrinsic = intr;
 		}
@@ -843,6 +1096,45 @@ public class CalibrationActivity extends Activity
 	}
 	
 	
+	/**
+	 * This function is called by the calibration thread while the calibration progresses.
+	 * The progress dialog shows the current stage.
+	 * 
+	 * @param progress	The current stage and progress within the stage.
+	 */
+	public void onCalibrationProgress(final CalibrationProgress progress) {
+		this.runOnUiThread( new Runnable() {
+			public void run() {
+				progDialog.setMessage(progress.toString());
+			}});
+	}
+	
+	
+	/**
+	 * This function is called when the calibration fails or is cancelled by the user.
+	 * A cancelled calibration keeps the pictures taken so far, so the user can take more and try again; 
+	 * any other failure is handled by {@link #onCalibrationCompleted(IntrinsicParameters)}.
+	 * 
+	 * @param cause	The reason of the failure.
+	 */
+	public void onCalibrationFailed(Throwable cause) {
+		CalibrationJob job = calibJob;
+		calibJob = null;
+		if (cause instanceof CancellationException) {
+			Log.i("CALIBRATION", "Calibration cancelled.");
+			this.runOnUiThread( new Runnable() {
+				public void run() {
+					progDialog.dismiss();
+					setEnableButtons(true);
+					textToast("Calibration cancelled.", Toast.LENGTH_SHORT);
+				}});
+			return;
+		}
+		Log.e("CALIBRATION", String.format("Calibration failed after %d ms.", job != null ? job.getTotalMs() : 0), cause);
+		onCalibrationCompleted(null);
+	}
+	
+	
 	/**
 	 * Packs the Intrinsic parameters from calibration into a {@Bundle} to be returned with an {@link Intent}.
 	 * This {@link Activity} saves the result of the calibration in the {@link #intrinsic} property. This function
@@ -870,9 +1162,9 @@ public class CalibrationActivity extends Activity
 	
 	/**
 	 * Worker thread used to do more time consuming image processing.
-	 * This thread sleeps until it is interrupted by the Activity thread. When awake, it performs image processing
-	 * and displays the image captured by the camera. To display efficiently a simple double-buffering technique 
-	 * is used.
+	 * This thread sleeps until the camera thread publishes a new frame in {@link CalibrationActivity#grayExchanger}. 
+	 * When awake, it performs image processing on the latest frame and displays the image captured by the camera. 
+	 * Frames that arrive while the thread is busy are replaced by newer ones, so the display never lags behind.
 	 * If the flag {@link CalibrationActivity#snapRequest} is set to {@code true}, a calibration picture is captured and 
 	 * added to the set of pictures to be used for calibration.
 	 */
@@ -883,6 +1175,33 @@ public class CalibrationActivity extends Activity
 		
 		/// {@code true} if the thread is running and can process more data
 		volatile boolean running = true;
+		
+		/// Maximum time the thread waits for a new frame before checking for a stop request again.
+		private static final long FRAME_TIMEOUT_MS = 100;
+		
+		/// Time when the thread started waiting for a sharp frame to satisfy a snap request, 0 if not waiting.
+		private long snapWaitStart;
+
+		/**
+		 * Decide whether the current frame can be snapped: it must be sharp enough, unless the snap request
+		 * has been waiting for longer than {@link CalibrationActivity#snapTimeoutMs}.
+		 * @return {@code true} if the current frame should be snapped.
+		 */
+		private boolean isSharpEnough() {
+			long now = System.nanoTime();
+			if (snapWaitStart == 0) {
+				snapWaitStart = now;
+			}
+			long waitedMs = (now - snapWaitStart)/1000000;
+			boolean sharp = sharpness >= sharpnessThreshold;
+			if (!sharp && waitedMs < snapTimeoutMs) {
+				return false;
+			}
+			Log.i("SNAP", String.format("Sharpness %.1f (threshold %.1f) after %d ms%s", sharpness, 
+					sharpnessThreshold, waitedMs, sharp ? "" : ": timed out, frame may be blurred"));
+			snapWaitStart = 0;
+			return true;
+		}
 
 		/**
 		 * Blocks until the thread has stopped
@@ -890,7 +1209,7 @@ public class CalibrationActivity extends Activity
 		public void stopThread() {
 			stopRequested = true;
 			while( running ) {
-				thread.interrupt();
+				grayExchanger.wakeUp();
 				Thread.yield();
 			}
 		}
@@ -900,51 +1219,55 @@ public class CalibrationActivity extends Activity
 		 * the video on the preview window {@Link CalibrationActivity#mPreview}. The latter is invalidated
 		 * to cause a redraw event. 
 		 * 
-		 * In order to prevent deadlocks, this method contains two synchronized
-		 * regions to a) perform double buffering, and b) perform data processing on the image buffer.
+		 * The input frame is obtained from the lock-free {@link CalibrationActivity#grayExchanger}, thus the only 
+		 * synchronized region left is used to perform data processing on the output image buffer.
 		 * If the intrinsic calibration parameters are available, i.e. {@link CalibrationActivity#intrinsic} is not null,
 		 * the image is "undistorted".
 		 *  
-		 * "Undistortion" is processor intensive and thus slows down the application, also reducing the frame rate. 
+		 * "Undistortion" uses a remap table that is computed once per calibration, see {@link UndistortionTable}.
+		 * All the per-frame image operations are split into row bands processed on all cores, see {@link ParallelImageOps}.
 		 */
 		@Override
 		public void run() {
 			while( !stopRequested ) {
 
-				// Sleep until it has been told to wake up
-				synchronized ( Thread.currentThread() ) {
-					try {
-						wait();
-					} catch (InterruptedException ignored) {}
+				// Sleep until a new frame is available, then process the most recently converted image
+				ImageUInt8 latest = grayExchanger.take(FRAME_TIMEOUT_MS, TimeUnit.MILLISECONDS);
+				if (latest == null) {
+					continue;
 				}
-
-				// process the most recently converted image by swapping image buffered
-				synchronized (lockGray) {
-					ImageUInt8 tmp = gray1;
-					gray1 = gray2;
-					gray2 = tmp;
+				gray2 = latest;
+				
+				// feed the live target detection, until calibration is done; it only copies a downscaled frame
+				if (intrinsic == null) {
+					liveDetector.submit(gray2);
 				}
 
-				if( flipHorizontal )
-					GImageMiscOps.flipHorizontal(gray2);
-
-				if (getSnapRequest()) { // Capture next image and add it to the calibration set
-					ImageFloat32 gray2f32 = new ImageFloat32(gray2.width, gray2.height);
-					calib.addImage(ConvertImage.convert(gray2, gray2f32));
+				// measure the focus of every frame; snaps wait for a sharp frame, up to a timeout
+				sharpness = SharpnessMetric.varianceOfLaplacian(gray2, SHARPNESS_STEP);
+				
+				if (getSnapRequest() && isSharpEnough()) { // Capture next image and add it to the calibration set
+					// the 8-bit frame is copied into the frame store, and converted only when the target is detected
+					calib.addImage(gray2);
 					setSnapRequest(false);
 				}
 				
 				// render the output in a gray image
 				synchronized ( lockOutput ) {
-					ImageFloat32 gray2f32 = new ImageFloat32(gray2.width, gray2.height);
-					gray2f32 = ConvertImage.convert(gray2, gray2f32);
 					if (intrinsic == null) { // before calibration show image as it is
-						VisualizeImageData.grayMagnitude(gray2f32, -1, output, null);
+						// the NV21 buffer is back in the camera queue by now, and the 8-bit frame is what the 
+						// detector, the sharpness metric and the frame store need: converting it here is one 
+						// parallel pass, cheaper than a second NV21 conversion and exchanger on the camera thread
+						ImageFloat32 gray2f32 = imagePool.acquire(ImageFloat32.class, gray2.width, gray2.height);
+						parallelOps.convert(gray2, gray2f32);
+						parallelOps.grayMagnitude(gray2f32, -1, storage);
+						imagePool.release(gray2f32);
 					}
-					else { // intrinsic != null: show corrected (undistorted) image
-						undistAllInside.apply(gray2f32, grayf32_undist);
-						VisualizeImageData.grayMagnitude(grayf32_undist, -1, output, null);
+					else { // intrinsic != null: show corrected (undistorted) image, remapped straight from the 8-bit frame
+						parallelOps.undistort(undistAllInside, gray2, grayf32_undist);
+						parallelOps.grayMagnitude(grayf32_undist, -1, storage);
 					}
+					output.copyPixelsFromBuffer(ByteBuffer.wrap(storage));
 				}
 				mDraw.postInvalidate();
 			}
@@ -0,0 +1,222 @@
+/*
+   Copyright 2015 Lynntech Inc. 
+   Contact information:
+   - Victor Palmer, 		victor.palmer[\AT]lynntech.com
+   - Christian Bruccoleri, 	christian.bruccoleri[\AT]lynntech.com
+   
+   Research reported in this publication was supported by the National Eye Institute 
+   of the National Institutes of Health under Award Number R43EY024800.
+   The content is solely the responsibility of the authors and does not necessarily
+   represent the official views of the National Institutes of Health.
+
+   This code includes parts of BoofCV: https://github.com/lessthanoptimal/BoofCV
+   
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+ */
+
+package com.lynntech.cps.android.calibration;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import boofcv.struct.calib.IntrinsicParameters;
+
+/**
+ * Handle of an asynchronous calibration started with {@link CalibrateMonocularPlanar#processAsync(CalibrationListener)}.
+ * 
+ * The job can be waited for ({@link #get()}) or cancelled ({@link #cancel()}); cancellation is cooperative, the
+ * job stops at the next detection event or solver iteration. The listener receives progress notifications and
+ * exactly one of {@link CalibrationListener#onCalibrationCompleted(IntrinsicParameters)} or
+ * {@link CalibrationListener#onCalibrationFailed(Throwable)}; all the callbacks are invoked by the calibration 
+ * thread, except the failure notification of a cancelled job, which is invoked by the thread that cancels it.
+ */
+public class CalibrationJob {
+
+	/** The computation. */
+	private final FutureTask<IntrinsicParameters> task;
+	
+	/** Receives the notifications, may be null. */
+	private final CalibrationListener listener;
+	
+	/** Set once the final notification has been sent. */
+	private final AtomicBoolean notified = new AtomicBoolean();
+	
+	/** Timing metrics, in nanoseconds; 0 until the corresponding stage is done. */
+	private volatile long startNanos, detectionNanos, solveNanos, totalNanos;
+	
+	/** Number of iterations of the non-linear refinement. */
+	private volatile int iterations;
+	
+	
+	/**
+	 * Create a job; it is started by the calibration object.
+	 */
+	CalibrationJob(final CalibrateMonocularPlanar calib, CalibrationListener listener) {
+		this.listener = listener;
+		this.task = new FutureTask<IntrinsicParameters>(new Callable<IntrinsicParameters>() {
+			@Override
+			public IntrinsicParameters call() throws Exception {
+				startNanos = System.nanoTime();
+				try {
+					IntrinsicParameters result = calib.process(CalibrationJob.this);
+					totalNanos = System.nanoTime() - startNanos;
+					notifyCompleted(result);
+					return result;
+				}
+				catch (RuntimeException e) {
+					totalNanos = System.nanoTime() - startNanos;
+					notifyFailed(e);
+					throw e;
+				}
+			}
+		}) {
+			@Override
+			protected void done() {
+				if (isCancelled()) {
+					notifyFailed(new CancellationException("Calibration cancelled."));
+				}
+			}
+		};
+	}
+	
+	
+	/** The task to be executed by the calibration thread. */
+	Runnable getTask() {
+		return task;
+	}
+	
+	
+	/**
+	 * Report the progress; called by the calibration thread.
+	 * @throws CancellationException If the job has been cancelled.
+	 */
+	void progress(CalibrationProgress.Stage stage, int current, int total, double residual) {
+		checkCancelled();
+		if (stage == CalibrationProgress.Stage.REFINEMENT) {
+			iterations = current;
+		}
+		if (listener != null) {
+			listener.onCalibrationProgress(new CalibrationProgress(stage, current, total, residual, 
+					(System.nanoTime() - startNanos)/1000000));
+		}
+	}
+	
+	
+	/**
+	 * @throws CancellationException If the job has been cancelled.
+	 */
+	void checkCancelled() {
+		if (task.isCancelled()) {
+			throw new CancellationException("Calibration cancelled.");
+		}
+	}
+	
+	
+	/** Record the end of the detection stage. */
+	void detectionDone() {
+		detectionNanos = System.nanoTime() - startNanos;
+	}
+	
+	
+	/** Record the end of the solver stage. */
+	void solveDone() {
+		solveNanos = System.nanoTime() - startNanos - detectionNanos;
+	}
+	
+	
+	private void notifyCompleted(IntrinsicParameters result) {
+		if (notified.compareAndSet(false, true) && listener != null) {
+			listener.onCalibrationCompleted(result);
+		}
+	}
+	
+	
+	private void notifyFailed(Throwable cause) {
+		if (notified.compareAndSet(false, true) && listener != null) {
+			listener.onCalibrationFailed(cause);
+		}
+	}
+	
+	
+	/**
+	 * Request the cancellation of the job.
+	 * @return {@code false} if the job could not be cancelled, typically because it is already done.
+	 */
+	public boolean cancel() {
+		return task.cancel(true);
+	}
+	
+	
+	/** @return {@code true} if the job was cancelled. */
+	public boolean isCancelled() {
+		return task.isCancelled();
+	}
+	
+	
+	/** @return {@code true} if the job completed, failed or was cancelled. */
+	public boolean isDone() {
+		return task.isDone();
+	}
+	
+	
+	/**
+	 * Wait for the job to complete.
+	 * @return The intrinsic parameters.
+	 * @throws CancellationException If the job was cancelled.
+	 * @throws ExecutionException If the calibration failed.
+	 * @throws InterruptedException If the calling thread was interrupted.
+	 */
+	public IntrinsicParameters get() throws InterruptedException, ExecutionException {
+		return task.get();
+	}
+	
+	
+	/**
+	 * Wait for the job to complete, at most for the specified time.
+	 * @see #get()
+	 * @throws TimeoutException If the job did not complete in time.
+	 */
+	public IntrinsicParameters get(long timeout, TimeUnit unit) 
+			throws InterruptedException, ExecutionException, TimeoutException {
+		return task.get(timeout, unit);
+	}
+	
+	
+	/** @return Time spent waiting for the detection of the targets, in milliseconds. */
+	public long getDetectionMs() {
+		return detectionNanos/1000000;
+	}
+	
+	
+	/** @return Time spent in the solver, in milliseconds. */
+	public long getSolveMs() {
+		return solveNanos/1000000;
+	}
+	
+	
+	/** @return Total duration of the job, in milliseconds; 0 while running. */
+	public long getTotalMs() {
+		return totalNanos/1000000;
+	}
+	
+	
+	/** @return Number of iterations of the non-linear refinement. */
+	public int getIterations() {
+		return iterations;
+	}
+}
@@ -31,7 +31,7 @@ import boofcv.struct.calib.IntrinsicParameters;
 /**
  * Interface to listen for calibration completed.
  * This interface is used to implement the callback pattern to receive notification that
- * the calibration process terminated.
+ * the calibration process terminated, and to follow its progress.
  * 
  * @author Christian Bruccoleri
  * @see boofcv.struct.calib.IntrinsicParameters
@@ -43,4 +43,16 @@ public interface CalibrationListener {
 	 * @param intrinsic Contains the intrinsic calibration parameters.
 	 */
 	public void onCalibrationCompleted(IntrinsicParameters intrinsic);
+	
+	/**
+	 * Called while an asynchronous calibration progresses.
+	 * @param progress Current stage and progress within the stage.
+	 */
+	public void onCalibrationProgress(CalibrationProgress progress);
+	
+	/**
+	 * Called when an asynchronous calibration fails or is cancelled.
+	 * @param cause The reason of the failure; a {@link java.util.concurrent.CancellationException} if cancelled.
+	 */
+	public void onCalibrationFailed(Throwable cause);
 }
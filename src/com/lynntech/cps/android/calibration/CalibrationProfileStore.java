@@ -0,0 +1,396 @@
+/*
+   Copyright 2015 Lynntech Inc. 
+   Contact information:
+   - Victor Palmer, 		victor.palmer[\AT]lynntech.com
+   - Christian Bruccoleri, 	christian.bruccoleri[\AT]lynntech.com
+   
+   Research reported in this publication was supported by the National Eye Institute 
+   of the National Institutes of Health under Award Number R43EY024800.
+   The content is solely the responsibility of the authors and does not necessarily
+   represent the official views of the National Institutes of Health.
+
+   This code includes parts of BoofCV: https://github.com/lessthanoptimal/BoofCV
+   
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+ */
+package com.lynntech.cps.android.calibration;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.CRC32;
+
+import boofcv.struct.calib.IntrinsicParameters;
+
+/**
+ * Persistent store of calibration profiles, one for each camera, facing and image size.
+ * 
+ * The file starts with a header (magic number, format version, record size, number of records and the CRC of the 
+ * header), followed by fixed size records, each one protected by its own CRC. The file is read through a read-only
+ * memory mapping: opening it only indexes the record keys, and a lookup is a hash table access followed by the 
+ * decoding of one record, so switching profile takes a few microseconds. A record with a wrong CRC is ignored;
+ * a header with a wrong CRC or an unknown version makes {@link #open()} fail.
+ * 
+ * The file is rewritten for each change, to a temporary file renamed over the old one, so that a crash never
+ * leaves a partially written file. Profiles are few and small, thus this costs only a few kilobytes of I/O.
+ * All methods are thread safe.
+ */
+public class CalibrationProfileStore {
+
+	/** First four bytes of the file, "CPSP". */
+	public static final int MAGIC = 0x43505350;
+	
+	/** Version of the file format written by this class. */
+	public static final int VERSION = 1;
+	
+	/** Maximum number of radial distortion coefficients in a profile. */
+	public static final int MAX_RADIAL = 4;
+	
+	/** Size of the header, in bytes. */
+	static final int HEADER_SIZE = 32;
+	
+	/** Size of a record, in bytes. */
+	static final int RECORD_SIZE = 128;
+	
+	// offsets of the fields in a record
+	private static final int CAMERA_ID = 0;
+	private static final int FACING = 4;
+	private static final int WIDTH = 8;
+	private static final int HEIGHT = 12;
+	private static final int FX = 16;
+	private static final int FY = 24;
+	private static final int SKEW = 32;
+	private static final int CX = 40;
+	private static final int CY = 48;
+	private static final int NUM_RADIAL = 56;
+	private static final int FLIP_Y = 60;
+	private static final int RADIAL = 64;
+	private static final int SAVED_TIME = 64 + 8*MAX_RADIAL;
+	private static final int RECORD_CRC = RECORD_SIZE - 4;
+	
+	/** The file. */
+	private final File file;
+	
+	/** Mapping of the whole file, null if the file does not exist. */
+	private MappedByteBuffer mapped;
+	
+	/** Offset of the record of each profile in {@link #mapped}. */
+	private final Map<Key, Integer> index = new HashMap<Key, Integer>();
+	
+	
+	/**
+	 * Create a store; call {@link #open()} before using it.
+	 * @param file	The file of the store, e.g. {@code new File(context.getFilesDir(), "calibration_profiles.dat")}.
+	 */
+	public CalibrationProfileStore(File file) {
+		this.file = file;
+	}
+	
+	
+	/**
+	 * Map the file and index the profiles. A missing file is an empty store.
+	 * @throws IOException If the file cannot be read, or its header is corrupted or of an unknown version.
+	 */
+	public synchronized void open() throws IOException {
+		mapped = null;
+		index.clear();
+		if (!file.exists()) {
+			return;
+		}
+		RandomAccessFile raf = new RandomAccessFile(file, "r");
+		MappedByteBuffer buffer;
+		try {
+			// the mapping stays valid after the file is closed
+			buffer = raf.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, raf.length());
+		}
+		finally {
+			raf.close();
+		}
+		buffer.order(ByteOrder.BIG_ENDIAN);
+		if (buffer.capacity() < HEADER_SIZE || buffer.getInt(0) != MAGIC) {
+			throw new IOException("Not a calibration profile file: " + file);
+		}
+		if (crc(buffer, 0, HEADER_SIZE - 4) != buffer.getInt(HEADER_SIZE - 4)) {
+			throw new IOException("Corrupted calibration profile header: " + file);
+		}
+		int version = buffer.getInt(4);
+		if (version != VERSION || buffer.getInt(8) != RECORD_SIZE) {
+			throw new IOException("Unsupported calibration profile version " + version + ": " + file);
+		}
+		int count = buffer.getInt(12);
+		if (count < 0 || HEADER_SIZE + (long)count*RECORD_SIZE > buffer.capacity()) {
+			throw new IOException("Truncated calibration profile file: " + file);
+		}
+		for (int i = 0; i < count; i++) {
+			int offset = HEADER_SIZE + i*RECORD_SIZE;
+			index.put(new Key(buffer.getInt(offset + CAMERA_ID), buffer.getInt(offset + FACING) != 0, 
+					buffer.getInt(offset + WIDTH), buffer.getInt(offset + HEIGHT)), offset);
+		}
+		mapped = buffer;
+	}
+	
+	
+	/**
+	 * Get the profile calibrated at exactly the specified image size.
+	 * @param cameraId	Identifier of the camera, see {@code android.hardware.Camera.open(int)}.
+	 * @param front		{@code true} for a front facing camera.
+	 * @param width		Width of the images.
+	 * @param height	Height of the images.
+	 * @return A new copy of the parameters, or {@code null} if there is no valid profile.
+	 */
+	public synchronized IntrinsicParameters get(int cameraId, boolean front, int width, int height) {
+		Integer offset = index.get(new Key(cameraId, front, width, height));
+		return offset == null ? null : read(offset);
+	}
+	
+	
+	/**
+	 * Find the best profile for an image size: the profile of that size if any, otherwise the largest profile of 
+	 * the same camera with the same aspect ratio, scaled to the image size.
+	 * @param cameraId	Identifier of the camera.
+	 * @param front		{@code true} for a front facing camera.
+	 * @param width		Width of the images.
+	 * @param height	Height of the images.
+	 * @return A new copy of the parameters for that image size, or {@code null} if there is no suitable profile.
+	 */
+	public synchronized IntrinsicParameters find(int cameraId, boolean front, int width, int height) {
+		IntrinsicParameters exact = get(cameraId, front, width, height);
+		if (exact != null) {
+			return exact;
+		}
+		Key best = null;
+		for (Key k : index.keySet()) {
+			if (k.cameraId == cameraId && k.front == front && (long)k.width*height == (long)k.height*width 
+					&& (best == null || k.width > best.width)) {
+				best = k;
+			}
+		}
+		if (best == null) {
+			return null;
+		}
+		// the radial coefficients apply to normalized coordinates, only the pixel units change
+		IntrinsicParameters p = read(index.get(best));
+		double scale = (double)width/p.width;
+		p.fx *= scale;
+		p.fy *= scale;
+		p.skew *= scale;
+		p.cx *= scale;
+		p.cy *= scale;
+		p.width = width;
+		p.height = height;
+		return p;
+	}
+	
+	
+	/**
+	 * Add or replace a profile; the key is the camera and the image size of the parameters.
+	 * @param cameraId	Identifier of the camera.
+	 * @param front		{@code true} for a front facing camera.
+	 * @param param		Calibration parameters, with at most {@link #MAX_RADIAL} radial coefficients.
+	 * @throws IOException If the file cannot be written.
+	 */
+	public synchronized void put(int cameraId, boolean front, IntrinsicParameters param) throws IOException {
+		int numRadial = param.radial == null ? 0 : param.radial.length;
+		if (numRadial > MAX_RADIAL) {
+			throw new IllegalArgumentException("At most " + MAX_RADIAL + " radial coefficients can be stored.");
+		}
+		Key key = new Key(cameraId, front, param.width, param.height);
+		ByteBuffer record = ByteBuffer.allocate(RECORD_SIZE);
+		record.putInt(CAMERA_ID, cameraId);
+		record.putInt(FACING, front ? 1 : 0);
+		record.putInt(WIDTH, param.width);
+		record.putInt(HEIGHT, param.height);
+		record.putDouble(FX, param.fx);
+		record.putDouble(FY, param.fy);
+		record.putDouble(SKEW, param.skew);
+		record.putDouble(CX, param.cx);
+		record.putDouble(CY, param.cy);
+		record.putInt(NUM_RADIAL, numRadial);
+		record.putInt(FLIP_Y, param.flipY ? 1 : 0);
+		for (int i = 0; i < numRadial; i++) {
+			record.putDouble(RADIAL + 8*i, param.radial[i]);
+		}
+		record.putLong(SAVED_TIME, System.currentTimeMillis());
+		record.putInt(RECORD_CRC, crc(record, 0, RECORD_CRC));
+		
+		List<ByteBuffer> records = new ArrayList<ByteBuffer>();
+		for (Map.Entry<Key, Integer> e : index.entrySet()) {
+			if (!e.getKey().equals(key)) {
+				records.add(slice(e.getValue()));
+			}
+		}
+		records.add(record);
+		write(records);
+		open();
+	}
+	
+	
+	/**
+	 * Delete a profile.
+	 * @return {@code true} if the profile existed.
+	 * @throws IOException If the file cannot be written.
+	 */
+	public synchronized boolean remove(int cameraId, boolean front, int width, int height) throws IOException {
+		Key key = new Key(cameraId, front, width, height);
+		if (!index.containsKey(key)) {
+			return false;
+		}
+		List<ByteBuffer> records = new ArrayList<ByteBuffer>();
+		for (Map.Entry<Key, Integer> e : index.entrySet()) {
+			if (!e.getKey().equals(key)) {
+				records.add(slice(e.getValue()));
+			}
+		}
+		write(records);
+		open();
+		return true;
+	}
+	
+	
+	/** @return Number of profiles in the store, including those with a wrong CRC. */
+	public synchronized int size() {
+		return index.size();
+	}
+	
+	
+	/** @return The file of the store. */
+	public File getFile() {
+		return file;
+	}
+	
+	
+	/**
+	 * Decode a record, verifying its CRC.
+	 */
+	private IntrinsicParameters read(int offset) {
+		if (crc(mapped, offset, RECORD_CRC) != mapped.getInt(offset + RECORD_CRC)) {
+			System.err.println("Corrupted calibration profile at offset " + offset + " of " + file);
+			return null;
+		}
+		int numRadial = mapped.getInt(offset + NUM_RADIAL);
+		if (numRadial < 0 || numRadial > MAX_RADIAL) {
+			return null;
+		}
+		IntrinsicParameters p = new IntrinsicParameters();
+		p.width = mapped.getInt(offset + WIDTH);
+		p.height = mapped.getInt(offset + HEIGHT);
+		p.fx = mapped.getDouble(offset + FX);
+		p.fy = mapped.getDouble(offset + FY);
+		p.skew = mapped.getDouble(offset + SKEW);
+		p.cx = mapped.getDouble(offset + CX);
+		p.cy = mapped.getDouble(offset + CY);
+		p.radial = new double[numRadial];
+		for (int i = 0; i < numRadial; i++) {
+			p.radial[i] = mapped.getDouble(offset + RADIAL + 8*i);
+		}
+		p.flipY = mapped.getInt(offset + FLIP_Y) != 0;
+		return p;
+	}
+	
+	
+	/**
+	 * Copy of a stored record.
+	 */
+	private ByteBuffer slice(int offset) {
+		byte[] data = new byte[RECORD_SIZE];
+		ByteBuffer src = mapped.duplicate();
+		src.position(offset);
+		src.get(data);
+		return ByteBuffer.wrap(data);
+	}
+	
+	
+	/**
+	 * Write a new file with the specified records, replacing the old one.
+	 */
+	private void write(List<ByteBuffer> records) throws IOException {
+		ByteBuffer out = ByteBuffer.allocate(HEADER_SIZE + records.size()*RECORD_SIZE);
+		out.putInt(0, MAGIC);
+		out.putInt(4, VERSION);
+		out.putInt(8, RECORD_SIZE);
+		out.putInt(12, records.size());
+		out.putInt(HEADER_SIZE - 4, crc(out, 0, HEADER_SIZE - 4));
+		for (int i = 0; i < records.size(); i++) {
+			System.arraycopy(records.get(i).array(), 0, out.array(), HEADER_SIZE + i*RECORD_SIZE, RECORD_SIZE);
+		}
+		File tmp = new File(file.getPath() + ".tmp");
+		FileOutputStream fos = new FileOutputStream(tmp);
+		try {
+			fos.write(out.array());
+			fos.getFD().sync();
+		}
+		finally {
+			fos.close();
+		}
+		if (!tmp.renameTo(file)) {
+			// some platforms do not replace an existing file
+			if (!file.delete() || !tmp.renameTo(file)) {
+				throw new IOException("Cannot replace " + file);
+			}
+		}
+	}
+	
+	
+	/**
+	 * CRC32 of a range of a buffer.
+	 */
+	static int crc(ByteBuffer buffer, int offset, int length) {
+		byte[] data = new byte[length];
+		ByteBuffer src = buffer.duplicate();
+		src.position(offset);
+		src.get(data);
+		CRC32 crc = new CRC32();
+		crc.update(data);
+		return (int)crc.getValue();
+	}
+	
+	
+	/**
+	 * Key of a profile.
+	 */
+	private static final class Key {
+		final int cameraId;
+		final boolean front;
+		final int width, height;
+		
+		Key(int cameraId, boolean front, int width, int height) {
+			this.cameraId = cameraId;
+			this.front = front;
+			this.width = width;
+			this.height = height;
+		}
+		
+		@Override
+		public boolean equals(Object o) {
+			if (!(o instanceof Key)) {
+				return false;
+			}
+			Key k = (Key)o;
+			return cameraId == k.cameraId && front == k.front && width == k.width && height == k.height;
+		}
+		
+		@Override
+		public int hashCode() {
+			return ((cameraId*31 + (front ? 1 : 0))*31 + width)*31 + height;
+		}
+	}
+}
@@ -0,0 +1,82 @@
+/*
+   Copyright 2015 Lynntech Inc. 
+   Contact information:
+   - Victor Palmer, 		victor.palmer[\AT]lynntech.com
+   - Christian Bruccoleri, 	christian.bruccoleri[\AT]lynntech.com
+   
+   Research reported in this publication was supported by the National Eye Institute 
+   of the National Institutes of Health under Award Number R43EY024800.
+   The content is solely the responsibility of the authors and does not necessarily
+   represent the official views of the National Institutes of Health.
+
+   This code includes parts of BoofCV: https://github.com/lessthanoptimal/BoofCV
+   
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+ */
+
+package com.lynntech.cps.android.calibration;
+
+/**
+ * Progress of a calibration job, reported to {@link CalibrationListener#onCalibrationProgress(CalibrationProgress)}.
+ */
+public class CalibrationProgress {
+
+	/**
+	 * Stages of the calibration.
+	 */
+	public enum Stage {
+		/** Waiting for the detection of the target in the images: {@code current} of {@code total} images done. */
+		DETECTION,
+		/** Computing the initial estimate of the parameters. */
+		INITIAL_ESTIMATE,
+		/** Non-linear refinement: {@code current} iterations of at most {@code total}, with the current residual. */
+		REFINEMENT
+	}
+	
+	/// Current stage.
+	public final Stage stage;
+	
+	/// Progress within the stage.
+	public final int current;
+	
+	/// Total amount of work in the stage.
+	public final int total;
+	
+	/// Sum of the squared residuals (refinement only, NaN otherwise).
+	public final double residual;
+	
+	/// Time elapsed since the job started, in milliseconds.
+	public final long elapsedMs;
+	
+	
+	public CalibrationProgress(Stage stage, int current, int total, double residual, long elapsedMs) {
+		this.stage = stage;
+		this.current = current;
+		this.total = total;
+		this.residual = residual;
+		this.elapsedMs = elapsedMs;
+	}
+	
+	
+	@Override
+	public String toString() {
+		switch (stage) {
+		case DETECTION:
+			return String.format("Detecting target: %d/%d", current, total);
+		case INITIAL_ESTIMATE:
+			return "Initial estimate";
+		default:
+			return String.format("Refining: iteration %d, residual %.3g", current, residual);
+		}
+	}
+}
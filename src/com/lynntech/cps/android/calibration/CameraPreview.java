@@ -68,6 +68,8 @@ public class CameraPreview extends ViewGroup implements SurfaceHolder.Callback {
 	Camera mCamera;
 	Camera.PreviewCallback previewCallback;
 	boolean hidden;
+	/// Optional pool of buffers recycled between the camera and the preview callback.
+	PreviewBufferPool bufferPool;
 
 	@SuppressWarnings("deprecation")
 	public CameraPreview(Context context, Camera.PreviewCallback previewCallback, boolean hidden ) {
@@ -86,7 +88,58 @@ public class CameraPreview extends ViewGroup implements SurfaceHolder.Callback {
 		mHolder.setType(SurfaceHolder.SURFACE_TYPE_PUSH_BUFFERS);
 	}
 
+	/**
+	 * Use a pool of pre-allocated buffers to receive the preview frames, instead of letting the camera
+	 * allocate a new array for each frame. The preview callback must give each frame back with 
+	 * {@link #releaseBuffer(byte[])} when it is done with it. Must be called before {@link #setCamera(Camera)}.
+	 * 
+	 * @param bufferPool	The pool, with buffers large enough for the preview size, or {@code null} to let the
+	 * 						camera allocate the buffers.
+	 */
+	public void setBufferPool(PreviewBufferPool bufferPool) {
+		this.bufferPool = bufferPool;
+	}
+
+	/**
+	 * Give a preview frame back to the pool and queue an available buffer into the camera.
+	 * It does nothing if no pool is used.
+	 * 
+	 * @param buffer	The buffer received in {@link Camera.PreviewCallback#onPreviewFrame(byte[], Camera)}.
+	 */
+	public void releaseBuffer(byte[] buffer) {
+		if (bufferPool == null || buffer == null) {
+			return;
+		}
+		if (bufferPool.owns(buffer)) {
+			bufferPool.release(buffer);
+		}
+		if (mCamera != null) {
+			queueBuffer();
+		}
+	}
+
+	/**
+	 * Move one buffer from the pool into the camera.
+	 * @return {@code false} if the pool is exhausted.
+	 */
+	private boolean queueBuffer() {
+		byte[] buffer = bufferPool.acquire();
+		if (buffer == null) {
+			long count = bufferPool.getExhaustedCount();
+			if (count == 1 || count % 100 == 0) {
+				Log.w(TAG, "Preview buffer pool exhausted (" + count + " times), frames are being dropped.");
+			}
+			return false;
+		}
+		mCamera.addCallbackBuffer(buffer);
+		return true;
+	}
+
 	public void setCamera(Camera camera) {
+		if (mCamera != null && camera == null && bufferPool != null) {
+			// buffers queued into the old camera will not come back
+			bufferPool.releaseAll();
+		}
 		mCamera = camera;
 		if (mCamera != null) {
 			// need to start the preview here because it is possible for it to be paused and resumed and not
@@ -149,7 +202,16 @@ public class CameraPreview extends ViewGroup implements SurfaceHolder.Callback {
 	protected void startPreview() {
 		try {
 			mCamera.setPreviewDisplay(mHolder);
-			mCamera.setPreviewCallback(previewCallback);
+			if (bufferPool == null) {
+				mCamera.setPreviewCallback(previewCallback);
+			}
+			else {
+				mCamera.setPreviewCallbackWithBuffer(previewCallback);
+				// hand all the available buffers to the camera
+				for (int i = bufferPool.getAvailableCount(); i > 0; i--) {
+					queueBuffer();
+				}
+			}
 			mCamera.startPreview();
 		} catch (Exception e){
 			Log.d(TAG, "Error starting camera preview: " + e.getMessage());
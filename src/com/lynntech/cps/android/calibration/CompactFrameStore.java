@@ -0,0 +1,213 @@
+/*
+   Copyright 2015 Lynntech Inc. 
+   Contact information:
+   - Victor Palmer, 		victor.palmer[\AT]lynntech.com
+   - Christian Bruccoleri, 	christian.bruccoleri[\AT]lynntech.com
+   
+   Research reported in this publication was supported by the National Eye Institute 
+   of the National Institutes of Health under Award Number R43EY024800.
+   The content is solely the responsibility of the authors and does not necessarily
+   represent the official views of the National Institutes of Health.
+
+   This code includes parts of BoofCV: https://github.com/lessthanoptimal/BoofCV
+   
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+ */
+package com.lynntech.cps.android.calibration;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import boofcv.core.image.ConvertImage;
+import boofcv.struct.image.ImageFloat32;
+import boofcv.struct.image.ImageUInt8;
+
+/**
+ * {@link FrameStore} that keeps the frames on the heap as {@link ImageUInt8}, a quarter of the memory of the
+ * equivalent {@link ImageFloat32}. Whole frames can be leased from an {@link ImagePool}, so that a snap does not
+ * allocate once the pool is warm; cropped frames are allocated with their exact size. All methods are thread safe.
+ */
+public class CompactFrameStore implements FrameStore {
+
+	/** Pool of the whole frames, may be null. */
+	private final ImagePool pool;
+	
+	/** The stored frames. */
+	private final Map<Integer, Entry> frames = new HashMap<Integer, Entry>();
+	
+	/** Sum of the sizes of the stored frames, in bytes. */
+	private long heapBytes;
+	
+	
+	/**
+	 * Create a store that allocates the frames.
+	 */
+	public CompactFrameStore() {
+		this(null);
+	}
+	
+	
+	/**
+	 * Create a store.
+	 * @param pool	Pool where whole frames are leased and released, may be null.
+	 */
+	public CompactFrameStore(ImagePool pool) {
+		this.pool = pool;
+	}
+	
+	
+	@Override
+	public void put(int sequence, ImageUInt8 frame) {
+		ImageUInt8 copy = pool != null ? pool.acquire(ImageUInt8.class, frame.width, frame.height) 
+				: new ImageUInt8(frame.width, frame.height);
+		copy.setTo(frame);
+		synchronized (this) {
+			release(frames.put(sequence, new Entry(copy, 0, 0, false)));
+			heapBytes += copy.width*copy.height;
+		}
+	}
+	
+	
+	@Override
+	public boolean convert(int sequence, ImageFloat32 output) {
+		Entry e;
+		synchronized (this) {
+			e = frames.get(sequence);
+			if (e == null) {
+				return false;
+			}
+			// the entry may be removed while converting; the image is released only with the lock, see release()
+			e.readers++;
+		}
+		try {
+			output.reshape(e.image.width, e.image.height);
+			ConvertImage.convert(e.image, output);
+		}
+		finally {
+			synchronized (this) {
+				e.readers--;
+				if (e.readers == 0 && e.removed) {
+					recycle(e);
+				}
+			}
+		}
+		return true;
+	}
+	
+	
+	@Override
+	public synchronized Frame get(int sequence) {
+		Entry e = frames.get(sequence);
+		return e == null ? null : new Frame(e.image.clone(), e.x0, e.y0);
+	}
+	
+	
+	@Override
+	public synchronized void crop(int sequence, int x0, int y0, int x1, int y1) {
+		Entry e = frames.get(sequence);
+		if (e == null || e.cropped) {
+			return;
+		}
+		x0 = Math.max(0, x0);
+		y0 = Math.max(0, y0);
+		x1 = Math.min(e.image.width, x1);
+		y1 = Math.min(e.image.height, y1);
+		if (x1 <= x0 || y1 <= y0) {
+			return;
+		}
+		ImageUInt8 region = new ImageUInt8(x1 - x0, y1 - y0);
+		for (int y = y0; y < y1; y++) {
+			System.arraycopy(e.image.data, e.image.startIndex + y*e.image.stride + x0, 
+					region.data, (y - y0)*region.stride, region.width);
+		}
+		frames.put(sequence, new Entry(region, x0, y0, true));
+		heapBytes += region.width*region.height;
+		release(e);
+	}
+	
+	
+	@Override
+	public synchronized void remove(int sequence) {
+		release(frames.remove(sequence));
+	}
+	
+	
+	@Override
+	public synchronized void clear() {
+		for (Entry e : frames.values()) {
+			release(e);
+		}
+		frames.clear();
+	}
+	
+	
+	@Override
+	public synchronized int size() {
+		return frames.size();
+	}
+	
+	
+	@Override
+	public synchronized long getHeapBytes() {
+		return heapBytes;
+	}
+	
+	
+	/**
+	 * Account for an entry no longer in the map, and recycle its image unless it is being converted.
+	 * Must be called holding the lock.
+	 */
+	private void release(Entry e) {
+		if (e == null) {
+			return;
+		}
+		heapBytes -= e.image.width*e.image.height;
+		e.removed = true;
+		if (e.readers == 0) {
+			recycle(e);
+		}
+	}
+	
+	
+	/**
+	 * Give the image of an entry back to the pool, if it came from the pool.
+	 * Must be called holding the lock.
+	 */
+	private void recycle(Entry e) {
+		if (pool != null && !e.cropped) {
+			pool.release(e.image);
+		}
+	}
+	
+	
+	/**
+	 * A stored frame and its state.
+	 */
+	private static class Entry {
+		final ImageUInt8 image;
+		final int x0, y0;
+		/// {@code true} if the image is a region allocated by {@link CompactFrameStore#crop}, not from the pool
+		final boolean cropped;
+		/// number of threads converting the image
+		int readers;
+		/// {@code true} once the entry has been taken out of the map
+		boolean removed;
+		
+		Entry(ImageUInt8 image, int x0, int y0, boolean cropped) {
+			this.image = image;
+			this.x0 = x0;
+			this.y0 = y0;
+			this.cropped = cropped;
+		}
+	}
+}
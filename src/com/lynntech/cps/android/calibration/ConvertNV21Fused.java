@@ -0,0 +1,223 @@
+/*
+   Copyright 2015 Lynntech Inc. 
+   Contact information:
+   - Victor Palmer, 		victor.palmer[\AT]lynntech.com
+   - Christian Bruccoleri, 	christian.bruccoleri[\AT]lynntech.com
+   
+   Research reported in this publication was supported by the National Eye Institute 
+   of the National Institutes of Health under Award Number R43EY024800.
+   The content is solely the responsibility of the authors and does not necessarily
+   represent the official views of the National Institutes of Health.
+
+   This code includes parts of BoofCV: https://github.com/lessthanoptimal/BoofCV
+   
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+ */
+
+package com.lynntech.cps.android.calibration;
+
+import boofcv.struct.image.ImageFloat32;
+import boofcv.struct.image.ImageUInt8;
+
+/**
+ * Single pass conversion of the luma (Y) plane of an NV21 image into a gray scale image.
+ * 
+ * The BoofCV pipeline used to prepare a preview frame reads and writes the whole image several times
+ * ({@code ConvertNV21.nv21ToGray}, {@code GImageMiscOps.flipHorizontal}, {@code ConvertImage.convert}).
+ * The functions in this class read each luma sample exactly once and write the result straight into the output
+ * image, optionally mirroring it horizontally, cropping a region of interest and downscaling by an integer factor
+ * (box filter). No memory is allocated.
+ * 
+ * The region of the NV21 image that is read starts at {@code (x0, y0)} and its size is the size of the output 
+ * image multiplied by {@code scale}. When {@code mirror} is {@code true} the output is flipped horizontally, which
+ * is what front facing cameras need. The result is identical to {@code ConvertNV21.nv21ToGray} followed by the 
+ * crop, {@code GImageMiscOps.flipHorizontal} and {@code AverageDownSampleOps.down}; for floating point output, 
+ * with {@code ConvertImage.convert} before the crop. {@link ConvertNV21FusedCheck} verifies it on a desktop JVM.
+ */
+public final class ConvertNV21Fused {
+
+	private ConvertNV21Fused() {
+	}
+	
+	
+	/**
+	 * Convert the luma plane of an NV21 image into an 8-bit gray image.
+	 * When downscaling, each output pixel is the rounded mean of a {@code scale x scale} block.
+	 * 
+	 * @param nv21		NV21 image data.
+	 * @param width		Width of the NV21 image in pixels.
+	 * @param height	Height of the NV21 image in pixels.
+	 * @param x0		First column of the region to convert.
+	 * @param y0		First row of the region to convert.
+	 * @param scale		Downscale factor, 1 to keep the original resolution.
+	 * @param mirror	If {@code true} the output is flipped horizontally.
+	 * @param output	Output image; its size determines the size of the region that is converted.
+	 * @return The output image.
+	 */
+	public static ImageUInt8 nv21ToGray(byte[] nv21, int width, int height, int x0, int y0, int scale, 
+			boolean mirror, ImageUInt8 output) {
+		return nv21ToGray(nv21, width, height, x0, y0, scale, mirror, output, 0, output.height);
+	}
+	
+	
+	/**
+	 * Convert only the rows {@code [row0, row1)} of the output image; used to split the conversion among threads.
+	 * @see #nv21ToGray(byte[], int, int, int, int, int, boolean, ImageUInt8)
+	 */
+	public static ImageUInt8 nv21ToGray(byte[] nv21, int width, int height, int x0, int y0, int scale, 
+			boolean mirror, ImageUInt8 output, int row0, int row1) {
+		checkRegion(nv21, width, height, x0, y0, scale, output.width, output.height);
+		checkRows(row0, row1, output.height);
+		final byte[] out = output.data;
+		final int outWidth = output.width;
+		
+		if (scale == 1) {
+			for (int y = row0; y < row1; y++) {
+				int indexSrc = (y0 + y)*width + x0;
+				int indexDst = output.startIndex + y*output.stride;
+				if (mirror) {
+					for (int x = outWidth - 1; x >= 0; x--) {
+						out[indexDst + x] = nv21[indexSrc++];
+					}
+				}
+				else {
+					System.arraycopy(nv21, indexSrc, out, indexDst, outWidth);
+				}
+			}
+			return output;
+		}
+		
+		final int area = scale*scale;
+		final int half = area/2;
+		for (int y = row0; y < row1; y++) {
+			int rowSrc = (y0 + y*scale)*width + x0;
+			int indexDst = output.startIndex + y*output.stride;
+			for (int x = 0; x < outWidth; x++) {
+				int sum = blockSum(nv21, rowSrc + x*scale, width, scale);
+				int xd = mirror ? outWidth - 1 - x : x;
+				out[indexDst + xd] = (byte)((sum + half)/area);
+			}
+		}
+		return output;
+	}
+	
+	
+	/**
+	 * Convert the luma plane of an NV21 image into a floating point gray image with values in [0, 255].
+	 * When downscaling, each output pixel is the mean of a {@code scale x scale} block.
+	 * 
+	 * @param nv21		NV21 image data.
+	 * @param width		Width of the NV21 image in pixels.
+	 * @param height	Height of the NV21 image in pixels.
+	 * @param x0		First column of the region to convert.
+	 * @param y0		First row of the region to convert.
+	 * @param scale		Downscale factor, 1 to keep the original resolution.
+	 * @param mirror	If {@code true} the output is flipped horizontally.
+	 * @param output	Output image; its size determines the size of the region that is converted.
+	 * @return The output image.
+	 */
+	public static ImageFloat32 nv21ToGray(byte[] nv21, int width, int height, int x0, int y0, int scale, 
+			boolean mirror, ImageFloat32 output) {
+		return nv21ToGray(nv21, width, height, x0, y0, scale, mirror, output, 0, output.height);
+	}
+	
+	
+	/**
+	 * Convert only the rows {@code [row0, row1)} of the output image; used to split the conversion among threads.
+	 * @see #nv21ToGray(byte[], int, int, int, int, int, boolean, ImageFloat32)
+	 */
+	public static ImageFloat32 nv21ToGray(byte[] nv21, int width, int height, int x0, int y0, int scale, 
+			boolean mirror, ImageFloat32 output, int row0, int row1) {
+		checkRegion(nv21, width, height, x0, y0, scale, output.width, output.height);
+		checkRows(row0, row1, output.height);
+		final float[] out = output.data;
+		final int outWidth = output.width;
+		// divide rather than multiply by the inverse, to round as AverageDownSampleOps does
+		final float area = scale*scale;
+		
+		for (int y = row0; y < row1; y++) {
+			int rowSrc = (y0 + y*scale)*width + x0;
+			int indexDst = output.startIndex + y*output.stride;
+			if (scale == 1) {
+				if (mirror) {
+					for (int x = outWidth - 1; x >= 0; x--) {
+						out[indexDst + x] = nv21[rowSrc++] & 0xFF;
+					}
+				}
+				else {
+					for (int x = 0; x < outWidth; x++) {
+						out[indexDst++] = nv21[rowSrc++] & 0xFF;
+					}
+				}
+			}
+			else {
+				for (int x = 0; x < outWidth; x++) {
+					int sum = blockSum(nv21, rowSrc + x*scale, width, scale);
+					int xd = mirror ? outWidth - 1 - x : x;
+					out[indexDst + xd] = sum/area;
+				}
+			}
+		}
+		return output;
+	}
+	
+	
+	/**
+	 * Sum of the luma values in a square block.
+	 * @param nv21		NV21 image data.
+	 * @param index		Index of the top-left sample of the block.
+	 * @param stride	Row stride of the luma plane.
+	 * @param scale		Side of the block.
+	 */
+	private static int blockSum(byte[] nv21, int index, int stride, int scale) {
+		int sum = 0;
+		for (int j = 0; j < scale; j++) {
+			int i = index + j*stride;
+			int end = i + scale;
+			while (i < end) {
+				sum += nv21[i++] & 0xFF;
+			}
+		}
+		return sum;
+	}
+	
+	
+	/**
+	 * Verify that a range of rows is inside an image.
+	 */
+	static void checkRows(int row0, int row1, int height) {
+		if (row0 < 0 || row1 > height || row0 > row1) {
+			throw new IllegalArgumentException(String.format(
+					"Rows [%d, %d) are outside the image of height %d.", row0, row1, height));
+		}
+	}
+	
+	
+	/**
+	 * Verify that the region to be converted is inside the NV21 image.
+	 */
+	private static void checkRegion(byte[] nv21, int width, int height, int x0, int y0, int scale, 
+			int outWidth, int outHeight) {
+		if (scale < 1) {
+			throw new IllegalArgumentException("scale must be at least 1.");
+		}
+		if (nv21.length < width*height) {
+			throw new IllegalArgumentException("The NV21 data is smaller than the image size.");
+		}
+		if (x0 < 0 || y0 < 0 || x0 + outWidth*scale > width || y0 + outHeight*scale > height) {
+			throw new IllegalArgumentException(String.format(
+					"Region (%d, %d) %dx%d at scale %d is outside the %dx%d image.", 
+					x0, y0, outWidth, outHeight, scale, width, height));
+		}
+	}
+}
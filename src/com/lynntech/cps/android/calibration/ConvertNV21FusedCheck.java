@@ -0,0 +1,185 @@
+/*
+   Copyright 2015 Lynntech Inc. 
+   Contact information:
+   - Victor Palmer, 		victor.palmer[\AT]lynntech.com
+   - Christian Bruccoleri, 	christian.bruccoleri[\AT]lynntech.com
+   
+   Research reported in this publication was supported by the National Eye Institute 
+   of the National Institutes of Health under Award Number R43EY024800.
+   The content is solely the responsibility of the authors and does not necessarily
+   represent the official views of the National Institutes of Health.
+
+   This code includes parts of BoofCV: https://github.com/lessthanoptimal/BoofCV
+   
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+ */
+
+package com.lynntech.cps.android.calibration;
+
+import java.util.Random;
+
+import boofcv.alg.filter.misc.AverageDownSampleOps;
+import boofcv.alg.misc.GImageMiscOps;
+import boofcv.android.ConvertNV21;
+import boofcv.core.image.ConvertImage;
+import boofcv.struct.image.ImageFloat32;
+import boofcv.struct.image.ImageUInt8;
+
+/**
+ * Desktop correctness check of {@link ConvertNV21Fused} against the BoofCV multi-pass chain it replaces:
+ * {@code ConvertNV21.nv21ToGray}, then crop (sub-image), {@code GImageMiscOps.flipHorizontal}, 
+ * {@code AverageDownSampleOps.down} for the downscale and {@code ConvertImage.convert} for floating point output.
+ * 
+ * Every combination of mirror, crop and downscale factor is converted into 8-bit and floating point images, both
+ * with the single threaded kernel and with {@link ParallelImageOps}, into plain images and into sub-images (to
+ * cover the output stride). The exit status is 1 if any pixel differs from the reference.
+ * 
+ * Usage: {@code ConvertNV21FusedCheck [width height [threads]]}
+ */
+public class ConvertNV21FusedCheck {
+
+	/** Downscale factors checked. */
+	private static final int[] SCALES = { 1, 2, 3, 4 };
+	
+	
+	public static void main(String[] args) {
+		int width = args.length >= 2 ? Integer.parseInt(args[0]) : 641;
+		int height = args.length >= 2 ? Integer.parseInt(args[1]) : 479;
+		int threads = args.length >= 3 ? Integer.parseInt(args[2]) : 4;
+		
+		byte[] nv21 = new byte[PreviewBufferPool.nv21BufferSize(width, height)];
+		new Random(42).nextBytes(nv21);
+		RowBandExecutor executor = new RowBandExecutor(threads, 1);
+		ParallelImageOps ops = new ParallelImageOps(executor);
+		
+		int cases = 0, failures = 0;
+		for (int scale : SCALES) {
+			for (boolean crop : new boolean[] { false, true }) {
+				for (boolean mirror : new boolean[] { false, true }) {
+					int x0 = crop ? 13 : 0;
+					int y0 = crop ? 7 : 0;
+					int outWidth = (width - x0 - (crop ? 21 : 0))/scale;
+					int outHeight = (height - y0 - (crop ? 5 : 0))/scale;
+					String name = String.format("scale %d, crop %s, mirror %s", scale, crop, mirror);
+					
+					ImageUInt8 expected8 = reference(nv21, width, height, x0, y0, outWidth, outHeight, scale, mirror);
+					ImageFloat32 expectedF = referenceF32(nv21, width, height, x0, y0, outWidth, outHeight, scale, mirror);
+					
+					for (boolean parallel : new boolean[] { false, true }) {
+						for (boolean sub : new boolean[] { false, true }) {
+							String variant = name + (parallel ? ", parallel" : "") + (sub ? ", sub-image" : "");
+							ImageUInt8 out8 = sub ? new ImageUInt8(outWidth + 5, outHeight + 3).subimage(
+									2, 1, outWidth + 2, outHeight + 1, null) : new ImageUInt8(outWidth, outHeight);
+							ImageFloat32 outF = sub ? new ImageFloat32(outWidth + 5, outHeight + 3).subimage(
+									2, 1, outWidth + 2, outHeight + 1, null) : new ImageFloat32(outWidth, outHeight);
+							if (parallel) {
+								ops.nv21ToGray(nv21, width, height, x0, y0, scale, mirror, out8);
+								ops.nv21ToGray(nv21, width, height, x0, y0, scale, mirror, outF);
+							}
+							else {
+								ConvertNV21Fused.nv21ToGray(nv21, width, height, x0, y0, scale, mirror, out8);
+								ConvertNV21Fused.nv21ToGray(nv21, width, height, x0, y0, scale, mirror, outF);
+							}
+							cases += 2;
+							failures += compare(variant + ", u8", expected8, out8) ? 0 : 1;
+							failures += compare(variant + ", f32", expectedF, outF) ? 0 : 1;
+						}
+					}
+				}
+			}
+		}
+		executor.shutdown();
+		
+		System.out.printf("%dx%d, %d threads: %d cases, %d failed%n", width, height, threads, cases, failures);
+		if (failures > 0) {
+			System.exit(1);
+		}
+	}
+	
+	
+	/**
+	 * The 8-bit multi-pass chain: full frame conversion, crop, mirror and downscale.
+	 */
+	private static ImageUInt8 reference(byte[] nv21, int width, int height, int x0, int y0, 
+			int outWidth, int outHeight, int scale, boolean mirror) {
+		ImageUInt8 gray = ConvertNV21.nv21ToGray(nv21, width, height, (ImageUInt8) null);
+		ImageUInt8 region = gray.subimage(x0, y0, x0 + outWidth*scale, y0 + outHeight*scale, null).clone();
+		if (mirror) {
+			GImageMiscOps.flipHorizontal(region);
+		}
+		if (scale == 1) {
+			return region;
+		}
+		ImageUInt8 down = new ImageUInt8(outWidth, outHeight);
+		AverageDownSampleOps.down(region, scale, down);
+		return down;
+	}
+	
+	
+	/**
+	 * The floating point multi-pass chain: full frame conversion, conversion to floating point, crop, mirror and
+	 * downscale.
+	 */
+	private static ImageFloat32 referenceF32(byte[] nv21, int width, int height, int x0, int y0, 
+			int outWidth, int outHeight, int scale, boolean mirror) {
+		ImageUInt8 gray = ConvertNV21.nv21ToGray(nv21, width, height, (ImageUInt8) null);
+		ImageFloat32 grayF = new ImageFloat32(width, height);
+		ConvertImage.convert(gray, grayF);
+		ImageFloat32 region = grayF.subimage(x0, y0, x0 + outWidth*scale, y0 + outHeight*scale, null).clone();
+		if (mirror) {
+			GImageMiscOps.flipHorizontal(region);
+		}
+		if (scale == 1) {
+			return region;
+		}
+		ImageFloat32 down = new ImageFloat32(outWidth, outHeight);
+		AverageDownSampleOps.down(region, scale, down);
+		return down;
+	}
+	
+	
+	/**
+	 * Compare two 8-bit images pixel by pixel, printing the first difference.
+	 * @return {@code true} if the images are identical.
+	 */
+	private static boolean compare(String name, ImageUInt8 expected, ImageUInt8 actual) {
+		for (int y = 0; y < expected.height; y++) {
+			for (int x = 0; x < expected.width; x++) {
+				if (expected.get(x, y) != actual.get(x, y)) {
+					System.out.printf("%s: (%d, %d) is %d, expected %d%n", name, x, y, 
+							actual.get(x, y), expected.get(x, y));
+					return false;
+				}
+			}
+		}
+		return true;
+	}
+	
+	
+	/**
+	 * Compare two floating point images pixel by pixel, printing the first difference.
+	 * @return {@code true} if the images are identical.
+	 */
+	private static boolean compare(String name, ImageFloat32 expected, ImageFloat32 actual) {
+		for (int y = 0; y < expected.height; y++) {
+			for (int x = 0; x < expected.width; x++) {
+				if (expected.get(x, y) != actual.get(x, y)) {
+					System.out.printf("%s: (%d, %d) is %s, expected %s%n", name, x, y, 
+							actual.get(x, y), expected.get(x, y));
+					return false;
+				}
+			}
+		}
+		return true;
+	}
+}
@@ -0,0 +1,215 @@
+/*
+   Copyright 2015 Lynntech Inc. 
+   Contact information:
+   - Victor Palmer, 		victor.palmer[\AT]lynntech.com
+   - Christian Bruccoleri, 	christian.bruccoleri[\AT]lynntech.com
+   
+   Research reported in this publication was supported by the National Eye Institute 
+   of the National Institutes of Health under Award Number R43EY024800.
+   The content is solely the responsibility of the authors and does not necessarily
+   represent the official views of the National Institutes of Health.
+
+   This code includes parts of BoofCV: https://github.com/lessthanoptimal/BoofCV
+   
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+ */
+
+package com.lynntech.cps.android.calibration;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Lock-free triple buffer used to hand frames from a single producer to a single consumer.
+ *
+ * The producer always owns a <i>back</i> buffer that it can fill at its own pace, the consumer owns a <i>front</i>
+ * buffer, and a third <i>middle</i> buffer holds the most recently published frame. Publishing swaps the back and
+ * middle buffers, taking swaps the middle and front buffers; both are a single compare-and-set, so neither side
+ * ever blocks the other. If the producer publishes twice before the consumer takes, the older frame is overwritten
+ * (latest frame wins) and the drop is counted.
+ *
+ * Typical use, with the camera callback as producer:
+ *
+ * <pre>{@code
+ * ImageUInt8 back = exchanger.getBackBuffer();
+ * // ... fill back ...
+ * exchanger.publish();
+ * }</pre>
+ *
+ * and the worker thread as consumer:
+ *
+ * <pre>{@code
+ * ImageUInt8 frame = exchanger.take(100, TimeUnit.MILLISECONDS);
+ * if (frame != null) { ... }
+ * }</pre>
+ *
+ * @param <T> Type of the frame buffers.
+ */
+public class FrameExchanger<T> {
+
+	/** Bit position of the back (producer) buffer index in {@link #state}. */
+	private static final int BACK_SHIFT = 0;
+	/** Bit position of the middle (exchange) buffer index in {@link #state}. */
+	private static final int MIDDLE_SHIFT = 2;
+	/** Bit position of the front (consumer) buffer index in {@link #state}. */
+	private static final int FRONT_SHIFT = 4;
+	/** Set when the middle buffer holds a frame that has not been taken yet. */
+	private static final int FRESH = 1 << 6;
+	/** Mask for a single buffer index. */
+	private static final int INDEX_MASK = 0x3;
+
+	/** The three buffers; their roles are assigned by {@link #state}. */
+	private final Object[] buffers;
+
+	/** Packed buffer roles and the fresh flag, updated only through compare-and-set. */
+	private final AtomicInteger state;
+
+	/** Number of frames published. */
+	private final AtomicLong publishedCount = new AtomicLong();
+
+	/** Number of published frames overwritten before the consumer could take them. */
+	private final AtomicLong droppedCount = new AtomicLong();
+
+	/** Thread blocked in {@link #take(long, TimeUnit)}, if any. */
+	private volatile Thread waiter;
+
+
+	/**
+	 * Create an exchanger over three distinct, pre-allocated buffers.
+	 * @param back		Initial producer buffer.
+	 * @param middle	Initial exchange buffer.
+	 * @param front		Initial consumer buffer.
+	 */
+	public FrameExchanger(T back, T middle, T front) {
+		if (back == null || middle == null || front == null) {
+			throw new IllegalArgumentException("Buffers cannot be null.");
+		}
+		if (back == middle || middle == front || back == front) {
+			throw new IllegalArgumentException("Buffers must be distinct objects.");
+		}
+		buffers = new Object[] { back, middle, front };
+		state = new AtomicInteger((0 << BACK_SHIFT) | (1 << MIDDLE_SHIFT) | (2 << FRONT_SHIFT));
+	}
+
+
+	/**
+	 * Producer side: the buffer to be filled with the next frame.
+	 * The same buffer is returned until {@link #publish()} is called.
+	 * @return The current back buffer.
+	 */
+	@SuppressWarnings("unchecked")
+	public T getBackBuffer() {
+		return (T) buffers[(state.get() >> BACK_SHIFT) & INDEX_MASK];
+	}
+
+
+	/**
+	 * Producer side: make the back buffer the latest frame and wake up the consumer.
+	 * Never blocks. If the previous frame had not been taken, it is dropped.
+	 */
+	public void publish() {
+		int s, next;
+		do {
+			s = state.get();
+			int back = (s >> BACK_SHIFT) & INDEX_MASK;
+			int middle = (s >> MIDDLE_SHIFT) & INDEX_MASK;
+			int front = (s >> FRONT_SHIFT) & INDEX_MASK;
+			next = (middle << BACK_SHIFT) | (back << MIDDLE_SHIFT) | (front << FRONT_SHIFT) | FRESH;
+		} while (!state.compareAndSet(s, next));
+		publishedCount.incrementAndGet();
+		if ((s & FRESH) != 0) {
+			droppedCount.incrementAndGet();
+		}
+		Thread w = waiter;
+		if (w != null) {
+			LockSupport.unpark(w);
+		}
+	}
+
+
+	/**
+	 * Consumer side: take the latest frame if one was published since the last call.
+	 * Never blocks.
+	 * @return The newest complete frame, or {@code null} if there is nothing new.
+	 */
+	@SuppressWarnings("unchecked")
+	public T poll() {
+		int s, next;
+		do {
+			s = state.get();
+			if ((s & FRESH) == 0) {
+				return null;
+			}
+			int back = (s >> BACK_SHIFT) & INDEX_MASK;
+			int middle = (s >> MIDDLE_SHIFT) & INDEX_MASK;
+			int front = (s >> FRONT_SHIFT) & INDEX_MASK;
+			next = (back << BACK_SHIFT) | (front << MIDDLE_SHIFT) | (middle << FRONT_SHIFT);
+		} while (!state.compareAndSet(s, next));
+		return (T) buffers[(next >> FRONT_SHIFT) & INDEX_MASK];
+	}
+
+
+	/**
+	 * Consumer side: wait until a new frame is published or the timeout expires.
+	 * The returned buffer belongs to the consumer until the next call to {@link #poll()} or {@link #take(long, TimeUnit)}.
+	 * A call to {@link #wakeUp()} or an interrupt makes this method return early.
+	 *
+	 * @param timeout	Maximum time to wait.
+	 * @param unit		Unit of {@code timeout}.
+	 * @return The newest complete frame, or {@code null} if none arrived in time.
+	 */
+	public T take(long timeout, TimeUnit unit) {
+		T frame = poll();
+		if (frame != null) {
+			return frame;
+		}
+		waiter = Thread.currentThread();
+		try {
+			// check again: the producer may have published before the waiter was registered
+			frame = poll();
+			if (frame == null) {
+				LockSupport.parkNanos(this, unit.toNanos(timeout));
+				frame = poll();
+			}
+		}
+		finally {
+			waiter = null;
+		}
+		return frame;
+	}
+
+
+	/**
+	 * Wake up a consumer blocked in {@link #take(long, TimeUnit)}, e.g. to let it check a stop request.
+	 */
+	public void wakeUp() {
+		Thread w = waiter;
+		if (w != null) {
+			LockSupport.unpark(w);
+		}
+	}
+
+
+	/** @return Number of frames published since creation. */
+	public long getPublishedCount() {
+		return publishedCount.get();
+	}
+
+
+	/** @return Number of frames overwritten by a newer one before the consumer took them. */
+	public long getDroppedCount() {
+		return droppedCount.get();
+	}
+}
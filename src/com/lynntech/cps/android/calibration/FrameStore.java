@@ -0,0 +1,118 @@
+/*
+   Copyright 2015 Lynntech Inc. 
+   Contact information:
+   - Victor Palmer, 		victor.palmer[\AT]lynntech.com
+   - Christian Bruccoleri, 	christian.bruccoleri[\AT]lynntech.com
+   
+   Research reported in this publication was supported by the National Eye Institute 
+   of the National Institutes of Health under Award Number R43EY024800.
+   The content is solely the responsibility of the authors and does not necessarily
+   represent the official views of the National Institutes of Health.
+
+   This code includes parts of BoofCV: https://github.com/lessthanoptimal/BoofCV
+   
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+ */
+package com.lynntech.cps.android.calibration;
+
+import boofcv.struct.image.ImageFloat32;
+import boofcv.struct.image.ImageUInt8;
+
+/**
+ * Storage for the frames snapped for calibration, kept as 8-bit luma planes and identified by the sequence number
+ * of the view. A frame is stored whole when snapped; once the target has been detected it can be cropped to the
+ * region around the target, or removed. Implementations must be thread safe.
+ * 
+ * @see CompactFrameStore
+ */
+public interface FrameStore {
+
+	/**
+	 * Store a copy of a frame.
+	 * @param sequence	Identifier of the frame; replaces a frame with the same identifier.
+	 * @param frame		The frame, not modified and not referenced after the call.
+	 */
+	void put(int sequence, ImageUInt8 frame);
+	
+	
+	/**
+	 * Convert a stored frame to floating point, e.g. just before the target detection.
+	 * @param sequence	Identifier of the frame.
+	 * @param output	Destination image, reshaped to the size of the stored frame.
+	 * @return {@code false} if there is no frame with that identifier.
+	 */
+	boolean convert(int sequence, ImageFloat32 output);
+	
+	
+	/**
+	 * Get a copy of a stored frame.
+	 * @param sequence	Identifier of the frame.
+	 * @return The frame, or {@code null} if there is no frame with that identifier.
+	 */
+	Frame get(int sequence);
+	
+	
+	/**
+	 * Keep only a rectangular region of a stored frame. The region is clipped to the frame; a frame already
+	 * cropped, or missing, is left unchanged.
+	 * @param sequence	Identifier of the frame.
+	 * @param x0		Left column of the region, inclusive.
+	 * @param y0		Top row of the region, inclusive.
+	 * @param x1		Right column of the region, exclusive.
+	 * @param y1		Bottom row of the region, exclusive.
+	 */
+	void crop(int sequence, int x0, int y0, int x1, int y1);
+	
+	
+	/**
+	 * Delete a frame, if stored.
+	 * @param sequence	Identifier of the frame.
+	 */
+	void remove(int sequence);
+	
+	
+	/**
+	 * Delete all the frames.
+	 */
+	void clear();
+	
+	
+	/** @return Number of frames stored. */
+	int size();
+	
+	
+	/** @return Memory used by the stored pixels on the Java heap, in bytes. */
+	long getHeapBytes();
+	
+	
+	/**
+	 * A stored frame, possibly cropped.
+	 */
+	public static class Frame {
+		/** The pixels. */
+		public final ImageUInt8 image;
+		/** Position of the top-left pixel of {@link #image} in the frame as snapped. */
+		public final int x0, y0;
+		
+		/**
+		 * @param image	The pixels.
+		 * @param x0	Column of the top-left pixel in the frame as snapped.
+		 * @param y0	Row of the top-left pixel in the frame as snapped.
+		 */
+		public Frame(ImageUInt8 image, int x0, int y0) {
+			this.image = image;
+			this.x0 = x0;
+			this.y0 = y0;
+		}
+	}
+}
@@ -0,0 +1,233 @@
+/*
+   Copyright 2015 Lynntech Inc. 
+   Contact information:
+   - Victor Palmer, 		victor.palmer[\AT]lynntech.com
+   - Christian Bruccoleri, 	christian.bruccoleri[\AT]lynntech.com
+   
+   Research reported in this publication was supported by the National Eye Institute 
+   of the National Institutes of Health under Award Number R43EY024800.
+   The content is solely the responsibility of the authors and does not necessarily
+   represent the official views of the National Institutes of Health.
+
+   This code includes parts of BoofCV: https://github.com/lessthanoptimal/BoofCV
+   
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+ */
+
+package com.lynntech.cps.android.calibration;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import boofcv.core.image.GeneralizedImageOps;
+import boofcv.struct.image.ImageSingleBand;
+
+/**
+ * A pool of BoofCV single band images (e.g. {@link boofcv.struct.image.ImageUInt8}, 
+ * {@link boofcv.struct.image.ImageFloat32}) keyed by image type and size.
+ * 
+ * An image obtained with {@link #acquire(Class, int, int)} is leased to the caller until it is given back with
+ * {@link #release(ImageSingleBand)}; its content is undefined. Released images are kept for the next lease,
+ * up to a maximum number of idle images per key: extra images are discarded and left to the garbage collector.
+ * Once the pool holds as many images as a processing loop needs, the loop runs without allocating memory.
+ * 
+ * The number of keys is expected to be small (a few sizes and types per Activity), therefore they are kept in a
+ * list and searched linearly, which does not allocate any object during lookup. All methods are thread safe.
+ */
+public class ImagePool {
+
+	/** Default maximum number of idle images kept for each type and size. */
+	public static final int DEFAULT_MAX_IDLE = 4;
+	
+	/** Maximum number of idle images kept for each type and size. */
+	private final int maxIdle;
+	
+	/** One bucket for each image type and size requested so far. */
+	private final List<Bucket> buckets = new ArrayList<Bucket>();
+
+	
+	/**
+	 * Create a pool that keeps at most {@link #DEFAULT_MAX_IDLE} idle images for each type and size.
+	 */
+	public ImagePool() {
+		this(DEFAULT_MAX_IDLE);
+	}
+	
+	
+	/**
+	 * Create a pool.
+	 * @param maxIdle	Maximum number of idle images kept for each type and size, at least 1.
+	 */
+	public ImagePool(int maxIdle) {
+		if (maxIdle < 1) {
+			throw new IllegalArgumentException("maxIdle must be at least 1.");
+		}
+		this.maxIdle = maxIdle;
+	}
+	
+	
+	/**
+	 * Lease an image of the specified type and size. A pooled image is returned if available (a hit), 
+	 * otherwise a new one is created (a miss).
+	 * 
+	 * @param type		Image class, e.g. {@code ImageFloat32.class}.
+	 * @param width		Image width in pixels.
+	 * @param height	Image height in pixels.
+	 * @return An image with undefined content, which must be given back with {@link #release(ImageSingleBand)}.
+	 */
+	@SuppressWarnings("unchecked")
+	public synchronized <T extends ImageSingleBand<?>> T acquire(Class<T> type, int width, int height) {
+		Bucket bucket = findBucket(type, width, height);
+		bucket.leased++;
+		int last = bucket.idle.size() - 1;
+		if (last >= 0) {
+			bucket.hits++;
+			return (T) bucket.idle.remove(last);
+		}
+		bucket.misses++;
+		return GeneralizedImageOps.createSingleBand(type, width, height);
+	}
+	
+	
+	/**
+	 * End the lease of an image. The caller must not use the image after this call.
+	 * Sub-images cannot be released, since they share the data of another image.
+	 * 
+	 * @param image		The image to give back; {@code null} is ignored.
+	 */
+	public synchronized void release(ImageSingleBand<?> image) {
+		if (image == null) {
+			return;
+		}
+		if (image.isSubimage()) {
+			throw new IllegalArgumentException("Sub-images cannot be released into the pool.");
+		}
+		Bucket bucket = findBucket(image.getClass(), image.width, image.height);
+		for (int i = 0; i < bucket.idle.size(); i++) {
+			if (bucket.idle.get(i) == image) {
+				throw new IllegalStateException("The image was already released.");
+			}
+		}
+		if (bucket.leased > 0) {
+			bucket.leased--;
+		}
+		if (bucket.idle.size() < maxIdle) {
+			bucket.idle.add(image);
+		}
+		else {
+			bucket.discarded++;
+		}
+	}
+	
+	
+	/**
+	 * Drop all the idle images, e.g. to free memory when the Activity is no longer visible.
+	 * Statistics and leases are not affected.
+	 */
+	public synchronized void clear() {
+		for (Bucket bucket : buckets) {
+			bucket.idle.clear();
+		}
+	}
+	
+	
+	/**
+	 * Get a snapshot of the statistics of each type and size requested so far.
+	 * @return A new list with one entry for each key.
+	 */
+	public synchronized List<Statistics> getStatistics() {
+		List<Statistics> res = new ArrayList<Statistics>(buckets.size());
+		for (Bucket bucket : buckets) {
+			Statistics stat = new Statistics();
+			stat.type = bucket.type;
+			stat.width = bucket.width;
+			stat.height = bucket.height;
+			stat.hits = bucket.hits;
+			stat.misses = bucket.misses;
+			stat.discarded = bucket.discarded;
+			stat.leased = bucket.leased;
+			stat.idle = bucket.idle.size();
+			res.add(stat);
+		}
+		return res;
+	}
+	
+	
+	/** @return The maximum number of idle images kept for each type and size. */
+	public int getMaxIdle() {
+		return maxIdle;
+	}
+	
+	
+	/**
+	 * Find the bucket associated with an image type and size, creating it if needed.
+	 * Must be called while holding the lock on this object.
+	 */
+	private Bucket findBucket(Class<?> type, int width, int height) {
+		for (int i = 0; i < buckets.size(); i++) {
+			Bucket b = buckets.get(i);
+			if (b.type == type && b.width == width && b.height == height) {
+				return b;
+			}
+		}
+		Bucket b = new Bucket(type, width, height, maxIdle);
+		buckets.add(b);
+		return b;
+	}
+	
+	
+	/**
+	 * Idle images and counters for one image type and size.
+	 */
+	private static class Bucket {
+		final Class<?> type;
+		final int width, height;
+		final ArrayList<ImageSingleBand<?>> idle;
+		long hits, misses, discarded;
+		int leased;
+		
+		Bucket(Class<?> type, int width, int height, int capacity) {
+			this.type = type;
+			this.width = width;
+			this.height = height;
+			this.idle = new ArrayList<ImageSingleBand<?>>(capacity);
+		}
+	}
+	
+	
+	/**
+	 * Usage statistics for one image type and size.
+	 */
+	public static class Statistics {
+		/** Image class. */
+		public Class<?> type;
+		/** Image size in pixels. */
+		public int width, height;
+		/** Number of leases served with a pooled image. */
+		public long hits;
+		/** Number of leases that required a new image. */
+		public long misses;
+		/** Number of released images dropped because the pool was full. */
+		public long discarded;
+		/** Number of images currently leased. */
+		public int leased;
+		/** Number of images currently idle in the pool. */
+		public int idle;
+		
+		@Override
+		public String toString() {
+			return String.format("%s %dx%d: hits %d, misses %d, discarded %d, leased %d, idle %d", 
+					type.getSimpleName(), width, height, hits, misses, discarded, leased, idle);
+		}
+	}
+}
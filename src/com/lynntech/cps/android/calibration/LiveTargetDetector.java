@@ -0,0 +1,310 @@
+/*
+   Copyright 2015 Lynntech Inc. 
+   Contact information:
+   - Victor Palmer, 		victor.palmer[\AT]lynntech.com
+   - Christian Bruccoleri, 	christian.bruccoleri[\AT]lynntech.com
+   
+   Research reported in this publication was supported by the National Eye Institute 
+   of the National Institutes of Health under Award Number R43EY024800.
+   The content is solely the responsibility of the authors and does not necessarily
+   represent the official views of the National Institutes of Health.
+
+   This code includes parts of BoofCV: https://github.com/lessthanoptimal/BoofCV
+   
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+ */
+
+package com.lynntech.cps.android.calibration;
+
+import georegression.struct.point.Point2D_F64;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import boofcv.abst.calib.ConfigChessboard;
+import boofcv.abst.calib.PlanarCalibrationDetector;
+import boofcv.factory.calib.FactoryPlanarCalibrationTarget;
+import boofcv.struct.image.ImageFloat32;
+import boofcv.struct.image.ImageUInt8;
+
+/**
+ * Live detection of the calibration target, used to give feedback to the user before a picture is snapped.
+ * 
+ * The worker thread offers each frame with {@link #submit(ImageUInt8)}; at most {@link #getRate()} frames per 
+ * second are accepted, downscaled by an integer factor (box filter) and handed to the detection thread through a
+ * {@link FrameExchanger}, so the caller never waits for the detector. The detection thread runs a single, reused
+ * chessboard detector and stores the corners, in the coordinates of the full resolution frame, into preallocated 
+ * arrays; the latest result is copied out with {@link #getLatest(Corners)}.
+ */
+public class LiveTargetDetector implements Runnable {
+
+	/**
+	 * Corners of the calibration target found in a frame.
+	 */
+	public static final class Corners {
+		/// Coordinates of the corners, in the full resolution frame.
+		public final float[] x, y;
+		/// Number of valid corners, zero if the target was not found.
+		public int count;
+		/// {@code true} if the whole target was found.
+		public boolean found;
+		/// Sequence number of the detection, incremented for each processed frame.
+		public long sequence;
+		
+		/**
+		 * Preallocate the storage for the corners.
+		 * @param capacity	Maximum number of corners.
+		 */
+		public Corners(int capacity) {
+			x = new float[capacity];
+			y = new float[capacity];
+		}
+		
+		/**
+		 * Copy another result into this object, without allocating memory.
+		 */
+		void setTo(Corners src) {
+			System.arraycopy(src.x, 0, x, 0, src.count);
+			System.arraycopy(src.y, 0, y, 0, src.count);
+			count = src.count;
+			found = src.found;
+			sequence = src.sequence;
+		}
+	}
+	
+	/** Default detection rate, in frames per second. */
+	public static final float DEFAULT_RATE = 5;
+	
+	/** Maximum time the detection thread waits for a frame before checking for a stop request. */
+	private static final long FRAME_TIMEOUT_MS = 100;
+	
+	/** The detector, used only by the detection thread. */
+	private final PlanarCalibrationDetector detector;
+	
+	/** Downscaled frames handed to the detection thread. */
+	private final FrameExchanger<ImageFloat32> frames;
+	
+	/** Size of the full resolution frames. */
+	private final int frameWidth, frameHeight;
+	
+	/** Downscale factor of the frames given to the detector. */
+	private final int scale;
+	
+	/** Minimum time between two accepted frames, in nanoseconds. */
+	private volatile long intervalNanos;
+	
+	/** Time the last frame was accepted by {@link #submit(ImageUInt8)}. */
+	private long lastSubmitNanos;
+	
+	/** Result being written by the detection thread. */
+	private Corners spare;
+	
+	/** Latest complete result, guarded by {@link #lock}. */
+	private Corners latest;
+	
+	/** Guards {@link #latest}. */
+	private final Object lock = new Object();
+	
+	/** Called by the detection thread after each detection, may be null. */
+	private volatile Runnable listener;
+	
+	/** The detection thread, null if not running. */
+	private Thread thread;
+	
+	/** Set to request the detection thread to stop. */
+	private volatile boolean stopRequested;
+	
+	
+	/**
+	 * Create the detector.
+	 * @param config		Description of the chessboard target.
+	 * @param frameWidth	Width of the frames that will be submitted.
+	 * @param frameHeight	Height of the frames that will be submitted.
+	 * @param maxWidth		Maximum width of the downscaled frame given to the detector.
+	 * @param rate			Maximum number of detections per second.
+	 */
+	public LiveTargetDetector(ConfigChessboard config, int frameWidth, int frameHeight, int maxWidth, float rate) {
+		this.detector = FactoryPlanarCalibrationTarget.detectorChessboard(config);
+		this.frameWidth = frameWidth;
+		this.frameHeight = frameHeight;
+		this.scale = Math.max(1, (frameWidth + maxWidth - 1)/maxWidth);
+		int w = frameWidth/scale;
+		int h = frameHeight/scale;
+		frames = new FrameExchanger<ImageFloat32>(new ImageFloat32(w, h), new ImageFloat32(w, h), new ImageFloat32(w, h));
+		int capacity = (config.numCols - 1)*(config.numRows - 1);
+		spare = new Corners(capacity);
+		latest = new Corners(capacity);
+		setRate(rate);
+	}
+	
+	
+	/**
+	 * Set the maximum number of detections per second.
+	 * @param rate	Frames per second, greater than zero.
+	 */
+	public void setRate(float rate) {
+		if (!(rate > 0)) {
+			throw new IllegalArgumentException("The rate must be greater than zero.");
+		}
+		intervalNanos = (long)(1e9/rate);
+	}
+	
+	
+	/** @return The maximum number of detections per second. */
+	public float getRate() {
+		return (float)(1e9/intervalNanos);
+	}
+	
+	
+	/** @return Width of the full resolution frames. */
+	public int getFrameWidth() {
+		return frameWidth;
+	}
+	
+	
+	/** @return Height of the full resolution frames. */
+	public int getFrameHeight() {
+		return frameHeight;
+	}
+	
+	
+	/** @return Downscale factor of the frames given to the detector. */
+	public int getScale() {
+		return scale;
+	}
+	
+	
+	/**
+	 * Set an object to be notified, on the detection thread, after each detection.
+	 * @param listener	The listener, or null.
+	 */
+	public void setListener(Runnable listener) {
+		this.listener = listener;
+	}
+	
+	
+	/**
+	 * Offer a frame for detection; never blocks. The frame is used only if enough time elapsed since the last
+	 * accepted one, and it is downscaled before returning, so the caller can reuse it right away.
+	 * @param gray	Full resolution frame; must be contiguous (not a sub-image).
+	 * @return {@code true} if the frame was accepted.
+	 */
+	public boolean submit(ImageUInt8 gray) {
+		if (gray.width != frameWidth || gray.height != frameHeight) {
+			throw new IllegalArgumentException("Unexpected frame size.");
+		}
+		if (gray.stride != gray.width || gray.startIndex != 0) {
+			throw new IllegalArgumentException("The frame must be contiguous.");
+		}
+		long now = System.nanoTime();
+		if (now - lastSubmitNanos < intervalNanos) {
+			return false;
+		}
+		lastSubmitNanos = now;
+		// the pixels of an 8-bit gray image are laid out like the luma plane of a NV21 image
+		ConvertNV21Fused.nv21ToGray(gray.data, gray.width, gray.height, 0, 0, scale, false, frames.getBackBuffer());
+		frames.publish();
+		return true;
+	}
+	
+	
+	/**
+	 * @return A new object with capacity for all the corners of the target, to be used with {@link #getLatest(Corners)}.
+	 */
+	public Corners createCorners() {
+		return new Corners(latest.x.length);
+	}
+	
+	
+	/**
+	 * Copy the latest result into the specified object, without allocating memory.
+	 * @param dst	Output, with capacity for all the corners of the target.
+	 * @return {@code dst}.
+	 */
+	public Corners getLatest(Corners dst) {
+		synchronized (lock) {
+			dst.setTo(latest);
+		}
+		return dst;
+	}
+	
+	
+	/**
+	 * Start the detection thread.
+	 */
+	public synchronized void start() {
+		if (thread == null) {
+			stopRequested = false;
+			thread = new Thread(this, "LiveTargetDetector");
+			thread.setDaemon(true);
+			thread.start();
+		}
+	}
+	
+	
+	/**
+	 * Stop the detection thread, waiting for it to terminate.
+	 */
+	public synchronized void stop() {
+		if (thread != null) {
+			stopRequested = true;
+			frames.wakeUp();
+			try {
+				thread.join();
+			} 
+			catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+			thread = null;
+		}
+	}
+	
+	
+	/**
+	 * The detection loop.
+	 */
+	@Override
+	public void run() {
+		long sequence = 0;
+		while (!stopRequested) {
+			ImageFloat32 frame = frames.take(FRAME_TIMEOUT_MS, TimeUnit.MILLISECONDS);
+			if (frame == null) {
+				continue;
+			}
+			Corners result = spare;
+			result.found = detector.process(frame);
+			result.count = 0;
+			if (result.found) {
+				// map the centre of each downscaled pixel back to the full resolution frame
+				float offset = (scale - 1)*0.5f;
+				List<Point2D_F64> points = detector.getPoints();
+				int n = Math.min(points.size(), result.x.length);
+				for (int i = 0; i < n; i++) {
+					Point2D_F64 p = points.get(i);
+					result.x[i] = (float)p.x*scale + offset;
+					result.y[i] = (float)p.y*scale + offset;
+				}
+				result.count = n;
+			}
+			result.sequence = ++sequence;
+			synchronized (lock) {
+				spare = latest;
+				latest = result;
+			}
+			Runnable l = listener;
+			if (l != null) {
+				l.run();
+			}
+		}
+	}
+}
@@ -0,0 +1,454 @@
+/*
+   Copyright 2015 Lynntech Inc. 
+   Contact information:
+   - Victor Palmer, 		victor.palmer[\AT]lynntech.com
+   - Christian Bruccoleri, 	christian.bruccoleri[\AT]lynntech.com
+   
+   Research reported in this publication was supported by the National Eye Institute 
+   of the National Institutes of Health under Award Number R43EY024800.
+   The content is solely the responsibility of the authors and does not necessarily
+   represent the official views of the National Institutes of Health.
+
+   This code includes parts of BoofCV: https://github.com/lessthanoptimal/BoofCV
+   
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+ */
+package com.lynntech.cps.android.calibration;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+import boofcv.struct.image.ImageFloat32;
+import boofcv.struct.image.ImageUInt8;
+
+/**
+ * {@link FrameStore} that appends the frames to a scratch file mapped in memory, so that the heap holds only a small
+ * index whatever the number and the resolution of the frames. The file is mapped in segments of fixed size, a frame 
+ * never spans two segments; the pages are loaded and evicted by the operating system.
+ * 
+ * Uncompressed frames are converted for detection straight from the mapped memory, without copying them on the heap.
+ * Frames can also be compressed with deflate, which takes less disk space and I/O at the cost of some CPU time; they
+ * are then inflated into a temporary buffer. Space of deleted frames is not reused until {@link #clear()}, which 
+ * truncates the file. {@link #close()} deletes the file, which is also deleted when the JVM exits.
+ * All methods are thread safe.
+ */
+public class MappedFrameStore implements FrameStore, Closeable {
+
+	/** Default size of a mapped segment, which is also the maximum size of a frame. */
+	public static final int DEFAULT_SEGMENT_SIZE = 32 << 20;
+	
+	/** Estimated heap used by an entry of the index, in bytes. */
+	private static final int ENTRY_BYTES = 64;
+	
+	/** The scratch file. */
+	private final File file;
+	
+	/** Read and write access to the scratch file. */
+	private final RandomAccessFile raf;
+	
+	/** Size of each mapped segment. */
+	private final int segmentSize;
+	
+	/** {@code true} to deflate the frames. */
+	private final boolean compress;
+	
+	/** Mapped segments, in file order. */
+	private final List<MappedByteBuffer> segments = new ArrayList<MappedByteBuffer>();
+	
+	/** Position in the file where the next frame is appended. */
+	private long end;
+	
+	/** Position and shape of the stored frames. */
+	private final Map<Integer, Entry> index = new HashMap<Integer, Entry>();
+	
+	/** Readers copy from the mapped memory; the index and the segments are modified only by writers. */
+	private final ReentrantReadWriteLock lock = new ReentrantReadWriteLock();
+	
+	
+	/**
+	 * Create a store with uncompressed frames.
+	 * @param directory	Directory of the scratch file, e.g. {@code Context.getCacheDir()}.
+	 * @throws IOException If the scratch file cannot be created.
+	 */
+	public MappedFrameStore(File directory) throws IOException {
+		this(directory, false, DEFAULT_SEGMENT_SIZE);
+	}
+	
+	
+	/**
+	 * Create a store.
+	 * @param directory		Directory of the scratch file.
+	 * @param compress		{@code true} to deflate the frames.
+	 * @param segmentSize	Size of each mapped segment, in bytes; it must be larger than a frame.
+	 * @throws IOException If the scratch file cannot be created.
+	 */
+	public MappedFrameStore(File directory, boolean compress, int segmentSize) throws IOException {
+		if (segmentSize < 1) {
+			throw new IllegalArgumentException("The segment size must be positive.");
+		}
+		this.compress = compress;
+		this.segmentSize = segmentSize;
+		file = File.createTempFile("frames", ".bin", directory);
+		file.deleteOnExit();
+		raf = new RandomAccessFile(file, "rw");
+	}
+	
+	
+	@Override
+	public void put(int sequence, ImageUInt8 frame) {
+		// compress before taking the lock
+		byte[] data = pack(frame, 0, 0, frame.width, frame.height);
+		int length = compress ? data.length : frame.width*frame.height;
+		lock.writeLock().lock();
+		try {
+			index.put(sequence, append(data, length, frame.width, frame.height, 0, 0));
+		}
+		finally {
+			lock.writeLock().unlock();
+		}
+	}
+	
+	
+	@Override
+	public boolean convert(int sequence, ImageFloat32 output) {
+		lock.readLock().lock();
+		try {
+			Entry e = index.get(sequence);
+			if (e == null) {
+				return false;
+			}
+			output.reshape(e.width, e.height);
+			if (e.compressed) {
+				byte[] pixels = inflate(e);
+				for (int y = 0; y < e.height; y++) {
+					int src = y*e.width;
+					int dst = output.startIndex + y*output.stride;
+					for (int x = 0; x < e.width; x++) {
+						output.data[dst + x] = pixels[src + x] & 0xFF;
+					}
+				}
+			}
+			else {
+				// read straight from the mapped memory; absolute reads do not change the shared buffer position
+				MappedByteBuffer buffer = segments.get(e.segment);
+				for (int y = 0; y < e.height; y++) {
+					int src = e.position + y*e.width;
+					int dst = output.startIndex + y*output.stride;
+					for (int x = 0; x < e.width; x++) {
+						output.data[dst + x] = buffer.get(src + x) & 0xFF;
+					}
+				}
+			}
+			return true;
+		}
+		finally {
+			lock.readLock().unlock();
+		}
+	}
+	
+	
+	@Override
+	public Frame get(int sequence) {
+		lock.readLock().lock();
+		try {
+			Entry e = index.get(sequence);
+			return e == null ? null : new Frame(read(e), e.x0, e.y0);
+		}
+		finally {
+			lock.readLock().unlock();
+		}
+	}
+	
+	
+	@Override
+	public void crop(int sequence, int x0, int y0, int x1, int y1) {
+		lock.writeLock().lock();
+		try {
+			Entry e = index.get(sequence);
+			if (e == null || e.cropped) {
+				return;
+			}
+			x0 = Math.max(0, x0);
+			y0 = Math.max(0, y0);
+			x1 = Math.min(e.width, x1);
+			y1 = Math.min(e.height, y1);
+			if (x1 <= x0 || y1 <= y0) {
+				return;
+			}
+			byte[] data = pack(read(e), x0, y0, x1, y1);
+			int length = compress ? data.length : (x1 - x0)*(y1 - y0);
+			Entry c = append(data, length, x1 - x0, y1 - y0, x0, y0);
+			c.cropped = true;
+			index.put(sequence, c);
+		}
+		finally {
+			lock.writeLock().unlock();
+		}
+	}
+	
+	
+	@Override
+	public void remove(int sequence) {
+		lock.writeLock().lock();
+		try {
+			index.remove(sequence);
+		}
+		finally {
+			lock.writeLock().unlock();
+		}
+	}
+	
+	
+	/**
+	 * Delete all the frames and truncate the scratch file.
+	 */
+	@Override
+	public void clear() {
+		lock.writeLock().lock();
+		try {
+			index.clear();
+			// the mappings are released by the garbage collector; they are never accessed after this point
+			segments.clear();
+			end = 0;
+			raf.setLength(0);
+		}
+		catch (IOException e) {
+			throw new RuntimeException("Cannot truncate the frame store.", e);
+		}
+		finally {
+			lock.writeLock().unlock();
+		}
+	}
+	
+	
+	@Override
+	public int size() {
+		lock.readLock().lock();
+		try {
+			return index.size();
+		}
+		finally {
+			lock.readLock().unlock();
+		}
+	}
+	
+	
+	/**
+	 * @return Estimate of the heap used by the index; the pixels are not on the heap.
+	 */
+	@Override
+	public long getHeapBytes() {
+		return (long)size()*ENTRY_BYTES;
+	}
+	
+	
+	/**
+	 * @return Size of the scratch file, including the space of deleted frames, in bytes.
+	 */
+	public long getFileBytes() {
+		lock.readLock().lock();
+		try {
+			return end;
+		}
+		finally {
+			lock.readLock().unlock();
+		}
+	}
+	
+	
+	/**
+	 * Delete all the frames and the scratch file. The store cannot be used afterwards.
+	 * @throws IOException If the file cannot be closed.
+	 */
+	@Override
+	public void close() throws IOException {
+		lock.writeLock().lock();
+		try {
+			index.clear();
+			segments.clear();
+			raf.close();
+			if (!file.delete()) {
+				file.deleteOnExit();
+			}
+		}
+		finally {
+			lock.writeLock().unlock();
+		}
+	}
+	
+	
+	/**
+	 * Copy a region of an image into a packed array, deflated if compression is enabled.
+	 * @return The packed data; when compressed, the array can be longer than the data.
+	 */
+	private byte[] pack(ImageUInt8 img, int x0, int y0, int x1, int y1) {
+		int w = x1 - x0;
+		byte[] pixels = new byte[w*(y1 - y0)];
+		for (int y = y0; y < y1; y++) {
+			System.arraycopy(img.data, img.startIndex + y*img.stride + x0, pixels, (y - y0)*w, w);
+		}
+		if (!compress) {
+			return pixels;
+		}
+		Deflater deflater = new Deflater(Deflater.BEST_SPEED);
+		try {
+			deflater.setInput(pixels);
+			deflater.finish();
+			// deflate never expands the data by more than a few bytes per 16 KiB block
+			byte[] out = new byte[pixels.length + pixels.length/1000 + 64];
+			int n = 0;
+			while (!deflater.finished()) {
+				n += deflater.deflate(out, n, out.length - n);
+				if (n == out.length && !deflater.finished()) {
+					byte[] larger = new byte[out.length*2];
+					System.arraycopy(out, 0, larger, 0, n);
+					out = larger;
+				}
+			}
+			byte[] packed = new byte[n];
+			System.arraycopy(out, 0, packed, 0, n);
+			return packed;
+		}
+		finally {
+			deflater.end();
+		}
+	}
+	
+	
+	/**
+	 * Append packed data at the end of the file, mapping a new segment if needed.
+	 * Must be called holding the write lock.
+	 */
+	private Entry append(byte[] data, int length, int width, int height, int x0, int y0) {
+		if (length > segmentSize) {
+			throw new IllegalArgumentException("Frame of " + length + " bytes larger than a segment.");
+		}
+		int segment = (int)(end/segmentSize);
+		int position = (int)(end % segmentSize);
+		if (position + length > segmentSize) {
+			// the frame does not fit at the end of the segment: start the next one
+			segment++;
+			position = 0;
+		}
+		try {
+			while (segments.size() <= segment) {
+				segments.add(raf.getChannel().map(FileChannel.MapMode.READ_WRITE, 
+						(long)segments.size()*segmentSize, segmentSize));
+			}
+		}
+		catch (IOException e) {
+			throw new RuntimeException("Cannot map the frame store.", e);
+		}
+		// bulk copy through a duplicate, so that the position of the shared buffer is not changed
+		ByteBuffer buffer = segments.get(segment).duplicate();
+		buffer.position(position);
+		buffer.put(data, 0, length);
+		end = (long)segment*segmentSize + position + length;
+		
+		Entry e = new Entry();
+		e.segment = segment;
+		e.position = position;
+		e.length = length;
+		e.width = width;
+		e.height = height;
+		e.x0 = x0;
+		e.y0 = y0;
+		e.compressed = compress;
+		return e;
+	}
+	
+	
+	/**
+	 * Copy a stored frame into a new image. Must be called holding a lock.
+	 */
+	private ImageUInt8 read(Entry e) {
+		ImageUInt8 img = new ImageUInt8(e.width, e.height);
+		if (e.compressed) {
+			System.arraycopy(inflate(e), 0, img.data, 0, e.width*e.height);
+		}
+		else {
+			copy(e, img.data);
+		}
+		return img;
+	}
+	
+	
+	/**
+	 * Copy the stored bytes of a frame. Must be called holding a lock.
+	 */
+	private void copy(Entry e, byte[] dst) {
+		ByteBuffer buffer = segments.get(e.segment).duplicate();
+		buffer.position(e.position);
+		buffer.get(dst, 0, e.length);
+	}
+	
+	
+	/**
+	 * Inflate a compressed frame. Must be called holding a lock.
+	 */
+	private byte[] inflate(Entry e) {
+		byte[] packed = new byte[e.length];
+		copy(e, packed);
+		byte[] pixels = new byte[e.width*e.height];
+		Inflater inflater = new Inflater();
+		try {
+			inflater.setInput(packed);
+			int n = 0;
+			while (n < pixels.length && !inflater.finished()) {
+				int r = inflater.inflate(pixels, n, pixels.length - n);
+				if (r == 0 && (inflater.needsInput() || inflater.needsDictionary())) {
+					break;
+				}
+				n += r;
+			}
+			if (n != pixels.length) {
+				throw new IllegalStateException("Corrupted frame in the frame store.");
+			}
+		}
+		catch (DataFormatException ex) {
+			throw new IllegalStateException("Corrupted frame in the frame store.", ex);
+		}
+		finally {
+			inflater.end();
+		}
+		return pixels;
+	}
+	
+	
+	/**
+	 * Position and shape of a stored frame.
+	 */
+	private static class Entry {
+		int segment;
+		int position;
+		int length;
+		int width, height;
+		int x0, y0;
+		boolean compressed;
+		/// {@code true} if the frame has already been cropped
+		boolean cropped;
+	}
+}
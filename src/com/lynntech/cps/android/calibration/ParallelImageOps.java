@@ -0,0 +1,333 @@
+/*
+   Copyright 2015 Lynntech Inc. 
+   Contact information:
+   - Victor Palmer, 		victor.palmer[\AT]lynntech.com
+   - Christian Bruccoleri, 	christian.bruccoleri[\AT]lynntech.com
+   
+   Research reported in this publication was supported by the National Eye Institute 
+   of the National Institutes of Health under Award Number R43EY024800.
+   The content is solely the responsibility of the authors and does not necessarily
+   represent the official views of the National Institutes of Health.
+
+   This code includes parts of BoofCV: https://github.com/lessthanoptimal/BoofCV
+   
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+ */
+
+package com.lynntech.cps.android.calibration;
+
+import boofcv.struct.image.ImageFloat32;
+import boofcv.struct.image.ImageUInt8;
+
+/**
+ * The per-frame image operations of the calibration worker, split into row bands processed in parallel by a
+ * {@link RowBandExecutor}. The output of every operation is identical to the output of the single threaded 
+ * implementation it replaces.
+ * 
+ * The operations do not allocate memory: each calling thread has its own set of task objects, which receive the
+ * arguments of a call and drop them when it returns.
+ */
+public class ParallelImageOps {
+
+	/** Executes the row bands. */
+	private final RowBandExecutor executor;
+	
+	/** The tasks of each calling thread. */
+	private final ThreadLocal<Tasks> tasks = new ThreadLocal<Tasks>() {
+		@Override
+		protected Tasks initialValue() {
+			return new Tasks(executor.getBandCount(Integer.MAX_VALUE));
+		}
+	};
+	
+	
+	/**
+	 * Create the operations on top of an executor.
+	 * @param executor	The executor, which can be shared with other users.
+	 */
+	public ParallelImageOps(RowBandExecutor executor) {
+		this.executor = executor;
+	}
+	
+	
+	/** @return The executor used to process the row bands. */
+	public RowBandExecutor getExecutor() {
+		return executor;
+	}
+	
+	
+	/**
+	 * Parallel version of {@link ConvertNV21Fused#nv21ToGray(byte[], int, int, int, int, int, boolean, ImageUInt8)}.
+	 */
+	public ImageUInt8 nv21ToGray(byte[] nv21, int width, int height, int x0, int y0, int scale, boolean mirror, 
+			ImageUInt8 output) {
+		Nv21Task task = tasks.get().nv21;
+		task.set(nv21, width, height, x0, y0, scale, mirror);
+		task.outputU8 = output;
+		try {
+			executor.run(output.height, task);
+		}
+		finally {
+			task.clear();
+		}
+		return output;
+	}
+	
+	
+	/**
+	 * Parallel version of {@link ConvertNV21Fused#nv21ToGray(byte[], int, int, int, int, int, boolean, ImageFloat32)}.
+	 */
+	public ImageFloat32 nv21ToGray(byte[] nv21, int width, int height, int x0, int y0, int scale, boolean mirror, 
+			ImageFloat32 output) {
+		Nv21Task task = tasks.get().nv21;
+		task.set(nv21, width, height, x0, y0, scale, mirror);
+		task.outputF32 = output;
+		try {
+			executor.run(output.height, task);
+		}
+		finally {
+			task.clear();
+		}
+		return output;
+	}
+	
+	
+	/**
+	 * Convert an 8-bit image into a floating point image; same result as {@code ConvertImage.convert}.
+	 * @param input		Input image.
+	 * @param output	Output image, of the same size.
+	 * @return The output image.
+	 */
+	public ImageFloat32 convert(ImageUInt8 input, ImageFloat32 output) {
+		if (input.width != output.width || input.height != output.height) {
+			throw new IllegalArgumentException("The images must have the same size.");
+		}
+		ConvertTask task = tasks.get().convert;
+		task.input = input;
+		task.output = output;
+		try {
+			executor.run(input.height, task);
+		}
+		finally {
+			task.input = null;
+			task.output = null;
+		}
+		return output;
+	}
+	
+	
+	/**
+	 * Parallel version of {@link UndistortionTable#apply(ImageUInt8, ImageFloat32)}.
+	 * @param table		The remap table.
+	 * @param input		Distorted image.
+	 * @param output	Undistorted output image.
+	 */
+	public void undistort(UndistortionTable table, ImageUInt8 input, ImageFloat32 output) {
+		UndistortTask task = tasks.get().undistort;
+		task.table = table;
+		task.input = input;
+		task.output = output;
+		try {
+			executor.run(table.getHeight(), task);
+		}
+		finally {
+			task.table = null;
+			task.input = null;
+			task.output = null;
+		}
+	}
+	
+	
+	/**
+	 * Largest absolute value of the pixels of an image; same result as {@code ImageStatistics.maxAbs}.
+	 * @param input		The image.
+	 * @return The largest absolute value.
+	 */
+	public float maxAbs(ImageFloat32 input) {
+		MaxAbsTask task = tasks.get().maxAbs;
+		int bands = executor.getBandCount(input.height);
+		task.input = input;
+		try {
+			executor.run(input.height, task);
+		}
+		finally {
+			task.input = null;
+		}
+		float max = 0;
+		for (int i = 0; i < bands; i++) {
+			max = Math.max(max, task.bandMax[i]);
+		}
+		return max;
+	}
+	
+	
+	/**
+	 * Render the gray magnitude of an image into ARGB_8888 pixel data, as {@code VisualizeImageData.grayMagnitude}
+	 * does before copying the data into the {@code Bitmap}.
+	 * 
+	 * @param input			The image.
+	 * @param maxAbsValue	Largest absolute value of a pixel, or a negative value to compute it.
+	 * @param storage		Output pixel data, at least 4 bytes per pixel.
+	 */
+	public void grayMagnitude(ImageFloat32 input, float maxAbsValue, byte[] storage) {
+		if (storage.length < 4*input.width*input.height) {
+			throw new IllegalArgumentException("The storage is too small for the image.");
+		}
+		GrayMagnitudeTask task = tasks.get().grayMagnitude;
+		task.max = maxAbsValue < 0 ? maxAbs(input) : maxAbsValue;
+		task.input = input;
+		task.storage = storage;
+		try {
+			executor.run(input.height, task);
+		}
+		finally {
+			task.input = null;
+			task.storage = null;
+		}
+	}
+	
+	
+	/**
+	 * The task objects of a calling thread, one for each operation.
+	 */
+	private static final class Tasks {
+		final Nv21Task nv21 = new Nv21Task();
+		final ConvertTask convert = new ConvertTask();
+		final UndistortTask undistort = new UndistortTask();
+		final MaxAbsTask maxAbs;
+		final GrayMagnitudeTask grayMagnitude = new GrayMagnitudeTask();
+		
+		Tasks(int maxBands) {
+			maxAbs = new MaxAbsTask(maxBands);
+		}
+	}
+	
+	
+	private static final class Nv21Task implements RowBandExecutor.Task {
+		byte[] nv21;
+		int width, height, x0, y0, scale;
+		boolean mirror;
+		// one of the two is set
+		ImageUInt8 outputU8;
+		ImageFloat32 outputF32;
+		
+		void set(byte[] nv21, int width, int height, int x0, int y0, int scale, boolean mirror) {
+			this.nv21 = nv21;
+			this.width = width;
+			this.height = height;
+			this.x0 = x0;
+			this.y0 = y0;
+			this.scale = scale;
+			this.mirror = mirror;
+		}
+		
+		void clear() {
+			nv21 = null;
+			outputU8 = null;
+			outputF32 = null;
+		}
+		
+		@Override
+		public void process(int band, int row0, int row1) {
+			if (outputU8 != null) {
+				ConvertNV21Fused.nv21ToGray(nv21, width, height, x0, y0, scale, mirror, outputU8, row0, row1);
+			}
+			else {
+				ConvertNV21Fused.nv21ToGray(nv21, width, height, x0, y0, scale, mirror, outputF32, row0, row1);
+			}
+		}
+	}
+	
+	
+	private static final class ConvertTask implements RowBandExecutor.Task {
+		ImageUInt8 input;
+		ImageFloat32 output;
+		
+		@Override
+		public void process(int band, int row0, int row1) {
+			final byte[] in = input.data;
+			final float[] out = output.data;
+			for (int y = row0; y < row1; y++) {
+				int indexSrc = input.startIndex + y*input.stride;
+				int indexDst = output.startIndex + y*output.stride;
+				int end = indexSrc + input.width;
+				while (indexSrc < end) {
+					out[indexDst++] = in[indexSrc++] & 0xFF;
+				}
+			}
+		}
+	}
+	
+	
+	private static final class UndistortTask implements RowBandExecutor.Task {
+		UndistortionTable table;
+		ImageUInt8 input;
+		ImageFloat32 output;
+		
+		@Override
+		public void process(int band, int row0, int row1) {
+			table.apply(input, output, row0, row1);
+		}
+	}
+	
+	
+	private static final class MaxAbsTask implements RowBandExecutor.Task {
+		ImageFloat32 input;
+		// largest value of each band
+		final float[] bandMax;
+		
+		MaxAbsTask(int maxBands) {
+			bandMax = new float[maxBands];
+		}
+		
+		@Override
+		public void process(int band, int row0, int row1) {
+			final float[] data = input.data;
+			float max = 0;
+			for (int y = row0; y < row1; y++) {
+				int index = input.startIndex + y*input.stride;
+				int end = index + input.width;
+				for (; index < end; index++) {
+					float v = Math.abs(data[index]);
+					if (v > max) {
+						max = v;
+					}
+				}
+			}
+			bandMax[band] = max;
+		}
+	}
+	
+	
+	private static final class GrayMagnitudeTask implements RowBandExecutor.Task {
+		ImageFloat32 input;
+		float max;
+		byte[] storage;
+		
+		@Override
+		public void process(int band, int row0, int row1) {
+			final float[] data = input.data;
+			for (int y = row0; y < row1; y++) {
+				int indexSrc = input.startIndex + y*input.stride;
+				int indexDst = 4*y*input.width;
+				for (int x = 0; x < input.width; x++) {
+					byte gray = (byte)(255f*Math.abs(data[indexSrc++])/max);
+					storage[indexDst++] = gray;
+					storage[indexDst++] = gray;
+					storage[indexDst++] = gray;
+					storage[indexDst++] = (byte) 0xFF;
+				}
+			}
+		}
+	}
+}
@@ -0,0 +1,215 @@
+/*
+   Copyright 2015 Lynntech Inc. 
+   Contact information:
+   - Victor Palmer, 		victor.palmer[\AT]lynntech.com
+   - Christian Bruccoleri, 	christian.bruccoleri[\AT]lynntech.com
+   
+   Research reported in this publication was supported by the National Eye Institute 
+   of the National Institutes of Health under Award Number R43EY024800.
+   The content is solely the responsibility of the authors and does not necessarily
+   represent the official views of the National Institutes of Health.
+
+   This code includes parts of BoofCV: https://github.com/lessthanoptimal/BoofCV
+   
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+ */
+
+package com.lynntech.cps.android.calibration;
+
+import java.util.Arrays;
+import java.util.Random;
+
+import boofcv.alg.distort.ImageDistort;
+import boofcv.alg.distort.LensDistortionOps;
+import boofcv.alg.misc.GImageMiscOps;
+import boofcv.alg.misc.ImageStatistics;
+import boofcv.android.ConvertNV21;
+import boofcv.core.image.ConvertImage;
+import boofcv.core.image.border.BorderType;
+import boofcv.struct.calib.IntrinsicParameters;
+import boofcv.struct.image.ImageFloat32;
+import boofcv.struct.image.ImageType;
+import boofcv.struct.image.ImageUInt8;
+
+/**
+ * Desktop benchmark of {@link ParallelImageOps}: runs the per-frame operations of the calibration worker on a 
+ * synthetic NV21 frame with an increasing number of threads, checks that the output is identical to the single
+ * threaded output and prints the speed-up.
+ * 
+ * The single threaded output is first checked against the BoofCV chain the operations replace: 
+ * {@code ConvertNV21.nv21ToGray}, {@code GImageMiscOps.flipHorizontal}, {@code ConvertImage.convert}, 
+ * {@code ImageDistort} from {@code LensDistortionOps.removeDistortion} and {@code VisualizeImageData.grayMagnitude}.
+ * The plain display must be identical; the undistorted image may differ by {@link #UNDISTORT_TOLERANCE}, the 
+ * precision of the remap table. {@code VisualizeImageData.grayMagnitude} needs an Android {@code Bitmap}, so its 
+ * per-pixel formula is applied to {@code ImageStatistics.maxAbs} here. The exit status is 1 if any check fails.
+ * 
+ * Usage: {@code ParallelImageOpsBenchmark [width height [iterations [maxThreads]]]}; by default the number of
+ * threads goes up to the number of cores.
+ */
+public class ParallelImageOpsBenchmark {
+
+	/** Largest difference in gray levels between the remap table and {@code ImageDistort}. */
+	private static final float UNDISTORT_TOLERANCE = 1.0f;
+	
+	
+	public static void main(String[] args) {
+		int width = args.length >= 2 ? Integer.parseInt(args[0]) : 1280;
+		int height = args.length >= 2 ? Integer.parseInt(args[1]) : 960;
+		int iterations = args.length >= 3 ? Integer.parseInt(args[2]) : 100;
+		int cores = Runtime.getRuntime().availableProcessors();
+		int maxThreads = args.length >= 4 ? Integer.parseInt(args[3]) : cores;
+		
+		byte[] nv21 = new byte[PreviewBufferPool.nv21BufferSize(width, height)];
+		new Random(42).nextBytes(nv21);
+		IntrinsicParameters intr = new IntrinsicParameters(0.8*width, 0.8*width, 0, width/2, height/2, 
+				width, height, false, new double[] {-0.2, 0.05});
+		UndistortionTable table = UndistortionTable.build(intr, width, height);
+		
+		ImageUInt8 gray = new ImageUInt8(width, height);
+		ImageFloat32 grayf = new ImageFloat32(width, height);
+		ImageFloat32 undist = new ImageFloat32(width, height);
+		byte[] plain = new byte[4*width*height];
+		byte[] storage = new byte[4*width*height];
+		byte[] reference = null;
+		boolean failed = false;
+		
+		System.out.printf("%dx%d, %d iterations, %d cores%n", width, height, iterations, cores);
+		// warm up the JIT on both the single threaded and the parallel paths before any measurement, so that the
+		// single threaded baseline is not measured colder than the thread counts after it
+		for (int threads : new int[] { 1, maxThreads }) {
+			RowBandExecutor executor = new RowBandExecutor(threads, RowBandExecutor.DEFAULT_MIN_BAND_ROWS);
+			ParallelImageOps ops = new ParallelImageOps(executor);
+			for (int i = 0; i < iterations; i++) {
+				frame(ops, nv21, table, gray, grayf, undist, plain, storage);
+			}
+			executor.shutdown();
+		}
+		double singleMs = 0;
+		for (int threads = 1; threads <= maxThreads; threads++) {
+			RowBandExecutor executor = new RowBandExecutor(threads, RowBandExecutor.DEFAULT_MIN_BAND_ROWS);
+			ParallelImageOps ops = new ParallelImageOps(executor);
+			// a few frames to start the helper threads, then measure
+			for (int i = 0; i < iterations/10 + 1; i++) {
+				frame(ops, nv21, table, gray, grayf, undist, plain, storage);
+			}
+			long t0 = System.nanoTime();
+			for (int i = 0; i < iterations; i++) {
+				frame(ops, nv21, table, gray, grayf, undist, plain, storage);
+			}
+			double ms = (System.nanoTime() - t0)/1e6/iterations;
+			executor.shutdown();
+			
+			if (reference == null) {
+				singleMs = ms;
+				reference = storage.clone();
+				failed |= !checkBoofCV(nv21, intr, plain, undist, storage);
+			}
+			boolean same = Arrays.equals(reference, storage);
+			failed |= !same;
+			System.out.printf("threads %d: %.2f ms/frame, speed-up %.2f, output %s%n", 
+					threads, ms, singleMs/ms, same ? "identical" : "DIFFERENT");
+		}
+		if (failed) {
+			System.exit(1);
+		}
+	}
+	
+	
+	/**
+	 * The work done for each frame: conversion, plain display and undistorted display.
+	 */
+	private static void frame(ParallelImageOps ops, byte[] nv21, UndistortionTable table, 
+			ImageUInt8 gray, ImageFloat32 grayf, ImageFloat32 undist, byte[] plain, byte[] storage) {
+		ops.nv21ToGray(nv21, gray.width, gray.height, 0, 0, 1, true, gray);
+		ops.convert(gray, grayf);
+		ops.grayMagnitude(grayf, -1, plain);
+		ops.undistort(table, gray, undist);
+		ops.grayMagnitude(undist, -1, storage);
+	}
+	
+	
+	/**
+	 * Verify the single threaded output against the BoofCV chain the parallel operations replace.
+	 * @param plain		Display of the converted frame.
+	 * @param undist	Undistorted frame.
+	 * @param storage	Display of the undistorted frame.
+	 * @return {@code true} if the output matches.
+	 */
+	private static boolean checkBoofCV(byte[] nv21, IntrinsicParameters intr, byte[] plain, ImageFloat32 undist, 
+			byte[] storage) {
+		int width = undist.width;
+		int height = undist.height;
+		ImageUInt8 gray = ConvertNV21.nv21ToGray(nv21, width, height, (ImageUInt8) null);
+		GImageMiscOps.flipHorizontal(gray);
+		ImageFloat32 grayf = new ImageFloat32(width, height);
+		ConvertImage.convert(gray, grayf);
+		byte[] expected = new byte[4*width*height];
+		grayMagnitude(grayf, expected);
+		int index = firstDifference(expected, plain);
+		if (index >= 0) {
+			System.out.printf("plain display differs from BoofCV at pixel %d%n", index/4);
+			return false;
+		}
+		
+		ImageDistort<ImageFloat32, ImageFloat32> distort = LensDistortionOps.removeDistortion(true, BorderType.VALUE, 
+				intr, null, ImageType.single(ImageFloat32.class));
+		ImageFloat32 expectedUndist = new ImageFloat32(width, height);
+		distort.apply(grayf, expectedUndist);
+		float maxError = 0;
+		for (int i = 0; i < width*height; i++) {
+			maxError = Math.max(maxError, Math.abs(expectedUndist.data[i] - undist.data[i]));
+		}
+		System.out.printf("undistortion: largest difference from ImageDistort %.3f gray levels%n", maxError);
+		if (maxError > UNDISTORT_TOLERANCE) {
+			return false;
+		}
+		
+		grayMagnitude(undist, expected);
+		index = firstDifference(expected, storage);
+		if (index >= 0) {
+			System.out.printf("undistorted display differs from BoofCV at pixel %d%n", index/4);
+			return false;
+		}
+		return true;
+	}
+	
+	
+	/**
+	 * {@code VisualizeImageData.grayMagnitude} without the final copy into the {@code Bitmap}.
+	 */
+	private static void grayMagnitude(ImageFloat32 input, byte[] storage) {
+		float max = ImageStatistics.maxAbs(input);
+		int indexDst = 0;
+		for (int y = 0; y < input.height; y++) {
+			int indexSrc = input.startIndex + y*input.stride;
+			for (int x = 0; x < input.width; x++) {
+				byte gray = (byte)(255f*Math.abs(input.data[indexSrc++])/max);
+				storage[indexDst++] = gray;
+				storage[indexDst++] = gray;
+				storage[indexDst++] = gray;
+				storage[indexDst++] = (byte) 0xFF;
+			}
+		}
+	}
+	
+	
+	/** @return Index of the first byte that differs, or -1. */
+	private static int firstDifference(byte[] expected, byte[] actual) {
+		for (int i = 0; i < expected.length; i++) {
+			if (expected[i] != actual[i]) {
+				return i;
+			}
+		}
+		return -1;
+	}
+}
@@ -0,0 +1,307 @@
+/*
+   Copyright 2015 Lynntech Inc. 
+   Contact information:
+   - Victor Palmer, 		victor.palmer[\AT]lynntech.com
+   - Christian Bruccoleri, 	christian.bruccoleri[\AT]lynntech.com
+   
+   Research reported in this publication was supported by the National Eye Institute 
+   of the National Institutes of Health under Award Number R43EY024800.
+   The content is solely the responsibility of the authors and does not necessarily
+   represent the official views of the National Institutes of Health.
+
+   This code includes parts of BoofCV: https://github.com/lessthanoptimal/BoofCV
+   
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+ */
+
+package com.lynntech.cps.android.calibration;
+
+import georegression.geometry.RotationMatrixGenerator;
+import georegression.struct.point.Point2D_F64;
+import georegression.struct.se.Se3_F64;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.ddogleg.optimization.FactoryOptimization;
+import org.ddogleg.optimization.UnconstrainedLeastSquares;
+import org.ejml.data.DenseMatrix64F;
+
+import boofcv.alg.geo.calibration.CalibrationPlanarGridZhang99;
+import boofcv.alg.geo.calibration.PlanarCalibrationTarget;
+import boofcv.alg.geo.calibration.RadialDistortionEstimateLinear;
+import boofcv.alg.geo.calibration.Zhang99CalibrationMatrixFromHomographies;
+import boofcv.alg.geo.calibration.Zhang99ComputeTargetHomography;
+import boofcv.alg.geo.calibration.Zhang99DecomposeHomography;
+import boofcv.alg.geo.calibration.Zhang99OptimizationFunction;
+import boofcv.alg.geo.calibration.Zhang99Parameters;
+
+/**
+ * Zhang99 calibration from the calibration points observed in a set of views, with the per-view steps executed
+ * in parallel.
+ * 
+ * This is the same algorithm as {@link CalibrationPlanarGridZhang99}: a homography is estimated for each view, the
+ * calibration matrix is computed from all the homographies, each homography is decomposed into the pose of the 
+ * target, the radial distortion is estimated linearly and finally all the parameters are refined with non-linear 
+ * least squares. The homographies and the poses depend on a single view, therefore they are computed in parallel
+ * by a {@link RowBandExecutor} (one "row" per view) and stored by view index; the global steps consume them in
+ * the order of the views. The result is identical to the result of {@link CalibrationPlanarGridZhang99}.
+ * 
+ * For incremental calibration, {@link #warmStart(List, Zhang99Parameters, int[])} builds the initial estimate 
+ * from a previous solution, and {@link #refine(List, Zhang99Parameters, int)} bounds the number of iterations 
+ * of the non-linear refinement.
+ */
+public class PlanarCalibrationSolver {
+
+	/** Maximum number of iterations of the non-linear refinement, as in {@link CalibrationPlanarGridZhang99}. */
+	public static final int DEFAULT_MAX_ITERATIONS = 500;
+
+	/** Description of the calibration target. */
+	private final PlanarCalibrationTarget target;
+	
+	/** If true the skew of the calibration matrix is assumed to be zero. */
+	private final boolean assumeZeroSkew;
+	
+	/** Number of radial distortion parameters. */
+	private final int numRadialParam;
+	
+	/** Executes the per-view steps. */
+	private final RowBandExecutor executor;
+	
+	/** Result of the last successful call to {@link #process(List)}. */
+	private Zhang99Parameters optimized;
+	
+	/** Notified after each iteration of the refinement, may be null. */
+	private IterationListener iterationListener;
+	
+	
+	/**
+	 * Receives a notification after each iteration of the non-linear refinement.
+	 */
+	public interface IterationListener {
+		/**
+		 * @param iteration		Number of iterations done.
+		 * @param maxIterations	Maximum number of iterations.
+		 * @param residual		Current sum of the squared residuals.
+		 */
+		void onIteration(int iteration, int maxIterations, double residual);
+	}
+	
+	
+	/**
+	 * Create a solver.
+	 * @param target			Description of the calibration target.
+	 * @param assumeZeroSkew	If true the skew of the calibration matrix is assumed to be zero.
+	 * @param numRadialParam	Number of radial distortion parameters.
+	 * @param executor			Executor for the per-view steps; a parallelism of 1 gives the sequential algorithm.
+	 */
+	public PlanarCalibrationSolver(PlanarCalibrationTarget target, boolean assumeZeroSkew, int numRadialParam,
+			RowBandExecutor executor) {
+		this.target = target;
+		this.assumeZeroSkew = assumeZeroSkew;
+		this.numRadialParam = numRadialParam;
+		this.executor = executor;
+	}
+	
+	
+	/**
+	 * Compute the calibration from the points observed in each view.
+	 * @param observations	Calibration points observed in each view, in the order of the target description.
+	 * @return {@code true} if successful; the result is then available from {@link #getOptimized()}.
+	 */
+	public boolean process(List<List<Point2D_F64>> observations) {
+		Zhang99Parameters initial = initialParam(observations);
+		if (initial == null) {
+			return false;
+		}
+		refine(observations, initial, DEFAULT_MAX_ITERATIONS);
+		return true;
+	}
+	
+	
+	/**
+	 * Non-linear refinement of all the parameters, with the same optimizer and settings used by 
+	 * {@link CalibrationPlanarGridZhang99}, but a configurable number of iterations. The result is available 
+	 * from {@link #getOptimized()} even if the optimization did not converge.
+	 * 
+	 * @param observations	Calibration points observed in each view.
+	 * @param initial		Initial estimate, with one view for each observation.
+	 * @param maxIterations	Maximum number of iterations.
+	 * @return {@code true} if the optimization converged within {@code maxIterations}.
+	 */
+	public boolean refine(List<List<Point2D_F64>> observations, Zhang99Parameters initial, int maxIterations) {
+		if (initial.views.length != observations.size()) {
+			throw new IllegalArgumentException("The initial estimate must have one view for each observation.");
+		}
+		UnconstrainedLeastSquares optimizer = FactoryOptimization.leastSquaresLM(1e-3, true);
+		
+		double model[] = new double[initial.size()];
+		initial.convertToParam(model);
+		
+		Zhang99OptimizationFunction func = new Zhang99OptimizationFunction(
+				initial.createNew(), target.points, observations);
+		optimizer.setFunction(func, null);
+		optimizer.initialize(model, 1e-10, 1e-25*observations.size());
+		
+		boolean converged = false;
+		for (int i = 0; i < maxIterations && !converged; i++) {
+			converged = optimizer.iterate();
+			if (iterationListener != null) {
+				iterationListener.onIteration(i + 1, maxIterations, optimizer.getFunctionValue());
+			}
+		}
+		
+		Zhang99Parameters found = initial.createNew();
+		found.setFromParam(optimizer.getParameters());
+		optimized = found;
+		return converged;
+	}
+	
+	
+	/**
+	 * Initial estimate built from a previous solution, when views have been added since: the calibration matrix,
+	 * the distortion and the pose of the known views are taken from the previous solution, the pose of each new 
+	 * view is computed from its homography with the previous calibration matrix.
+	 * 
+	 * @param observations	Calibration points observed in each view.
+	 * @param previous		Previous solution.
+	 * @param previousIndex	For each view, the index of the same view in {@code previous}, or -1 for a new view.
+	 * @return The initial estimate, or {@code null} if a homography could not be computed.
+	 */
+	public Zhang99Parameters warmStart(final List<List<Point2D_F64>> observations, Zhang99Parameters previous,
+			final int[] previousIndex) {
+		final int numViews = observations.size();
+		Zhang99Parameters initial = new Zhang99Parameters(previous.assumeZeroSkew, previous.distortion.length, numViews);
+		initial.a = previous.a;
+		initial.b = previous.b;
+		initial.c = previous.c;
+		initial.x0 = previous.x0;
+		initial.y0 = previous.y0;
+		System.arraycopy(previous.distortion, 0, initial.distortion, 0, previous.distortion.length);
+		
+		final DenseMatrix64F K = new DenseMatrix64F(3, 3, true, 
+				previous.a, previous.c, previous.x0, 
+				0, previous.b, previous.y0, 
+				0, 0, 1);
+		final Zhang99Parameters.View[] views = initial.views;
+		for (int i = 0; i < numViews; i++) {
+			if (previousIndex[i] >= 0) {
+				Zhang99Parameters.View v = previous.views[previousIndex[i]];
+				views[i].rotation.theta = v.rotation.theta;
+				views[i].rotation.unitAxisRotation.set(v.rotation.unitAxisRotation);
+				views[i].T.set(v.T);
+			}
+		}
+		final boolean[] failed = new boolean[1];
+		executor.run(numViews, new RowBandExecutor.Task() {
+			@Override
+			public void process(int band, int i0, int i1) {
+				Zhang99ComputeTargetHomography computeHomography = null;
+				Zhang99DecomposeHomography decomposeH = null;
+				for (int i = i0; i < i1; i++) {
+					if (previousIndex[i] >= 0) {
+						continue;
+					}
+					if (computeHomography == null) {
+						computeHomography = new Zhang99ComputeTargetHomography(target.points);
+						decomposeH = new Zhang99DecomposeHomography();
+						decomposeH.setCalibrationMatrix(K);
+					}
+					if (!computeHomography.computeHomography(observations.get(i))) {
+						failed[0] = true;
+						return;
+					}
+					Se3_F64 motion = decomposeH.decompose(computeHomography.getHomography());
+					views[i].T.set(motion.getT());
+					RotationMatrixGenerator.matrixToRodrigues(motion.getR(), views[i].rotation);
+				}
+			}
+		});
+		return failed[0] ? null : initial;
+	}
+	
+	
+	/**
+	 * Initial estimate of the parameters, computed with linear algebra.
+	 * @param observations	Calibration points observed in each view.
+	 * @return The initial estimate, or {@code null} if a homography could not be computed.
+	 */
+	public Zhang99Parameters initialParam(final List<List<Point2D_F64>> observations) {
+		final int numViews = observations.size();
+		final DenseMatrix64F[] homographies = new DenseMatrix64F[numViews];
+		
+		executor.run(numViews, new RowBandExecutor.Task() {
+			@Override
+			public void process(int band, int i0, int i1) {
+				Zhang99ComputeTargetHomography computeHomography = new Zhang99ComputeTargetHomography(target.points);
+				for (int i = i0; i < i1; i++) {
+					if (computeHomography.computeHomography(observations.get(i))) {
+						homographies[i] = computeHomography.getHomography();
+					}
+				}
+			}
+		});
+		for (DenseMatrix64F H : homographies) {
+			if (H == null) {
+				return null;
+			}
+		}
+		List<DenseMatrix64F> listH = Arrays.asList(homographies);
+		
+		Zhang99CalibrationMatrixFromHomographies computeK = new Zhang99CalibrationMatrixFromHomographies(assumeZeroSkew);
+		computeK.process(listH);
+		final DenseMatrix64F K = computeK.getCalibrationMatrix();
+		
+		final Se3_F64[] motions = new Se3_F64[numViews];
+		executor.run(numViews, new RowBandExecutor.Task() {
+			@Override
+			public void process(int band, int i0, int i1) {
+				Zhang99DecomposeHomography decomposeH = new Zhang99DecomposeHomography();
+				decomposeH.setCalibrationMatrix(K);
+				for (int i = i0; i < i1; i++) {
+					motions[i] = decomposeH.decompose(homographies[i]);
+				}
+			}
+		});
+		
+		RadialDistortionEstimateLinear computeRadial = new RadialDistortionEstimateLinear(target, numRadialParam);
+		computeRadial.process(K, listH, observations);
+		double distort[] = computeRadial.getParameters();
+		
+		return CalibrationPlanarGridZhang99.convertIntoZhangParam(
+				new ArrayList<Se3_F64>(Arrays.asList(motions)), K, assumeZeroSkew, distort);
+	}
+	
+	
+	/**
+	 * Set an object to be notified after each iteration of the refinement; it may throw an unchecked exception
+	 * to stop the solver.
+	 * @param listener	The listener, or null.
+	 */
+	public void setIterationListener(IterationListener listener) {
+		this.iterationListener = listener;
+	}
+	
+	
+	/** @return The parameters found by the last successful call to {@link #process(List)}, or {@code null}. */
+	public Zhang99Parameters getOptimized() {
+		return optimized;
+	}
+	
+	
+	/** @return Description of the calibration target. */
+	public PlanarCalibrationTarget getTarget() {
+		return target;
+	}
+}
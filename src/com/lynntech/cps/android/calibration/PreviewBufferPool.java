@@ -0,0 +1,184 @@
+/*
+   Copyright 2015 Lynntech Inc. 
+   Contact information:
+   - Victor Palmer, 		victor.palmer[\AT]lynntech.com
+   - Christian Bruccoleri, 	christian.bruccoleri[\AT]lynntech.com
+   
+   Research reported in this publication was supported by the National Eye Institute 
+   of the National Institutes of Health under Award Number R43EY024800.
+   The content is solely the responsibility of the authors and does not necessarily
+   represent the official views of the National Institutes of Health.
+
+   This code includes parts of BoofCV: https://github.com/lessthanoptimal/BoofCV
+   
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+ */
+
+package com.lynntech.cps.android.calibration;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A bounded pool of pre-sized byte buffers used to receive camera preview frames.
+ * 
+ * All the buffers are allocated when the pool is created; afterwards {@link #acquire()} and {@link #release(byte[])}
+ * only move references in and out of a fixed-capacity queue, so the steady state does not allocate any memory.
+ * The pool does not depend on Android: the camera (see {@link CameraPreview#setBufferPool(PreviewBufferPool)}) 
+ * is only one of the possible producers.
+ * 
+ * A buffer is either <i>available</i> (inside the pool) or <i>acquired</i> (owned by whoever called 
+ * {@link #acquire()}, e.g. queued in the camera or being processed). When no buffer is available, 
+ * {@link #acquire()} returns {@code null} and the event is counted, see {@link #getExhaustedCount()}.
+ */
+public class PreviewBufferPool {
+
+	/** Every buffer owned by the pool, used to validate released buffers. */
+	private final byte[][] buffers;
+	
+	/** Buffers currently available. */
+	private final ArrayBlockingQueue<byte[]> available;
+	
+	/** Size of each buffer in bytes. */
+	private final int bufferSize;
+	
+	/** Number of successful calls to {@link #acquire()}. */
+	private final AtomicLong acquiredCount = new AtomicLong();
+	
+	/** Number of calls to {@link #acquire()} that found the pool empty. */
+	private final AtomicLong exhaustedCount = new AtomicLong();
+	
+
+	/**
+	 * Create a pool and allocate all its buffers.
+	 * @param capacity		Number of buffers, at least 1.
+	 * @param bufferSize	Size of each buffer in bytes, see {@link #nv21BufferSize(int, int)}.
+	 */
+	public PreviewBufferPool(int capacity, int bufferSize) {
+		if (capacity < 1) {
+			throw new IllegalArgumentException("The pool must contain at least one buffer.");
+		}
+		if (bufferSize < 1) {
+			throw new IllegalArgumentException("Buffer size must be positive.");
+		}
+		this.bufferSize = bufferSize;
+		buffers = new byte[capacity][];
+		available = new ArrayBlockingQueue<byte[]>(capacity);
+		for (int i = 0; i < capacity; i++) {
+			buffers[i] = new byte[bufferSize];
+			available.add(buffers[i]);
+		}
+	}
+	
+	
+	/**
+	 * Number of bytes needed to store an NV21 image: a full resolution Y plane followed by 
+	 * interleaved V and U planes subsampled by two in both directions.
+	 * @param width		Image width in pixels.
+	 * @param height	Image height in pixels.
+	 * @return The size of the buffer in bytes.
+	 */
+	public static int nv21BufferSize(int width, int height) {
+		return width*height + 2*((width + 1)/2)*((height + 1)/2);
+	}
+	
+	
+	/**
+	 * Take a buffer out of the pool. Never blocks.
+	 * @return An available buffer, or {@code null} if all the buffers are in use.
+	 */
+	public byte[] acquire() {
+		byte[] buffer = available.poll();
+		if (buffer == null) {
+			exhaustedCount.incrementAndGet();
+		}
+		else {
+			acquiredCount.incrementAndGet();
+		}
+		return buffer;
+	}
+	
+	
+	/**
+	 * Give back a buffer previously obtained with {@link #acquire()}.
+	 * @param buffer	The buffer to return to the pool.
+	 * @return {@code true} if the buffer was returned, {@code false} if it was already available.
+	 * @throws IllegalArgumentException If the buffer does not belong to this pool.
+	 */
+	public boolean release(byte[] buffer) {
+		if (!owns(buffer)) {
+			throw new IllegalArgumentException("The buffer does not belong to this pool.");
+		}
+		if (available.contains(buffer)) {
+			return false;
+		}
+		return available.offer(buffer);
+	}
+	
+	
+	/**
+	 * Return all the buffers to the pool, e.g. after the camera that held them was released.
+	 * Buffers still referenced elsewhere must not be used after this call.
+	 */
+	public void releaseAll() {
+		available.clear();
+		for (byte[] buffer : buffers) {
+			available.offer(buffer);
+		}
+	}
+	
+	
+	/**
+	 * Check if a buffer was allocated by this pool.
+	 * @param buffer	The buffer to check.
+	 * @return {@code true} if the buffer belongs to the pool.
+	 */
+	public boolean owns(byte[] buffer) {
+		for (byte[] b : buffers) {
+			if (b == buffer) {
+				return true;
+			}
+		}
+		return false;
+	}
+	
+	
+	/** @return Total number of buffers managed by the pool. */
+	public int getCapacity() {
+		return buffers.length;
+	}
+	
+	
+	/** @return Number of buffers currently in the pool. */
+	public int getAvailableCount() {
+		return available.size();
+	}
+	
+	
+	/** @return Size of each buffer in bytes. */
+	public int getBufferSize() {
+		return bufferSize;
+	}
+	
+	
+	/** @return Number of buffers handed out since the pool was created. */
+	public long getAcquiredCount() {
+		return acquiredCount.get();
+	}
+	
+	
+	/** @return Number of times a buffer was requested while the pool was empty. */
+	public long getExhaustedCount() {
+		return exhaustedCount.get();
+	}
+}
@@ -0,0 +1,241 @@
+/*
+   Copyright 2015 Lynntech Inc. 
+   Contact information:
+   - Victor Palmer, 		victor.palmer[\AT]lynntech.com
+   - Christian Bruccoleri, 	christian.bruccoleri[\AT]lynntech.com
+   
+   Research reported in this publication was supported by the National Eye Institute 
+   of the National Institutes of Health under Award Number R43EY024800.
+   The content is solely the responsibility of the authors and does not necessarily
+   represent the official views of the National Institutes of Health.
+
+   This code includes parts of BoofCV: https://github.com/lessthanoptimal/BoofCV
+   
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+ */
+
+package com.lynntech.cps.android.calibration;
+
+import java.lang.reflect.Method;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Desktop check of {@link PreviewBufferPool} under the same producer/consumer pattern as the camera preview: a
+ * producer thread, standing for the camera, fills a buffer taken from the pool for each frame and hands it over to
+ * a consumer thread, standing for {@link CalibrationActivity}, which reads and releases it. As the camera, the
+ * producer never waits for a buffer: when the pool is exhausted the frame is dropped and counted.
+ * 
+ * After a warm-up, the check fails (exit status 1) if a buffer that does not belong to the pool shows up, if a
+ * buffer is handed out again before it is released, if a release is refused, if the pool is found exhausted, or if
+ * the producer or the consumer allocates memory. The allocation is measured per thread with
+ * {@code com.sun.management.ThreadMXBean}; it is skipped on a JVM without it. The hand-over is a single lock-free
+ * slot, so three buffers are enough: with fewer the pool runs out, which is reported.
+ * 
+ * Usage: {@code PreviewBufferPoolCheck [width height [frames [capacity]]]}
+ */
+public class PreviewBufferPoolCheck {
+
+	/** Frames exchanged before the counters are checked, enough for the JIT to settle. */
+	private static final int WARMUP_FRAMES = 50000;
+	
+	/** ThreadMXBean of the JVM, or {@code null} if it cannot measure the allocation per thread. */
+	private static final Object threadBean;
+	
+	/** ThreadMXBean.getThreadAllocatedBytes(long), looked up by reflection as the API is not part of Android. */
+	private static final Method allocatedBytes;
+	
+	static {
+		Object bean = null;
+		Method method = null;
+		try {
+			bean = Class.forName("java.lang.management.ManagementFactory").getMethod("getThreadMXBean").invoke(null);
+			method = Class.forName("com.sun.management.ThreadMXBean").getMethod("getThreadAllocatedBytes", long.class);
+			method.setAccessible(true);
+			method.invoke(bean, Thread.currentThread().getId());
+		}
+		catch (Exception e) {
+			bean = null;
+			method = null;
+		}
+		threadBean = bean;
+		allocatedBytes = method;
+	}
+	
+	
+	/**
+	 * Allocation counter of the steady state of one thread.
+	 */
+	private static final class Allocation {
+		private final Object[] threadId = { Long.valueOf(Thread.currentThread().getId()) };
+		/** Bytes allocated by a sample itself, subtracted from the measurement. */
+		private long overhead;
+		private long start = -1, end = -1;
+		
+		/** Must be called by the measured thread, at the end of the warm-up. */
+		private void start() {
+			long first = sample();
+			overhead = sample() - first;
+			start = sample();
+		}
+		
+		/** Must be called by the measured thread, at the end of the steady state. */
+		private void stop() {
+			end = sample();
+		}
+		
+		/**
+		 * @return Bytes allocated between {@link #start()} and {@link #stop()}, or -1 if not measured.
+		 */
+		private long get() {
+			return start < 0 || end < 0 ? -1 : Math.max(0, end - start - overhead);
+		}
+		
+		private long sample() {
+			if (allocatedBytes == null) {
+				return -1;
+			}
+			try {
+				return (Long) allocatedBytes.invoke(threadBean, threadId);
+			}
+			catch (Exception e) {
+				return -1;
+			}
+		}
+	}
+	
+	
+	public static void main(String[] args) throws InterruptedException {
+		int width = args.length >= 2 ? Integer.parseInt(args[0]) : 1280;
+		int height = args.length >= 2 ? Integer.parseInt(args[1]) : 960;
+		final int frames = args.length >= 3 ? Integer.parseInt(args[2]) : 100000;
+		int capacity = args.length >= 4 ? Integer.parseInt(args[3]) : 3;
+		
+		final PreviewBufferPool pool = new PreviewBufferPool(capacity, PreviewBufferPool.nv21BufferSize(width, height));
+		final AtomicReference<byte[]> slot = new AtomicReference<byte[]>();
+		final AtomicReference<String> failure = new AtomicReference<String>();
+		final long[] warmExhausted = new long[1];
+		final Allocation[] allocations = new Allocation[2];
+		
+		Thread producer = new Thread("producer") {
+			@Override
+			public void run() {
+				Allocation allocation = new Allocation();
+				allocations[0] = allocation;
+				for (long frame = 1; frame <= frames + WARMUP_FRAMES && failure.get() == null; frame++) {
+					if (frame == WARMUP_FRAMES + 1) {
+						warmExhausted[0] = pool.getExhaustedCount();
+						allocation.start();
+					}
+					byte[] buffer = pool.acquire();
+					if (buffer == null) {
+						// dropped as by the camera, the next frame gets the same number
+						frame--;
+						Thread.yield();
+						continue;
+					}
+					writeLong(buffer, 0, frame);
+					writeLong(buffer, buffer.length - 8, frame);
+					while (!slot.compareAndSet(null, buffer) && failure.get() == null) {
+						Thread.yield();
+					}
+				}
+				allocation.stop();
+			}
+		};
+		Thread consumer = new Thread("consumer") {
+			@Override
+			public void run() {
+				Allocation allocation = new Allocation();
+				allocations[1] = allocation;
+				long expected = 1;
+				while (expected <= frames + WARMUP_FRAMES && failure.get() == null) {
+					byte[] buffer = slot.getAndSet(null);
+					if (buffer == null) {
+						Thread.yield();
+						continue;
+					}
+					if (!pool.owns(buffer)) {
+						failure.set("foreign buffer at frame " + expected);
+						break;
+					}
+					// a buffer handed out twice would have been overwritten by a later frame
+					if (readLong(buffer, 0) != expected || readLong(buffer, buffer.length - 8) != expected) {
+						failure.set("buffer of frame " + expected + " overwritten while in use");
+						break;
+					}
+					if (!pool.release(buffer)) {
+						failure.set("release refused at frame " + expected);
+						break;
+					}
+					if (expected == WARMUP_FRAMES) {
+						allocation.start();
+					}
+					expected++;
+				}
+				allocation.stop();
+			}
+		};
+		
+		long t0 = System.nanoTime();
+		producer.start();
+		consumer.start();
+		producer.join();
+		consumer.join();
+		double us = (System.nanoTime() - t0)/1e3/(frames + WARMUP_FRAMES);
+		
+		long exhausted = pool.getExhaustedCount() - warmExhausted[0];
+		if (failure.get() == null && exhausted != 0) {
+			failure.set("pool exhausted " + exhausted + " times after warm-up");
+		}
+		if (failure.get() == null && pool.getAvailableCount() != pool.getCapacity()) {
+			failure.set((pool.getCapacity() - pool.getAvailableCount()) + " buffers not returned");
+		}
+		long producerBytes = allocations[0].get(), consumerBytes = allocations[1].get();
+		if (failure.get() == null && producerBytes > 0) {
+			failure.set("producer allocated " + producerBytes + " bytes after warm-up");
+		}
+		if (failure.get() == null && consumerBytes > 0) {
+			failure.set("consumer allocated " + consumerBytes + " bytes after warm-up");
+		}
+		System.out.printf("%dx%d, %d buffers, %d frames: %.2f us/frame, acquired %d, exhausted %d%n", 
+				width, height, capacity, frames, us, pool.getAcquiredCount(), pool.getExhaustedCount());
+		if (producerBytes < 0 || consumerBytes < 0) {
+			System.out.println("allocation not measured on this JVM");
+		}
+		else {
+			System.out.printf("allocated after warm-up: producer %d bytes, consumer %d bytes%n", 
+					producerBytes, consumerBytes);
+		}
+		if (failure.get() != null) {
+			System.out.println("FAILED: " + failure.get());
+			System.exit(1);
+		}
+		System.out.println("OK");
+	}
+	
+	
+	private static void writeLong(byte[] buffer, int offset, long value) {
+		for (int i = 0; i < 8; i++) {
+			buffer[offset + i] = (byte)(value >>> (8*i));
+		}
+	}
+	
+	
+	private static long readLong(byte[] buffer, int offset) {
+		long value = 0;
+		for (int i = 0; i < 8; i++) {
+			value |= (buffer[offset + i] & 0xFFL) << (8*i);
+		}
+		return value;
+	}
+}
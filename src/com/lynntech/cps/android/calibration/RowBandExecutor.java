@@ -0,0 +1,300 @@
+/*
+   Copyright 2015 Lynntech Inc. 
+   Contact information:
+   - Victor Palmer, 		victor.palmer[\AT]lynntech.com
+   - Christian Bruccoleri, 	christian.bruccoleri[\AT]lynntech.com
+   
+   Research reported in this publication was supported by the National Eye Institute 
+   of the National Institutes of Health under Award Number R43EY024800.
+   The content is solely the responsibility of the authors and does not necessarily
+   represent the official views of the National Institutes of Health.
+
+   This code includes parts of BoofCV: https://github.com/lessthanoptimal/BoofCV
+   
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+ */
+
+package com.lynntech.cps.android.calibration;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.RejectedExecutionHandler;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.LockSupport;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Executes row based image operations in parallel, splitting the rows of the image into horizontal bands.
+ * 
+ * Works in fork-join style: the calling thread takes part in the computation, the bands are claimed dynamically 
+ * by the caller and by the helper threads of a fixed pool, and {@link #run(int, Task)} returns when all the bands
+ * have been processed. Since each band writes a disjoint set of rows, the result is exactly the same as the one 
+ * obtained processing all rows on a single thread.
+ * 
+ * The helper threads are created once and kept alive until {@link #shutdown()} is called. With a parallelism of 1,
+ * or when the image is smaller than two bands, the task runs on the calling thread only. Several threads may call
+ * {@link #run(int, Task)} at the same time.
+ * 
+ * A call does not allocate memory: each calling thread reuses its own job, and the forks go through a bounded
+ * array queue. When the queue is full, or the executor is shut down, the caller processes the bands itself. A 
+ * call returns only when the forks it queued have either run or been taken back from the queue, so that the 
+ * job can be reused by the next call.
+ */
+public class RowBandExecutor {
+
+	/**
+	 * An operation on a range of rows.
+	 */
+	public interface Task {
+		/**
+		 * Process the rows in {@code [y0, y1)}. 
+		 * Must only write data that belongs to these rows; it is called concurrently for different bands.
+		 * @param band	Index of the band, in {@code [0, getBandCount(rows))}.
+		 * @param y0	First row of the band.
+		 * @param y1	One past the last row of the band.
+		 */
+		void process(int band, int y0, int y1);
+	}
+	
+	/** Default minimum number of rows of a band. */
+	public static final int DEFAULT_MIN_BAND_ROWS = 16;
+	
+	/** Number of bands for each thread: more bands than threads balance uneven rows. */
+	private static final int BANDS_PER_THREAD = 2;
+	
+	/** Capacity of the fork queue for each helper thread, enough for a few concurrent callers. */
+	private static final int QUEUED_FORKS_PER_HELPER = 4;
+	
+	/** Number of threads that process a task, including the caller. */
+	private final int parallelism;
+	
+	/** Minimum number of rows in a band. */
+	private final int minBandRows;
+	
+	/** The helper threads, null if parallelism is 1. */
+	private final ThreadPoolExecutor helpers;
+	
+	/** The job of each calling thread, reused by all its calls. */
+	private final ThreadLocal<Job> jobs = new ThreadLocal<Job>() {
+		@Override
+		protected Job initialValue() {
+			return new Job(Thread.currentThread());
+		}
+	};
+	
+	
+	/**
+	 * Create an executor with one thread per available core and the default minimum band size.
+	 */
+	public RowBandExecutor() {
+		this(Runtime.getRuntime().availableProcessors(), DEFAULT_MIN_BAND_ROWS);
+	}
+	
+	
+	/**
+	 * Create an executor.
+	 * @param parallelism	Number of threads that work on a task, including the caller; at least 1.
+	 * @param minBandRows	Minimum number of rows of a band; at least 1.
+	 */
+	public RowBandExecutor(int parallelism, int minBandRows) {
+		if (parallelism < 1 || minBandRows < 1) {
+			throw new IllegalArgumentException("parallelism and minBandRows must be at least 1.");
+		}
+		this.parallelism = parallelism;
+		this.minBandRows = minBandRows;
+		if (parallelism > 1) {
+			final AtomicInteger count = new AtomicInteger();
+			helpers = new ThreadPoolExecutor(parallelism - 1, parallelism - 1, 0, TimeUnit.MILLISECONDS,
+					new ArrayBlockingQueue<Runnable>(QUEUED_FORKS_PER_HELPER*(parallelism - 1)), new ThreadFactory() {
+						@Override
+						public Thread newThread(Runnable r) {
+							Thread t = new Thread(r, "RowBand-" + count.incrementAndGet());
+							t.setDaemon(true);
+							return t;
+						}
+					}, new RejectedExecutionHandler() {
+						@Override
+						public void rejectedExecution(Runnable r, ThreadPoolExecutor executor) {
+							// queue full or shut down: the caller claims the bands of this fork
+							((Job) r).pending.decrementAndGet();
+						}
+					});
+			helpers.prestartAllCoreThreads();
+		}
+		else {
+			helpers = null;
+		}
+	}
+	
+	
+	/**
+	 * Number of bands the rows of an image are split into.
+	 * @param rows	Number of rows of the image.
+	 * @return The number of bands, at least 1.
+	 */
+	public int getBandCount(int rows) {
+		return Math.max(1, Math.min(parallelism*BANDS_PER_THREAD, rows/minBandRows));
+	}
+	
+	
+	/**
+	 * Process all the rows of an image, returning when done.
+	 * If a band throws an exception, the remaining bands are still processed and the first exception
+	 * is thrown by this method once all the threads are done.
+	 * 
+	 * @param rows	Number of rows of the image.
+	 * @param task	The operation.
+	 */
+	public void run(int rows, Task task) {
+		int bands = getBandCount(rows);
+		if (bands == 1 || helpers == null || helpers.isShutdown()) {
+			task.process(0, 0, rows);
+			return;
+		}
+		Job job = jobs.get();
+		if (job.task != null) {
+			// called from a task running on this thread: the job is in use
+			job = new Job(Thread.currentThread());
+		}
+		job.start(task, rows, bands);
+		int forks = Math.min(parallelism, bands) - 1;
+		for (int i = 0; i < forks; i++) {
+			job.pending.incrementAndGet();
+			helpers.execute(job);
+		}
+		job.work();
+		// take back the forks no helper has started, e.g. because the helpers are busy with another caller
+		while (job.pending.get() > 0 && helpers.remove(job)) {
+			job.pending.decrementAndGet();
+		}
+		job.join();
+	}
+	
+	
+	/**
+	 * Stop the helper threads. The executor can still be used, but then runs tasks on the calling thread only.
+	 */
+	public void shutdown() {
+		if (helpers != null) {
+			helpers.shutdown();
+		}
+	}
+	
+	
+	/** @return Number of threads that work on a task, including the caller. */
+	public int getParallelism() {
+		return helpers == null || helpers.isShutdown() ? 1 : parallelism;
+	}
+	
+	
+	/** @return Minimum number of rows in a band. */
+	public int getMinBandRows() {
+		return minBandRows;
+	}
+	
+	
+	/**
+	 * The task being executed by a calling thread: the bands are claimed through {@link #next}, the caller waits 
+	 * for {@link #completed} and for the forks still {@link #pending} on the helper threads.
+	 */
+	private static final class Job implements Runnable {
+		final Thread caller;
+		final AtomicInteger next = new AtomicInteger();
+		final AtomicInteger completed = new AtomicInteger();
+		final AtomicInteger pending = new AtomicInteger();
+		// set by the caller before the forks are queued, which publishes them to the helpers
+		Task task;
+		int rows;
+		int bands;
+		volatile RuntimeException failure;
+		volatile Error error;
+		
+		Job(Thread caller) {
+			this.caller = caller;
+		}
+		
+		void start(Task task, int rows, int bands) {
+			this.task = task;
+			this.rows = rows;
+			this.bands = bands;
+			failure = null;
+			error = null;
+			completed.set(0);
+			pending.set(0);
+			next.set(0);
+		}
+		
+		/**
+		 * A fork, on a helper thread.
+		 */
+		@Override
+		public void run() {
+			try {
+				work();
+			}
+			finally {
+				if (pending.decrementAndGet() == 0) {
+					LockSupport.unpark(caller);
+				}
+			}
+		}
+		
+		void work() {
+			int band;
+			while ((band = next.getAndIncrement()) < bands) {
+				try {
+					// the sizes of the bands differ by one row at most
+					int y0 = (int)((long)rows*band/bands);
+					int y1 = (int)((long)rows*(band + 1)/bands);
+					task.process(band, y0, y1);
+				}
+				catch (RuntimeException e) {
+					if (failure == null) {
+						failure = e;
+					}
+				}
+				catch (Error e) {
+					if (error == null) {
+						error = e;
+					}
+				}
+				finally {
+					if (completed.incrementAndGet() == bands) {
+						LockSupport.unpark(caller);
+					}
+				}
+			}
+		}
+		
+		void join() {
+			boolean interrupted = false;
+			while (completed.get() < bands || pending.get() > 0) {
+				LockSupport.park(this);
+				if (Thread.interrupted()) {
+					interrupted = true;
+				}
+			}
+			task = null;
+			if (interrupted) {
+				Thread.currentThread().interrupt();
+			}
+			if (error != null) {
+				throw error;
+			}
+			if (failure != null) {
+				throw failure;
+			}
+		}
+	}
+}
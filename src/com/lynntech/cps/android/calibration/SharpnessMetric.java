@@ -0,0 +1,83 @@
+/*
+   Copyright 2015 Lynntech Inc. 
+   Contact information:
+   - Victor Palmer, 		victor.palmer[\AT]lynntech.com
+   - Christian Bruccoleri, 	christian.bruccoleri[\AT]lynntech.com
+   
+   Research reported in this publication was supported by the National Eye Institute 
+   of the National Institutes of Health under Award Number R43EY024800.
+   The content is solely the responsibility of the authors and does not necessarily
+   represent the official views of the National Institutes of Health.
+
+   This code includes parts of BoofCV: https://github.com/lessthanoptimal/BoofCV
+   
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+ */
+
+package com.lynntech.cps.android.calibration;
+
+import boofcv.struct.image.ImageUInt8;
+
+/**
+ * Focus measure used to reject blurred frames.
+ * 
+ * The measure is the variance of the Laplacian of the image: edges in focus give a strong response of the 
+ * Laplacian, so sharp images have a large variance while blurred images have a small one. The value depends on 
+ * the content of the scene, therefore it is meant to compare frames of the same scene, e.g. against a threshold 
+ * while the user holds the target in front of the camera.
+ * 
+ * The computation is a single pass over the image with integer arithmetic and allocates no memory.
+ */
+public final class SharpnessMetric {
+
+	private SharpnessMetric() {
+	}
+	
+	
+	/**
+	 * Variance of the 4-neighbour Laplacian of an image.
+	 * To reduce the cost, the Laplacian can be evaluated on a sparse grid of pixels; it is still computed
+	 * at full resolution at each sampled pixel.
+	 * 
+	 * @param image	The image.
+	 * @param step	Distance between the sampled pixels along rows and columns, 1 to use all the pixels.
+	 * @return The variance of the Laplacian, or 0 if the image is smaller than 3x3 pixels.
+	 */
+	public static double varianceOfLaplacian(ImageUInt8 image, int step) {
+		if (step < 1) {
+			throw new IllegalArgumentException("step must be at least 1.");
+		}
+		final byte[] data = image.data;
+		final int stride = image.stride;
+		long sum = 0;
+		long sumSq = 0;
+		long n = 0;
+		for (int y = 1; y < image.height - 1; y += step) {
+			int index = image.startIndex + y*stride + 1;
+			int end = index + image.width - 2;
+			for (; index < end; index += step) {
+				int lap = (data[index - 1] & 0xFF) + (data[index + 1] & 0xFF) 
+						+ (data[index - stride] & 0xFF) + (data[index + stride] & 0xFF) 
+						- 4*(data[index] & 0xFF);
+				sum += lap;
+				sumSq += lap*lap;
+				n++;
+			}
+		}
+		if (n == 0) {
+			return 0;
+		}
+		double mean = sum/(double)n;
+		return sumSq/(double)n - mean*mean;
+	}
+}
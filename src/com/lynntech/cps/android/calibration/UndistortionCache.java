@@ -0,0 +1,192 @@
+/*
+   Copyright 2015 Lynntech Inc. 
+   Contact information:
+   - Victor Palmer, 		victor.palmer[\AT]lynntech.com
+   - Christian Bruccoleri, 	christian.bruccoleri[\AT]lynntech.com
+   
+   Research reported in this publication was supported by the National Eye Institute 
+   of the National Institutes of Health under Award Number R43EY024800.
+   The content is solely the responsibility of the authors and does not necessarily
+   represent the official views of the National Institutes of Health.
+
+   This code includes parts of BoofCV: https://github.com/lessthanoptimal/BoofCV
+   
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+ */
+
+package com.lynntech.cps.android.calibration;
+
+import java.io.IOException;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import boofcv.struct.calib.IntrinsicParameters;
+
+/**
+ * Least recently used cache of {@link UndistortionTable} objects, keyed by the hash of the intrinsic parameters 
+ * and the image size. Building a table is expensive at full resolution, therefore it should be done only once
+ * for each calibration and resolution. With a {@link UndistortionTableStore} the tables also survive the process:
+ * a miss first looks for the table in the store, and a table built is saved to it. All methods are thread safe.
+ */
+public class UndistortionCache {
+
+	/** Maximum number of tables kept in the cache. */
+	private final int capacity;
+	
+	/** The tables in access order, the eldest first. */
+	private final LinkedHashMap<Key, UndistortionTable> tables;
+	
+	/** Number of requests served from the cache. */
+	private long hits;
+	
+	/** Number of requests that required building a table. */
+	private long misses;
+	
+	/** Number of requests served from the store. */
+	private long loads;
+	
+	/** Persistent storage of the tables, may be null. */
+	private UndistortionTableStore store;
+	
+	
+	/**
+	 * Create a cache.
+	 * @param capacity	Maximum number of tables kept in memory, at least 1.
+	 */
+	public UndistortionCache(int capacity) {
+		if (capacity < 1) {
+			throw new IllegalArgumentException("The capacity must be at least 1.");
+		}
+		this.capacity = capacity;
+		this.tables = new LinkedHashMap<Key, UndistortionTable>(capacity + 1, 0.75f, true) {
+			private static final long serialVersionUID = 1L;
+
+			@Override
+			protected boolean removeEldestEntry(Map.Entry<Key, UndistortionTable> eldest) {
+				return size() > UndistortionCache.this.capacity;
+			}
+		};
+	}
+	
+	
+	/**
+	 * Get the table for the specified calibration and image size, loading it from the store or building it if it 
+	 * is not in the cache. Note that the table is loaded or built while holding the lock on the cache.
+	 * 
+	 * @param param		Intrinsic parameters of the camera.
+	 * @param width		Width of the images to be undistorted.
+	 * @param height	Height of the images to be undistorted.
+	 * @return The remap table.
+	 */
+	public synchronized UndistortionTable get(IntrinsicParameters param, int width, int height) {
+		Key key = new Key(UndistortionTable.hashIntrinsic(param), width, height);
+		UndistortionTable table = tables.get(key);
+		if (table != null) {
+			hits++;
+			return table;
+		}
+		if (store != null) {
+			table = store.load(param, width, height);
+			if (table != null) {
+				loads++;
+				tables.put(key, table);
+				return table;
+			}
+		}
+		misses++;
+		table = UndistortionTable.build(param, width, height);
+		tables.put(key, table);
+		if (store != null) {
+			try {
+				store.save(table);
+			}
+			catch (IOException e) {
+				System.err.println("Cannot save the undistortion table: " + e.getMessage());
+			}
+		}
+		return table;
+	}
+	
+	
+	/**
+	 * Set the persistent storage of the tables.
+	 * @param store	The store, or {@code null} to keep the tables only in memory.
+	 */
+	public synchronized void setStore(UndistortionTableStore store) {
+		this.store = store;
+	}
+	
+	
+	/**
+	 * Add a table built elsewhere, e.g. restored from storage.
+	 * @param table		The table to add.
+	 */
+	public synchronized void put(UndistortionTable table) {
+		tables.put(new Key(table.getIntrinsicHash(), table.getWidth(), table.getHeight()), table);
+	}
+	
+	
+	/**
+	 * Remove all the tables from the cache.
+	 */
+	public synchronized void clear() {
+		tables.clear();
+	}
+	
+	
+	/** @return Number of requests served from the cache. */
+	public synchronized long getHits() {
+		return hits;
+	}
+	
+	
+	/** @return Number of requests that required building a table. */
+	public synchronized long getMisses() {
+		return misses;
+	}
+	
+	
+	/** @return Number of requests served by loading a table from the store. */
+	public synchronized long getLoads() {
+		return loads;
+	}
+	
+	
+	/**
+	 * Cache key: intrinsic parameters hash and image size.
+	 */
+	private static final class Key {
+		final long hash;
+		final int width, height;
+		
+		Key(long hash, int width, int height) {
+			this.hash = hash;
+			this.width = width;
+			this.height = height;
+		}
+		
+		@Override
+		public boolean equals(Object o) {
+			if (!(o instanceof Key)) {
+				return false;
+			}
+			Key k = (Key) o;
+			return k.hash == hash && k.width == width && k.height == height;
+		}
+		
+		@Override
+		public int hashCode() {
+			return (int)(hash ^ (hash >>> 32))*31*31 + width*31 + height;
+		}
+	}
+}
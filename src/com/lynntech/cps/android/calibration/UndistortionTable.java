@@ -0,0 +1,356 @@
+/*
+   Copyright 2015 Lynntech Inc. 
+   Contact information:
+   - Victor Palmer, 		victor.palmer[\AT]lynntech.com
+   - Christian Bruccoleri, 	christian.bruccoleri[\AT]lynntech.com
+   
+   Research reported in this publication was supported by the National Eye Institute 
+   of the National Institutes of Health under Award Number R43EY024800.
+   The content is solely the responsibility of the authors and does not necessarily
+   represent the official views of the National Institutes of Health.
+
+   This code includes parts of BoofCV: https://github.com/lessthanoptimal/BoofCV
+   
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+ */
+
+package com.lynntech.cps.android.calibration;
+
+import georegression.struct.point.Point2D_F32;
+import boofcv.alg.distort.LensDistortionOps;
+import boofcv.struct.calib.IntrinsicParameters;
+import boofcv.struct.distort.PointTransform_F32;
+import boofcv.struct.image.ImageFloat32;
+import boofcv.struct.image.ImageUInt8;
+
+/**
+ * Precomputed remap table that removes lens distortion from images.
+ * 
+ * {@code ImageDistort} evaluates the distortion model (and the adjustment that keeps the whole view inside the
+ * image) for every pixel of every frame. This table evaluates the model once, when it is built, and stores for 
+ * each output pixel the index of the top-left source pixel and the bilinear interpolation weights as 8-bit fixed
+ * point fractions. Removing the distortion from a frame is then a pure gather: four reads, a few integer or float
+ * operations and one write per pixel.
+ * 
+ * The view is the same used by {@code LensDistortionOps.removeDistortion(true, BorderType.VALUE, ...)}: the
+ * undistorted image is filled with valid pixels; output pixels that map outside of the source image are set to 0.
+ * 
+ * Source images must be contiguous (not sub-images) and have the size of the table.
+ * 
+ * @see UndistortionCache
+ */
+public class UndistortionTable {
+
+	/** Number of bits of the fractional part of the interpolation weights. */
+	static final int FRACTION_BITS = 8;
+	/** Fixed point value of 1.0. */
+	static final int ONE = 1 << FRACTION_BITS;
+	/** Mask for a fractional weight. */
+	static final int FRACTION_MASK = ONE - 1;
+	/** Offset value of output pixels that map outside of the source image. */
+	static final int OUTSIDE = -1;
+	
+	/** Image size in pixels. */
+	final int width, height;
+	
+	/** For each output pixel, index of the top-left source pixel, or {@link #OUTSIDE}. */
+	final int[] offsets;
+	
+	/** For each output pixel, horizontal weight in the low byte and vertical weight in the high byte. */
+	final short[] weights;
+	
+	/** Hash of the intrinsic parameters used to build the table, see {@link #hashIntrinsic(IntrinsicParameters)}. */
+	final long intrinsicHash;
+
+
+	/**
+	 * Create an empty table; used when the table is restored from storage.
+	 */
+	UndistortionTable(int width, int height, long intrinsicHash) {
+		this.width = width;
+		this.height = height;
+		this.intrinsicHash = intrinsicHash;
+		this.offsets = new int[width*height];
+		this.weights = new short[width*height];
+	}
+	
+	
+	/**
+	 * Build the table for the specified calibration and image size.
+	 * If the image size is different from the size stored in {@code param}, the intrinsic parameters
+	 * are scaled accordingly (same field of view at a different resolution).
+	 * 
+	 * @param param		Intrinsic parameters of the camera.
+	 * @param width		Width of the images to be undistorted.
+	 * @param height	Height of the images to be undistorted.
+	 * @return A new table.
+	 */
+	public static UndistortionTable build(IntrinsicParameters param, int width, int height) {
+		if (width < 2 || height < 2) {
+			throw new IllegalArgumentException("The image must be at least 2x2 pixels.");
+		}
+		UndistortionTable table = new UndistortionTable(width, height, hashIntrinsic(param));
+		PointTransform_F32 model = LensDistortionOps.allInside(scaleIntrinsic(param, width, height), null);
+		Point2D_F32 p = new Point2D_F32();
+		final float maxX = width - 1;
+		final float maxY = height - 1;
+		int index = 0;
+		for (int y = 0; y < height; y++) {
+			for (int x = 0; x < width; x++, index++) {
+				model.compute(x, y, p);
+				if (!(p.x >= 0 && p.y >= 0 && p.x <= maxX && p.y <= maxY)) {
+					table.offsets[index] = OUTSIDE;
+					continue;
+				}
+				int sx = fixedPoint(p.x, width);
+				int sy = fixedPoint(p.y, height);
+				table.offsets[index] = (sy >> FRACTION_BITS)*width + (sx >> FRACTION_BITS);
+				table.weights[index] = (short)((sx & FRACTION_MASK) | ((sy & FRACTION_MASK) << FRACTION_BITS));
+			}
+		}
+		return table;
+	}
+	
+	
+	/**
+	 * Split a source coordinate into the first pixel of the 2x2 neighborhood and the fixed point weight of the 
+	 * second one. A weight that rounds to 1 is carried into the next pixel with weight 0. On the last pixel the 
+	 * neighborhood cannot move, since it must stay inside the image, thus the weight is the largest one.
+	 * 
+	 * @param p		Coordinate, in [0, size - 1].
+	 * @param size	Image width or height.
+	 * @return The first pixel shifted by {@link #FRACTION_BITS}, with the weight in the low bits.
+	 */
+	static int fixedPoint(float p, int size) {
+		int i = (int)p;
+		int a = Math.round((p - i)*ONE);
+		if (a == ONE) {
+			i++;
+			a = 0;
+		}
+		if (i >= size - 1) {
+			i = size - 2;
+			a = FRACTION_MASK;
+		}
+		return (i << FRACTION_BITS) | a;
+	}
+	
+	
+	/**
+	 * Copy of the intrinsic parameters adapted to a different image size.
+	 */
+	static IntrinsicParameters scaleIntrinsic(IntrinsicParameters param, int width, int height) {
+		IntrinsicParameters res = new IntrinsicParameters(param);
+		if (param.width == width && param.height == height) {
+			return res;
+		}
+		if (param.width <= 0 || param.height <= 0) {
+			throw new IllegalArgumentException("The intrinsic parameters do not specify the image size.");
+		}
+		double sx = width/(double)param.width;
+		double sy = height/(double)param.height;
+		res.fx *= sx;
+		res.skew *= sx;
+		res.cx *= sx;
+		res.fy *= sy;
+		res.cy *= sy;
+		res.width = width;
+		res.height = height;
+		return res;
+	}
+	
+	
+	/**
+	 * A 64-bit hash of all the fields of the intrinsic parameters.
+	 * @param param		The intrinsic parameters.
+	 * @return The hash value.
+	 */
+	public static long hashIntrinsic(IntrinsicParameters param) {
+		long h = 1125899906842597L;
+		h = 31*h + param.width;
+		h = 31*h + param.height;
+		h = 31*h + (param.flipY ? 1 : 0);
+		h = 31*h + Double.doubleToLongBits(param.fx);
+		h = 31*h + Double.doubleToLongBits(param.fy);
+		h = 31*h + Double.doubleToLongBits(param.skew);
+		h = 31*h + Double.doubleToLongBits(param.cx);
+		h = 31*h + Double.doubleToLongBits(param.cy);
+		if (param.radial != null) {
+			h = 31*h + param.radial.length;
+			for (double r : param.radial) {
+				h = 31*h + Double.doubleToLongBits(r);
+			}
+		}
+		return h;
+	}
+	
+	
+	/**
+	 * Remove the distortion from a floating point image.
+	 * @param src	Distorted image.
+	 * @param dst	Undistorted output image.
+	 */
+	public void apply(ImageFloat32 src, ImageFloat32 dst) {
+		apply(src, dst, 0, height);
+	}
+	
+	
+	/**
+	 * Remove the distortion from the rows {@code [row0, row1)} of the output image only; used to split the work
+	 * among threads.
+	 * @see #apply(ImageFloat32, ImageFloat32)
+	 */
+	public void apply(ImageFloat32 src, ImageFloat32 dst, int row0, int row1) {
+		checkImages(src, dst);
+		ConvertNV21Fused.checkRows(row0, row1, height);
+		final float[] in = src.data;
+		final float[] out = dst.data;
+		final int w = width;
+		final float norm = 1.0f/ONE;
+		for (int y = row0; y < row1; y++) {
+			int index = y*w;
+			int indexDst = dst.startIndex + y*dst.stride;
+			for (int x = 0; x < w; x++, index++) {
+				int off = offsets[index];
+				if (off == OUTSIDE) {
+					out[indexDst++] = 0;
+					continue;
+				}
+				int wt = weights[index];
+				float ax = (wt & FRACTION_MASK)*norm;
+				float ay = ((wt >> FRACTION_BITS) & FRACTION_MASK)*norm;
+				float top = in[off] + ax*(in[off + 1] - in[off]);
+				float bottom = in[off + w] + ax*(in[off + w + 1] - in[off + w]);
+				out[indexDst++] = top + ay*(bottom - top);
+			}
+		}
+	}
+	
+	
+	/**
+	 * Remove the distortion from an 8-bit image, using integer arithmetic only.
+	 * @param src	Distorted image.
+	 * @param dst	Undistorted output image.
+	 */
+	public void apply(ImageUInt8 src, ImageUInt8 dst) {
+		apply(src, dst, 0, height);
+	}
+	
+	
+	/**
+	 * Remove the distortion from the rows {@code [row0, row1)} of the output image only; used to split the work
+	 * among threads.
+	 * @see #apply(ImageUInt8, ImageUInt8)
+	 */
+	public void apply(ImageUInt8 src, ImageUInt8 dst, int row0, int row1) {
+		checkImages(src.width, src.height, src.stride, src.startIndex, dst.width, dst.height);
+		ConvertNV21Fused.checkRows(row0, row1, height);
+		final byte[] in = src.data;
+		final byte[] out = dst.data;
+		final int w = width;
+		final int round = 1 << (2*FRACTION_BITS - 1);
+		for (int y = row0; y < row1; y++) {
+			int index = y*w;
+			int indexDst = dst.startIndex + y*dst.stride;
+			for (int x = 0; x < w; x++, index++) {
+				int off = offsets[index];
+				if (off == OUTSIDE) {
+					out[indexDst++] = 0;
+					continue;
+				}
+				int wt = weights[index];
+				int ax = wt & FRACTION_MASK;
+				int ay = (wt >> FRACTION_BITS) & FRACTION_MASK;
+				int top = (in[off] & 0xFF)*(ONE - ax) + (in[off + 1] & 0xFF)*ax;
+				int bottom = (in[off + w] & 0xFF)*(ONE - ax) + (in[off + w + 1] & 0xFF)*ax;
+				out[indexDst++] = (byte)((top*(ONE - ay) + bottom*ay + round) >> (2*FRACTION_BITS));
+			}
+		}
+	}
+	
+	
+	/**
+	 * Remove the distortion from an 8-bit image and write the result as floating point,
+	 * saving a separate type conversion pass.
+	 * @param src	Distorted image.
+	 * @param dst	Undistorted output image.
+	 */
+	public void apply(ImageUInt8 src, ImageFloat32 dst) {
+		apply(src, dst, 0, height);
+	}
+	
+	
+	/**
+	 * Remove the distortion from the rows {@code [row0, row1)} of the output image only; used to split the work
+	 * among threads.
+	 * @see #apply(ImageUInt8, ImageFloat32)
+	 */
+	public void apply(ImageUInt8 src, ImageFloat32 dst, int row0, int row1) {
+		checkImages(src.width, src.height, src.stride, src.startIndex, dst.width, dst.height);
+		ConvertNV21Fused.checkRows(row0, row1, height);
+		final byte[] in = src.data;
+		final float[] out = dst.data;
+		final int w = width;
+		final float norm = 1.0f/(ONE*ONE);
+		for (int y = row0; y < row1; y++) {
+			int index = y*w;
+			int indexDst = dst.startIndex + y*dst.stride;
+			for (int x = 0; x < w; x++, index++) {
+				int off = offsets[index];
+				if (off == OUTSIDE) {
+					out[indexDst++] = 0;
+					continue;
+				}
+				int wt = weights[index];
+				int ax = wt & FRACTION_MASK;
+				int ay = (wt >> FRACTION_BITS) & FRACTION_MASK;
+				int top = (in[off] & 0xFF)*(ONE - ax) + (in[off + 1] & 0xFF)*ax;
+				int bottom = (in[off + w] & 0xFF)*(ONE - ax) + (in[off + w + 1] & 0xFF)*ax;
+				out[indexDst++] = (top*(ONE - ay) + bottom*ay)*norm;
+			}
+		}
+	}
+	
+	
+	private void checkImages(ImageFloat32 src, ImageFloat32 dst) {
+		checkImages(src.width, src.height, src.stride, src.startIndex, dst.width, dst.height);
+	}
+	
+	
+	private void checkImages(int srcWidth, int srcHeight, int srcStride, int srcStart, int dstWidth, int dstHeight) {
+		if (srcWidth != width || srcHeight != height || dstWidth != width || dstHeight != height) {
+			throw new IllegalArgumentException(String.format("Images must be %dx%d.", width, height));
+		}
+		if (srcStride != width || srcStart != 0) {
+			throw new IllegalArgumentException("The source image must be contiguous.");
+		}
+	}
+	
+	
+	/** @return Width of the images in pixels. */
+	public int getWidth() {
+		return width;
+	}
+	
+	
+	/** @return Height of the images in pixels. */
+	public int getHeight() {
+		return height;
+	}
+	
+	
+	/** @return Hash of the intrinsic parameters used to build the table. */
+	public long getIntrinsicHash() {
+		return intrinsicHash;
+	}
+}
@@ -0,0 +1,280 @@
+/*
+   Copyright 2015 Lynntech Inc. 
+   Contact information:
+   - Victor Palmer, 		victor.palmer[\AT]lynntech.com
+   - Christian Bruccoleri, 	christian.bruccoleri[\AT]lynntech.com
+   
+   Research reported in this publication was supported by the National Eye Institute 
+   of the National Institutes of Health under Award Number R43EY024800.
+   The content is solely the responsibility of the authors and does not necessarily
+   represent the official views of the National Institutes of Health.
+
+   This code includes parts of BoofCV: https://github.com/lessthanoptimal/BoofCV
+   
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+ */
+package com.lynntech.cps.android.calibration;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.Locale;
+import java.util.zip.CRC32;
+
+import boofcv.struct.calib.IntrinsicParameters;
+
+/**
+ * Persistent storage of {@link UndistortionTable} objects, so that a table is built only once for each calibration
+ * and resolution, not at every start of the application.
+ * 
+ * Each table is a file named after the hash of the intrinsic parameters and the image size. The file has a header
+ * (magic number, format version, byte order, image size, hash of the parameters and CRC32 of the payload) followed
+ * by the offsets and the weights of the table, in the byte order of the device that wrote it. It is read through a
+ * memory mapping with bulk copies into the arrays of the table; a file with a wrong header or CRC is ignored and 
+ * deleted. Only the {@link #getMaxFiles()} most recently written tables are kept. All methods are thread safe.
+ * 
+ * @see UndistortionCache#setStore(UndistortionTableStore)
+ */
+public class UndistortionTableStore {
+
+	/** First four bytes of a file, "CPSU". */
+	public static final int MAGIC = 0x43505355;
+	
+	/** Version of the file format written by this class; 2 since the rounding of the weights is carried. */
+	public static final int VERSION = 2;
+	
+	/** Default maximum number of tables kept. */
+	public static final int DEFAULT_MAX_FILES = 4;
+	
+	/** Size of the header, in bytes. */
+	static final int HEADER_SIZE = 40;
+	
+	/** Extension of the table files. */
+	private static final String EXTENSION = ".map";
+	
+	/** Directory of the tables. */
+	private final File directory;
+	
+	/** Maximum number of tables kept. */
+	private final int maxFiles;
+	
+	
+	/**
+	 * Create a store that keeps at most {@link #DEFAULT_MAX_FILES} tables.
+	 * @param directory	Directory of the tables, created if needed.
+	 */
+	public UndistortionTableStore(File directory) {
+		this(directory, DEFAULT_MAX_FILES);
+	}
+	
+	
+	/**
+	 * Create a store.
+	 * @param directory	Directory of the tables, created if needed.
+	 * @param maxFiles	Maximum number of tables kept, at least 1.
+	 */
+	public UndistortionTableStore(File directory, int maxFiles) {
+		if (maxFiles < 1) {
+			throw new IllegalArgumentException("maxFiles must be at least 1.");
+		}
+		this.directory = directory;
+		this.maxFiles = maxFiles;
+	}
+	
+	
+	/**
+	 * Load the table of a calibration and image size.
+	 * @param param		Intrinsic parameters of the camera.
+	 * @param width		Width of the images to be undistorted.
+	 * @param height	Height of the images to be undistorted.
+	 * @return The table, or {@code null} if it is not stored or the file is not valid.
+	 */
+	public synchronized UndistortionTable load(IntrinsicParameters param, int width, int height) {
+		long hash = UndistortionTable.hashIntrinsic(param);
+		File file = fileOf(hash, width, height);
+		if (!file.exists()) {
+			return null;
+		}
+		try {
+			UndistortionTable table = read(file, hash, width, height);
+			if (table == null) {
+				System.err.println("Invalid undistortion table, deleted: " + file);
+				file.delete();
+			}
+			return table;
+		}
+		catch (IOException e) {
+			System.err.println("Cannot read the undistortion table " + file + ": " + e.getMessage());
+			return null;
+		}
+	}
+	
+	
+	/**
+	 * Store a table, replacing the file of the same calibration and size, and delete the oldest tables in excess.
+	 * @param table	The table.
+	 * @throws IOException If the file cannot be written.
+	 */
+	public synchronized void save(UndistortionTable table) throws IOException {
+		if (!directory.isDirectory() && !directory.mkdirs()) {
+			throw new IOException("Cannot create " + directory);
+		}
+		int n = table.width*table.height;
+		ByteBuffer payload = ByteBuffer.allocate(n*6).order(ByteOrder.nativeOrder());
+		payload.asIntBuffer().put(table.offsets);
+		payload.position(n*4);
+		payload.asShortBuffer().put(table.weights);
+		CRC32 crc = new CRC32();
+		crc.update(payload.array());
+		
+		ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+		header.putInt(0, MAGIC);
+		header.putInt(4, VERSION);
+		header.putInt(8, ByteOrder.nativeOrder() == ByteOrder.BIG_ENDIAN ? 1 : 0);
+		header.putInt(12, table.width);
+		header.putInt(16, table.height);
+		header.putLong(20, table.intrinsicHash);
+		header.putLong(28, crc.getValue());
+		
+		File file = fileOf(table.intrinsicHash, table.width, table.height);
+		File tmp = new File(file.getPath() + ".tmp");
+		FileOutputStream fos = new FileOutputStream(tmp);
+		try {
+			fos.write(header.array());
+			fos.write(payload.array());
+		}
+		finally {
+			fos.close();
+		}
+		if (!tmp.renameTo(file) && (!file.delete() || !tmp.renameTo(file))) {
+			throw new IOException("Cannot replace " + file);
+		}
+		prune();
+	}
+	
+	
+	/**
+	 * Delete all the stored tables.
+	 */
+	public synchronized void clear() {
+		for (File f : listTables()) {
+			f.delete();
+		}
+	}
+	
+	
+	/** @return Maximum number of tables kept. */
+	public int getMaxFiles() {
+		return maxFiles;
+	}
+	
+	
+	/**
+	 * Read and validate a table file.
+	 * @return The table, or {@code null} if the file is not valid.
+	 */
+	private static UndistortionTable read(File file, long hash, int width, int height) throws IOException {
+		long n = (long)width*height;
+		RandomAccessFile raf = new RandomAccessFile(file, "r");
+		MappedByteBuffer buffer;
+		try {
+			if (raf.length() != HEADER_SIZE + n*6) {
+				return null;
+			}
+			buffer = raf.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, raf.length());
+		}
+		finally {
+			raf.close();
+		}
+		if (buffer.getInt(0) != MAGIC || buffer.getInt(4) != VERSION || buffer.getInt(12) != width 
+				|| buffer.getInt(16) != height || buffer.getLong(20) != hash) {
+			return null;
+		}
+		ByteOrder order = buffer.getInt(8) == 1 ? ByteOrder.BIG_ENDIAN : ByteOrder.LITTLE_ENDIAN;
+		long expectedCrc = buffer.getLong(28);
+		
+		UndistortionTable table = new UndistortionTable(width, height, hash);
+		ByteBuffer payload = buffer.duplicate();
+		payload.position(HEADER_SIZE);
+		payload = payload.slice().order(order);
+		payload.asIntBuffer().get(table.offsets);
+		payload.position((int)n*4);
+		payload.slice().order(order).asShortBuffer().get(table.weights);
+		
+		// verify the payload as mapped, in chunks, without copying it all on the heap
+		CRC32 crc = new CRC32();
+		byte[] chunk = new byte[64*1024];
+		ByteBuffer src = buffer.duplicate();
+		src.position(HEADER_SIZE);
+		while (src.hasRemaining()) {
+			int len = Math.min(chunk.length, src.remaining());
+			src.get(chunk, 0, len);
+			crc.update(chunk, 0, len);
+		}
+		return crc.getValue() == expectedCrc ? table : null;
+	}
+	
+	
+	/**
+	 * Delete the oldest tables, keeping at most {@link #maxFiles}.
+	 */
+	private void prune() {
+		File[] files = listTables();
+		if (files.length <= maxFiles) {
+			return;
+		}
+		Arrays.sort(files, new Comparator<File>() {
+			@Override
+			public int compare(File a, File b) {
+				long ta = a.lastModified(), tb = b.lastModified();
+				return ta > tb ? -1 : (ta == tb ? 0 : 1);
+			}
+		});
+		for (int i = maxFiles; i < files.length; i++) {
+			files[i].delete();
+		}
+	}
+	
+	
+	/**
+	 * @return The table files in the directory.
+	 */
+	private File[] listTables() {
+		File[] files = directory.listFiles();
+		if (files == null) {
+			return new File[0];
+		}
+		int n = 0;
+		for (File f : files) {
+			if (f.getName().startsWith("undist_") && f.getName().endsWith(EXTENSION)) {
+				files[n++] = f;
+			}
+		}
+		return Arrays.copyOf(files, n);
+	}
+	
+	
+	/**
+	 * @return The file of a table.
+	 */
+	private File fileOf(long hash, int width, int height) {
+		return new File(directory, String.format(Locale.US, "undist_%016x_%dx%d%s", hash, width, height, EXTENSION));
+	}
+}
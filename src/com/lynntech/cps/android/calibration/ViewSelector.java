@@ -0,0 +1,411 @@
+/*
+   Copyright 2015 Lynntech Inc. 
+   Contact information:
+   - Victor Palmer, 		victor.palmer[\AT]lynntech.com
+   - Christian Bruccoleri, 	christian.bruccoleri[\AT]lynntech.com
+   
+   Research reported in this publication was supported by the National Eye Institute 
+   of the National Institutes of Health under Award Number R43EY024800.
+   The content is solely the responsibility of the authors and does not necessarily
+   represent the official views of the National Institutes of Health.
+
+   This code includes parts of BoofCV: https://github.com/lessthanoptimal/BoofCV
+   
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+ */
+package com.lynntech.cps.android.calibration;
+
+import georegression.struct.point.Point2D_F64;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Chooses the calibration views that carry the most information, so that the solver gets a small but diverse set.
+ * 
+ * Each view is described by the pose of the target, estimated directly from the observed corners: the tilt around 
+ * the two axes of the target (ratio of the lengths of opposite sides), the distance (apparent size) and the position
+ * in the image. The image is also divided into a coarse grid, the <i>coverage map</i>, which counts the views
+ * with at least one corner in each cell; cells along the border count more, since lens distortion is strongest there.
+ * 
+ * The score of a view is the coverage it adds, with diminishing returns for cells already covered, plus the distance
+ * of its pose from the closest selected pose. Views scoring less than {@link #getMinScore()} are discarded as
+ * redundant. When the set is full, a new view replaces the selected view that contributes the least, if it scores
+ * more than that view. All methods are thread safe.
+ */
+public class ViewSelector {
+
+	/** Default number of columns of the coverage map. */
+	public static final int DEFAULT_GRID_COLUMNS = 8;
+	
+	/** Default number of rows of the coverage map. */
+	public static final int DEFAULT_GRID_ROWS = 6;
+	
+	/** Default minimum score of a view, see {@link #setMinScore(double)}. */
+	public static final double DEFAULT_MIN_SCORE = 0.05;
+	
+	/** Returned by {@link #offer(int, List, int, int)} when the view is selected without replacing another one. */
+	public static final int NONE = -1;
+	
+	/** Weight of the cells along the border of the image, relative to the inner cells. */
+	private static final double BORDER_WEIGHT = 2;
+	
+	/** Weight of the pose novelty, relative to the coverage gain. */
+	private static final double POSE_WEIGHT = 0.5;
+	
+	/** Tilt difference, as the logarithm of the ratio of opposite sides, that makes two poses distinct. */
+	private static final double TILT_SCALE = 0.3;
+	
+	/** Distance difference, as the logarithm of the apparent size, that makes two poses distinct. */
+	private static final double SIZE_SCALE = 0.3;
+	
+	/** Position difference, as a fraction of the image size, that makes two poses distinct. */
+	private static final double POSITION_SCALE = 0.25;
+	
+	/** Index of the corners of the target layout: top-left, top-right, bottom-left, bottom-right. */
+	private final int corner00, corner10, corner01, corner11;
+	
+	/** Size of the coverage map. */
+	private final int gridColumns, gridRows;
+	
+	/** Weight of each cell of the coverage map, and their sum. */
+	private final double[] cellWeight;
+	private final double totalWeight;
+	
+	/** Number of selected views with at least one corner in each cell. */
+	private final int[] coverage;
+	
+	/** The selected views, in the order they were added. */
+	private final List<View> selected = new ArrayList<View>();
+	
+	/** Maximum number of selected views. */
+	private int capacity = CalibrateMonocularPlanar.num_calibr_images;
+	
+	/** Minimum score of a view to be selected. */
+	private double minScore = DEFAULT_MIN_SCORE;
+	
+	/** Number of views discarded, either redundant or less informative than the selected ones. */
+	private int discardedCount;
+	
+	
+	/**
+	 * Create a selector with a coverage map of {@link #DEFAULT_GRID_COLUMNS} x {@link #DEFAULT_GRID_ROWS} cells.
+	 * @param layout	Position of the calibration points on the target, see 
+	 * 					{@link boofcv.alg.geo.calibration.PlanarCalibrationTarget#points}.
+	 */
+	public ViewSelector(List<Point2D_F64> layout) {
+		this(layout, DEFAULT_GRID_COLUMNS, DEFAULT_GRID_ROWS);
+	}
+	
+	
+	/**
+	 * Create a selector.
+	 * @param layout		Position of the calibration points on the target.
+	 * @param gridColumns	Number of columns of the coverage map, at least 3.
+	 * @param gridRows		Number of rows of the coverage map, at least 3.
+	 */
+	public ViewSelector(List<Point2D_F64> layout, int gridColumns, int gridRows) {
+		if (gridColumns < 3 || gridRows < 3) {
+			throw new IllegalArgumentException("The coverage map must have at least 3x3 cells.");
+		}
+		if (layout.size() < 4) {
+			throw new IllegalArgumentException("The target must have at least 4 points.");
+		}
+		// the corners of the layout are the extremes along the diagonals
+		int i00 = 0, i10 = 0, i01 = 0, i11 = 0;
+		for (int i = 1; i < layout.size(); i++) {
+			Point2D_F64 p = layout.get(i);
+			if (p.x + p.y < layout.get(i00).x + layout.get(i00).y) i00 = i;
+			if (p.x + p.y > layout.get(i11).x + layout.get(i11).y) i11 = i;
+			if (p.x - p.y > layout.get(i10).x - layout.get(i10).y) i10 = i;
+			if (p.x - p.y < layout.get(i01).x - layout.get(i01).y) i01 = i;
+		}
+		corner00 = i00;
+		corner10 = i10;
+		corner01 = i01;
+		corner11 = i11;
+		
+		this.gridColumns = gridColumns;
+		this.gridRows = gridRows;
+		cellWeight = new double[gridColumns*gridRows];
+		double total = 0;
+		for (int y = 0; y < gridRows; y++) {
+			for (int x = 0; x < gridColumns; x++) {
+				boolean border = x == 0 || y == 0 || x == gridColumns - 1 || y == gridRows - 1;
+				cellWeight[y*gridColumns + x] = border ? BORDER_WEIGHT : 1;
+				total += cellWeight[y*gridColumns + x];
+			}
+		}
+		totalWeight = total;
+		coverage = new int[gridColumns*gridRows];
+	}
+	
+	
+	/**
+	 * Offer a new view for selection.
+	 * @param sequence	Identifier of the view.
+	 * @param points	Observed calibration points, in the order of the layout.
+	 * @param width		Width of the image.
+	 * @param height	Height of the image.
+	 * @return {@link #NONE} if the view was selected, the identifier of the view it replaced if the set was full,
+	 * or {@code sequence} itself if the view was discarded.
+	 */
+	public synchronized int offer(int sequence, List<Point2D_F64> points, int width, int height) {
+		View view = describe(sequence, points, width, height);
+		double score = score(view, null);
+		if (score < minScore) {
+			discardedCount++;
+			return sequence;
+		}
+		int replaced = NONE;
+		if (selected.size() >= capacity) {
+			// find the view that would be missed the least
+			int worst = -1;
+			double worstScore = Double.MAX_VALUE;
+			for (int i = 0; i < selected.size(); i++) {
+				double s = score(selected.get(i), selected.get(i));
+				if (s < worstScore) {
+					worstScore = s;
+					worst = i;
+				}
+			}
+			if (worstScore >= score) {
+				discardedCount++;
+				return sequence;
+			}
+			View old = selected.remove(worst);
+			for (int cell : old.cells) {
+				coverage[cell]--;
+			}
+			discardedCount++;
+			replaced = old.sequence;
+		}
+		selected.add(view);
+		for (int cell : view.cells) {
+			coverage[cell]++;
+		}
+		return replaced;
+	}
+	
+	
+	/**
+	 * Remove a selected view, e.g. rejected as an outlier by the solver; it is not counted as discarded.
+	 * @param sequence	Identifier of the view.
+	 * @return {@code true} if the view was selected.
+	 */
+	public synchronized boolean remove(int sequence) {
+		for (int i = 0; i < selected.size(); i++) {
+			if (selected.get(i).sequence == sequence) {
+				for (int cell : selected.remove(i).cells) {
+					coverage[cell]--;
+				}
+				return true;
+			}
+		}
+		return false;
+	}
+	
+	
+	/**
+	 * Describe the pose of a view and the cells covered by its corners.
+	 */
+	private View describe(int sequence, List<Point2D_F64> points, int width, int height) {
+		Point2D_F64 p00 = points.get(corner00);
+		Point2D_F64 p10 = points.get(corner10);
+		Point2D_F64 p01 = points.get(corner01);
+		Point2D_F64 p11 = points.get(corner11);
+		View v = new View();
+		v.sequence = sequence;
+		// a side looks shorter than the opposite one when it is farther from the camera
+		v.tiltH = Math.log(p00.distance(p01)/p10.distance(p11));
+		v.tiltV = Math.log(p00.distance(p10)/p01.distance(p11));
+		// area of the quadrilateral, relative to the image
+		double area = 0.5*Math.abs((p11.x - p00.x)*(p01.y - p10.y) - (p01.x - p10.x)*(p11.y - p00.y));
+		v.size = 0.5*Math.log(area/((double)width*height));
+		
+		boolean[] covered = new boolean[coverage.length];
+		int count = 0;
+		double sx = 0, sy = 0;
+		for (Point2D_F64 p : points) {
+			sx += p.x;
+			sy += p.y;
+			int cx = Math.min(gridColumns - 1, Math.max(0, (int)(p.x*gridColumns/width)));
+			int cy = Math.min(gridRows - 1, Math.max(0, (int)(p.y*gridRows/height)));
+			int cell = cy*gridColumns + cx;
+			if (!covered[cell]) {
+				covered[cell] = true;
+				count++;
+			}
+		}
+		v.x = sx/(points.size()*width);
+		v.y = sy/(points.size()*height);
+		v.cells = new int[count];
+		for (int i = 0, j = 0; i < covered.length; i++) {
+			if (covered[i]) {
+				v.cells[j++] = i;
+			}
+		}
+		return v;
+	}
+	
+	
+	/**
+	 * Information added by a view to the selected set.
+	 * @param view		The view.
+	 * @param exclude	A selected view to be left out of the set, used to compute the contribution of a view
+	 * 					already selected; {@code null} for a new view.
+	 * @return The score.
+	 */
+	private double score(View view, View exclude) {
+		double gain = 0;
+		for (int cell : view.cells) {
+			int n = coverage[cell] - (exclude != null ? 1 : 0);
+			gain += cellWeight[cell]/((1 + n)*(1 + n));
+		}
+		double nearest = Double.MAX_VALUE;
+		for (View s : selected) {
+			if (s != exclude) {
+				nearest = Math.min(nearest, distance(view, s));
+			}
+		}
+		return gain/totalWeight + POSE_WEIGHT*Math.min(1, nearest);
+	}
+	
+	
+	/**
+	 * Normalized distance between two poses; 1 means clearly distinct poses.
+	 */
+	private static double distance(View a, View b) {
+		double dt = ((a.tiltH - b.tiltH)*(a.tiltH - b.tiltH) + (a.tiltV - b.tiltV)*(a.tiltV - b.tiltV))/
+				(TILT_SCALE*TILT_SCALE);
+		double ds = (a.size - b.size)*(a.size - b.size)/(SIZE_SCALE*SIZE_SCALE);
+		double dp = ((a.x - b.x)*(a.x - b.x) + (a.y - b.y)*(a.y - b.y))/(POSITION_SCALE*POSITION_SCALE);
+		return Math.sqrt(dt + ds + dp);
+	}
+	
+	
+	/**
+	 * Copy the coverage map: the number of selected views with at least one corner in each cell, row by row.
+	 * @param storage	Destination array, reused if it has {@link #getGridColumns()} x {@link #getGridRows()} 
+	 * 					elements; may be null.
+	 * @return The coverage map.
+	 */
+	public synchronized int[] getCoverage(int[] storage) {
+		if (storage == null || storage.length != coverage.length) {
+			storage = new int[coverage.length];
+		}
+		System.arraycopy(coverage, 0, storage, 0, coverage.length);
+		return storage;
+	}
+	
+	
+	/**
+	 * @return Fraction of the image covered by the selected views, weighted as in the score: 1 when every cell
+	 * has at least one corner.
+	 */
+	public synchronized double getCoverageFraction() {
+		double covered = 0;
+		for (int i = 0; i < coverage.length; i++) {
+			if (coverage[i] > 0) {
+				covered += cellWeight[i];
+			}
+		}
+		return covered/totalWeight;
+	}
+	
+	
+	/** @return Number of columns of the coverage map. */
+	public int getGridColumns() {
+		return gridColumns;
+	}
+	
+	
+	/** @return Number of rows of the coverage map. */
+	public int getGridRows() {
+		return gridRows;
+	}
+	
+	
+	/** @return Number of views currently selected. */
+	public synchronized int getSelectedCount() {
+		return selected.size();
+	}
+	
+	
+	/** @return Number of views discarded since the last {@link #clear()}, including replaced views. */
+	public synchronized int getDiscardedCount() {
+		return discardedCount;
+	}
+	
+	
+	/**
+	 * Set the maximum number of selected views; views already selected are kept.
+	 * @param capacity	The maximum number of views, at least 1.
+	 */
+	public synchronized void setCapacity(int capacity) {
+		if (capacity < 1) {
+			throw new IllegalArgumentException("The capacity must be at least 1.");
+		}
+		this.capacity = capacity;
+	}
+	
+	
+	/** @return The maximum number of selected views. */
+	public synchronized int getCapacity() {
+		return capacity;
+	}
+	
+	
+	/**
+	 * Set the minimum score of a view, {@link #DEFAULT_MIN_SCORE} by default. A view with the same pose as a 
+	 * selected one scores about 1/4 of the fraction of the image it covers, and much less when the same area
+	 * is covered by several views; 0 keeps every view until the set is full.
+	 * @param minScore	The minimum score.
+	 */
+	public synchronized void setMinScore(double minScore) {
+		this.minScore = minScore;
+	}
+	
+	
+	/** @return The minimum score of a view. */
+	public synchronized double getMinScore() {
+		return minScore;
+	}
+	
+	
+	/**
+	 * Forget all the views.
+	 */
+	public synchronized void clear() {
+		selected.clear();
+		Arrays.fill(coverage, 0);
+		discardedCount = 0;
+	}
+	
+	
+	/**
+	 * Pose and coverage of a view.
+	 */
+	private static class View {
+		int sequence;
+		/// logarithm of the ratio of the left and right sides, and of the top and bottom sides
+		double tiltH, tiltV;
+		/// logarithm of the square root of the area of the target, relative to the image
+		double size;
+		/// center of the target, relative to the image size
+		double x, y;
+		/// cells of the coverage map with at least one corner, sorted
+		int[] cells;
+	}
+}